@@ -0,0 +1,31 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Takes the usual JMH command line options and always adds the GC profiler, so
+ * every run reports allocation rates (gc.alloc.rate.norm is bytes allocated per operation) alongside the timings.
+ * <p>
+ * Every benchmark runs against in-memory stand-ins for SQS, SNS and Kinesis, with payloads built from fixed data, so
+ * results can be compared between runs on the same machine without AWS access, e.g.
+ * <pre>
+ *   java -jar target/benchmarks.jar -rf json -rff before.json
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Just enough of SQS, held in memory, to drive an SqsConsumer without network calls. Receives hand out queued messages
+ * and long-poll like SQS does; deletes and visibility changes always succeed and are only counted.
+ */
+class InMemorySqs extends AbstractAmazonSQS {
+
+    private final String queueUrl;
+
+    private final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+
+    private final LongAdder deleted = new LongAdder();
+
+    InMemorySqs(String queueName) {
+        this.queueUrl = "https://sqs.us-east-1.amazonaws.com/123456789012/" + queueName;
+    }
+
+    void send(Collection<Message> batch) {
+        messages.addAll(batch);
+    }
+
+    long getDeletedCount() {
+        return deleted.sum();
+    }
+
+    @Override
+    public ListQueuesResult listQueues() {
+        return new ListQueuesResult().withQueueUrls(queueUrl);
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        int wait = request.getWaitTimeSeconds() == null ? 0 : request.getWaitTimeSeconds();
+        List<Message> received = new ArrayList<>(max);
+        try {
+            Message first = messages.poll(wait, TimeUnit.SECONDS);
+            if (first != null) {
+                received.add(first);
+                messages.drainTo(received, max - 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted receiving from " + queueUrl, e);
+        }
+        return new ReceiveMessageResult().withMessages(received);
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        List<DeleteMessageBatchResultEntry> successful = new ArrayList<>(request.getEntries().size());
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            successful.add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+        }
+        deleted.add(successful.size());
+        return new DeleteMessageBatchResult().withSuccessful(successful).withFailed(new ArrayList<>());
+    }
+
+    @Override
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+            ChangeMessageVisibilityBatchRequest request) {
+        List<ChangeMessageVisibilityBatchResultEntry> successful = new ArrayList<>(request.getEntries().size());
+        for (ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+            successful.add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+        }
+        return new ChangeMessageVisibilityBatchResult().withSuccessful(successful).withFailed(new ArrayList<>());
+    }
+
+    @Override
+    public ChangeMessageVisibilityResult changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+        return new ChangeMessageVisibilityResult();
+    }
+}
@@ -0,0 +1,100 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.BytesMessage;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.domain.Bottle;
+import com.randeepbydesign.pubsub.impl.JsonMapperProcessor;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Deserialization of {@link Bottle} payloads by {@link JsonMapperProcessor} from a String body, as SQS delivers them,
+ * and from the bytes of a {@link BytesMessage}, as Kinesis records not in an envelope are delivered
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonMapperBenchmark {
+
+    /**
+     * Number of bottles in the payload
+     */
+    @Param({"1", "100"})
+    public int count;
+
+    private Message string;
+
+    private Message heapBytes;
+
+    private Message directBytes;
+
+    private Blackhole blackhole;
+
+    private JsonMapperProcessor<Bottle[]> processor;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws Exception {
+        this.blackhole = blackhole;
+        ObjectMapper objectMapper = new ObjectMapper();
+        byte[] payload = objectMapper.writeValueAsBytes(bottles(count));
+        string = new Message("1", new String(payload, "UTF-8"));
+        heapBytes = new BytesMessage("2", ByteBuffer.wrap(payload));
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload).flip();
+        directBytes = new BytesMessage("3", direct);
+        processor = new JsonMapperProcessor<Bottle[]>(objectMapper, Bottle[].class) {
+            @Override
+            public Object processMessageObject(Bottle[] objectInstance) {
+                JsonMapperBenchmark.this.blackhole.consume(objectInstance);
+                return objectInstance;
+            }
+        };
+    }
+
+    @Benchmark
+    public String string() {
+        return processor.processMessage(string);
+    }
+
+    @Benchmark
+    public String heapBytes() {
+        return processor.processMessage(heapBytes);
+    }
+
+    @Benchmark
+    public String directBytes() {
+        return processor.processMessage(directBytes);
+    }
+
+    /**
+     * The same bottles on every run
+     */
+    static Bottle[] bottles(int count) {
+        Bottle[] bottles = new Bottle[count];
+        for (int i = 0; i < count; i++) {
+            Bottle b = new Bottle();
+            b.setEmpty(i % 7 == 0);
+            b.setFluidOunces(i % 100);
+            b.setLabel("TestBottle " + i);
+            b.setPoison(i % 10 == 0);
+            bottles[i] = b;
+        }
+        return bottles;
+    }
+}
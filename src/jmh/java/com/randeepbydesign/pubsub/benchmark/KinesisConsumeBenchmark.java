@@ -0,0 +1,143 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
+import com.amazonaws.services.kinesis.clientlibrary.types.ExtendedSequenceNumber;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
+import com.amazonaws.services.kinesis.model.Record;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.codec.CborCodec;
+import com.randeepbydesign.pubsub.codec.CodecRegistry;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.codec.MessageCodec;
+import com.randeepbydesign.pubsub.codec.PositionalCodec;
+import com.randeepbydesign.pubsub.domain.Bottle;
+import com.randeepbydesign.pubsub.impl.JsonMapperProcessor;
+import com.randeepbydesign.pubsub.kinesis.AcknowledgePolicy;
+import com.randeepbydesign.pubsub.kinesis.KinesisConsumerProcessor;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records per second a {@link KinesisConsumerProcessor} gets through when handed batches the way the KCL does, with a
+ * checkpointer that does nothing. Each record is a {@link Bottle} in the frame KinesisPublisher writes, encoded with
+ * each of the codecs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KinesisConsumeBenchmark {
+
+    private static final int RECORDS = 1000;
+
+    /**
+     * Workers per shard; 1 processes records on the calling thread
+     */
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"json", "cbor", "positional"})
+    public String codec;
+
+    private final Semaphore processed = new Semaphore(0);
+
+    private IRecordProcessorCheckpointer checkpointer;
+
+    private ProcessRecordsInput input;
+
+    private KinesisConsumerProcessor consumer;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        CodecRegistry codecs = new CodecRegistry().register(new PositionalCodec(Bottle.class));
+        MessageCodec messageCodec = codecs.forContentType(contentType(codec));
+        Bottle[] bottles = JsonMapperBenchmark.bottles(10);
+        BigInteger sequenceNumber = new BigInteger("49590338271490256608559692538361571095921575989136588898");
+        List<Record> records = new ArrayList<>(RECORDS);
+        for (int i = 0; i < RECORDS; i++) {
+            byte[] payload = messageCodec.encode(bottles[i % bottles.length]);
+            records.add(KinesisDecodeBenchmark.record(sequenceNumber.add(BigInteger.valueOf(i)).toString(),
+                    KinesisDecodeBenchmark.frame("BottleEvent", payload, messageCodec.getContentType())));
+        }
+        checkpointer = new NoOpCheckpointer();
+        input = new ProcessRecordsInput().withRecords(records).withCheckpointer(checkpointer)
+                .withMillisBehindLatest(0l);
+        JsonMapperProcessor<Bottle> processor = new JsonMapperProcessor<Bottle>(objectMapper, Bottle.class, codecs) {
+            @Override
+            public Object processMessageObject(Bottle objectInstance) {
+                processed.release();
+                return objectInstance;
+            }
+        };
+        consumer = new KinesisConsumerProcessor(processor, message -> {
+        }, AcknowledgePolicy.EVERY_BATCH, 0, parallelism, parallelism == 1 ? null : Message::getMessageId);
+        consumer.initialize(new InitializationInput().withShardId("shardId-000000000000")
+                .withExtendedSequenceNumber(ExtendedSequenceNumber.TRIM_HORIZON));
+    }
+
+    @TearDown
+    public void tearDown() {
+        consumer.shutdown(new ShutdownInput().withShutdownReason(ShutdownReason.ZOMBIE)
+                .withCheckpointer(checkpointer));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void consume() throws InterruptedException {
+        consumer.processRecords(input);
+        processed.acquire(RECORDS);
+    }
+
+    private static String contentType(String codec) {
+        switch (codec) {
+            case "cbor":
+                return CborCodec.CONTENT_TYPE;
+            case "positional":
+                return PositionalCodec.CONTENT_TYPE;
+            default:
+                return JsonCodec.CONTENT_TYPE;
+        }
+    }
+
+    private static class NoOpCheckpointer implements IRecordProcessorCheckpointer {
+
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.BytesMessage;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.kinesis.KinesisEnvelopeDecoder;
+import com.randeepbydesign.pubsub.kinesis.KinesisFrame;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a Kinesis record into a Message the way KinesisConsumerProcessor does: reading the frame
+ * KinesisPublisher writes, unwrapping the JSON envelope it used to write, and wrapping the bytes of a record from
+ * another producer in a {@link BytesMessage}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KinesisDecodeBenchmark {
+
+    @Param({"1024", "16384", "262144"})
+    public int bodySize;
+
+    private Record frame;
+
+    private Record envelope;
+
+    private Record raw;
+
+    private KinesisEnvelopeDecoder decoder;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        String payload = SnsEnvelopeBenchmark.payload(objectMapper, bodySize);
+        frame = record("49590338271490256608559692538361571095921575989136588897",
+                frame("BottleEvent", payload.getBytes(StandardCharsets.UTF_8), JsonCodec.CONTENT_TYPE));
+        envelope = record("49590338271490256608559692538361571095921575989136588898",
+                envelope(objectMapper, "BottleEvent", payload));
+        raw = record("49590338271490256608559692538361571095921575989136588899",
+                payload.getBytes(StandardCharsets.UTF_8));
+        decoder = new KinesisEnvelopeDecoder();
+    }
+
+    @Benchmark
+    public Message frame() {
+        return decoder.decode(frame);
+    }
+
+    @Benchmark
+    public Message envelope() {
+        return decoder.decode(envelope);
+    }
+
+    @Benchmark
+    public Message raw() {
+        return decoder.decode(raw);
+    }
+
+    /**
+     * The record body KinesisPublisher writes for an object published with the given subject and codec
+     */
+    static byte[] frame(String subject, byte[] body, String contentType) {
+        Map<String, String> attributes = attributes();
+        attributes.put(MessageAttributes.CONTENT_TYPE, contentType);
+        ByteBuffer frame = KinesisFrame.encode(subject, attributes, body);
+        byte[] ret = new byte[frame.remaining()];
+        frame.get(ret);
+        return ret;
+    }
+
+    /**
+     * The record body KinesisPublisher used to write for a message published with the given subject
+     */
+    static byte[] envelope(ObjectMapper objectMapper, String subject, String payload) throws Exception {
+        return objectMapper.writeValueAsBytes(new Message(null, subject, null, payload, attributes()));
+    }
+
+    private static Map<String, String> attributes() {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(MessageAttributes.PUBLISHED_AT, "1552579761540");
+        attributes.put(MessageAttributes.TRACE_ID, "c9135db0-26c4-47ec-8998-413945fb5a96");
+        return attributes;
+    }
+
+    static Record record(String sequenceNumber, byte[] data) {
+        return new Record()
+                .withSequenceNumber(sequenceNumber)
+                .withPartitionKey(sequenceNumber)
+                .withData(ByteBuffer.wrap(data));
+    }
+}
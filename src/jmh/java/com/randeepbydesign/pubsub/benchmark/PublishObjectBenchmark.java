@@ -0,0 +1,81 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.amazonaws.services.sns.AbstractAmazonSNS;
+import com.amazonaws.services.sns.model.ListTopicsResult;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.Topic;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.JsonPublisher;
+import com.randeepbydesign.pubsub.sqssns.SnsPublisher;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link JsonPublisher#publishObject} on its own, i.e. serialization, and through an {@link SnsPublisher} whose SNS
+ * client answers from memory, which adds building the request, stamping attributes and recording metrics
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishObjectBenchmark {
+
+    private static final String TOPIC_ARN = "arn:aws:sns:us-east-1:123456789012:bench";
+
+    /**
+     * Number of bottles in the published object
+     */
+    @Param({"1", "100"})
+    public int count;
+
+    private Object message;
+
+    private JsonPublisher serializeOnly;
+
+    private SnsPublisher sns;
+
+    @Setup
+    public void setup() {
+        message = count == 1 ? JsonMapperBenchmark.bottles(1)[0] : JsonMapperBenchmark.bottles(count);
+        serializeOnly = new JsonPublisher(new ObjectMapper()) {
+            @Override
+            public String publish(String subject, String messageBody) {
+                return messageBody;
+            }
+        };
+        sns = new SnsPublisher(new AbstractAmazonSNS() {
+            @Override
+            public ListTopicsResult listTopics() {
+                return new ListTopicsResult().withTopics(new Topic().withTopicArn(TOPIC_ARN));
+            }
+
+            @Override
+            public PublishResult publish(PublishRequest request) {
+                return new PublishResult().withMessageId("0a4b5e4e-3c2d-5f6e-9a1b-8c7d6e5f4a3b");
+            }
+        }, "bench");
+    }
+
+    @Benchmark
+    public String serialize() {
+        return serializeOnly.publishObject("BottleEvent", message);
+    }
+
+    @Benchmark
+    public String sns() {
+        return sns.publishObject("BottleEvent", message);
+    }
+}
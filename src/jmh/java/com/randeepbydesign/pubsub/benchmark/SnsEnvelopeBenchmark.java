@@ -0,0 +1,106 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.domain.Bottle;
+import com.randeepbydesign.pubsub.sqssns.SnsEnvelope;
+import com.randeepbydesign.pubsub.sqssns.SnsEnvelopeDecoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the streaming {@link SnsEnvelopeDecoder} with the regular expression SqsConsumer used to pull Subject and
+ * Message out of SNS envelopes. Bodies carry a JSON payload, as published by SnsPublisher.publishObject.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnsEnvelopeBenchmark {
+
+    /**
+     * The extractor SqsConsumer.convertMessage used before the streaming decoder
+     */
+    private static final Pattern ENVELOPE_DATA_EXTRACTOR = Pattern
+            .compile(".*\\\"Subject\\\"\\s*:\\s*\\\"([^\"]+)\\\".*\\\"Message\\\"\\s*:\\s*\\\"([^\"]+)\\\".+$",
+                    Pattern.DOTALL);
+
+    @Param({"1024", "16384", "65536", "262144"})
+    public int bodySize;
+
+    private String body;
+
+    private SnsEnvelopeDecoder decoder;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        body = envelope(objectMapper, payload(objectMapper, bodySize));
+        decoder = new SnsEnvelopeDecoder();
+    }
+
+    @Benchmark
+    public String regex() {
+        Matcher m = ENVELOPE_DATA_EXTRACTOR.matcher(body);
+        return m.matches() ? m.group(2) : body;
+    }
+
+    @Benchmark
+    public String streaming() {
+        SnsEnvelope envelope = decoder.decode(body);
+        return envelope == null ? body : envelope.getMessage();
+    }
+
+    /**
+     * Serialize enough bottles to make a JSON payload of roughly the requested size
+     */
+    static String payload(ObjectMapper objectMapper, int size) throws Exception {
+        List<Bottle> bottles = new ArrayList<>();
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; json.length() < size; i++) {
+            Bottle b = new Bottle();
+            b.setFluidOunces(i % 100);
+            b.setLabel("TestBottle " + i);
+            b.setPoison(i % 10 == 0);
+            bottles.add(b);
+            json.setLength(0);
+            json.append(objectMapper.writeValueAsString(bottles));
+        }
+        return json.toString();
+    }
+
+    /**
+     * Wrap a message the way SNS does when delivering to an SQS subscription
+     */
+    static String envelope(ObjectMapper objectMapper, String message) throws Exception {
+        Map<String, Object> envelope = new LinkedHashMap<>();
+        envelope.put("Type", "Notification");
+        envelope.put("MessageId", "22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324");
+        envelope.put("TopicArn", "arn:aws:sns:us-east-1:123456789012:MediaPlanEvents");
+        envelope.put("Subject", "MediaPlanEvent");
+        envelope.put("Message", message);
+        envelope.put("Timestamp", "2019-03-14T16:09:21.540Z");
+        envelope.put("SignatureVersion", "1");
+        envelope.put("Signature", "EXAMPLEpH+DcEwjAPg8O9mY8dReBSwksfg2S7WKQcikcNKWLQjwu6A4VbeS0QHVCkhRS7fUQvi2egU3N858fiTDN6bkkOxYDVrY0Ad8L10Hs3zH81mtnPk5uvvolIC1CXGu43obcgFxeL3khZl8IKvO61GWB6jI9b5+gLPoBc1Q=");
+        envelope.put("SigningCertURL", "https://sns.us-east-1.amazonaws.com/SimpleNotificationService-f3ecfb7224c7233fe7bb5f59f96de52f.pem");
+        envelope.put("UnsubscribeURL", "https://sns.us-east-1.amazonaws.com/?Action=Unsubscribe&SubscriptionArn=arn:aws:sns:us-east-1:123456789012:MediaPlanEvents:c9135db0-26c4-47ec-8998-413945fb5a96");
+        return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(envelope);
+    }
+}
@@ -0,0 +1,89 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.domain.Bottle;
+import com.randeepbydesign.pubsub.impl.JsonMapperProcessor;
+import com.randeepbydesign.pubsub.sqssns.SqsConsumer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages per second an {@link SqsConsumer} gets through, from receive to delete, when SQS answers from memory. Each
+ * operation is one SNS notification carrying a {@link Bottle}, unwrapped and deserialized by a
+ * {@link JsonMapperProcessor}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SqsConsumeBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    /**
+     * 0 processes inline on a single poller; otherwise two pollers feed this many workers
+     */
+    @Param({"0", "4"})
+    public int workers;
+
+    private final Semaphore processed = new Semaphore(0);
+
+    private List<Message> messages;
+
+    private InMemorySqs sqs;
+
+    private SqsConsumer consumer;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Bottle[] bottles = JsonMapperBenchmark.bottles(10);
+        messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            String payload = objectMapper.writeValueAsString(bottles[i % bottles.length]);
+            messages.add(SqsConvertMessageBenchmark.sqsMessage(SnsEnvelopeBenchmark.envelope(objectMapper, payload)));
+        }
+        sqs = new InMemorySqs("bench");
+        JsonMapperProcessor<Bottle> processor = new JsonMapperProcessor<Bottle>(objectMapper, Bottle.class) {
+            @Override
+            public Object processMessageObject(Bottle objectInstance) {
+                processed.release();
+                return objectInstance;
+            }
+        };
+        consumer = workers == 0
+                ? new SqsConsumer(sqs, "bench", processor)
+                : new SqsConsumer(sqs, "bench", processor, 2, workers, workers * 10, 0);
+        consumer.startPolling();
+    }
+
+    @TearDown
+    public void tearDown() {
+        consumer.stopPolling();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void consume() throws InterruptedException {
+        sqs.send(messages);
+        processed.acquire(MESSAGES);
+    }
+}
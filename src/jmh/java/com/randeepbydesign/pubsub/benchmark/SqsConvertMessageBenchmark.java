@@ -0,0 +1,62 @@
+package com.randeepbydesign.pubsub.benchmark;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.sqssns.SqsConsumer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link SqsConsumer#convertMessage} for a message delivered in an SNS notification envelope and for one sent
+ * to the queue directly (or with raw message delivery)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SqsConvertMessageBenchmark {
+
+    @Param({"1024", "16384", "262144"})
+    public int bodySize;
+
+    private Message envelope;
+
+    private Message raw;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        String payload = SnsEnvelopeBenchmark.payload(objectMapper, bodySize);
+        envelope = sqsMessage(SnsEnvelopeBenchmark.envelope(objectMapper, payload));
+        raw = sqsMessage(payload);
+    }
+
+    @Benchmark
+    public com.randeepbydesign.pubsub.Message envelope() {
+        return SqsConsumer.convertMessage(envelope);
+    }
+
+    @Benchmark
+    public com.randeepbydesign.pubsub.Message raw() {
+        return SqsConsumer.convertMessage(raw);
+    }
+
+    static Message sqsMessage(String body) {
+        return new Message()
+                .withMessageId("4a1c5b7e-1b55-4a6f-a2e4-0f3f5c43e7a1")
+                .withReceiptHandle("AQEBwJnKyrHigUMZj6rYigCgxlaS3SLy0a")
+                .withBody(body);
+    }
+}
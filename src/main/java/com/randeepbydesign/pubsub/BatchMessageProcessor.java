@@ -0,0 +1,53 @@
+package com.randeepbydesign.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link MessageProcessor} that can take a whole batch of messages at once, e.g. to write them to a database with a
+ * single multi-row insert. Consumers that receive messages in batches hand the batch over in one call instead of
+ * calling {@link #processMessage} for each message.
+ */
+public interface BatchMessageProcessor extends MessageProcessor {
+
+    /**
+     * Messages that fail are reported in their result rather than by throwing, so that the rest of the batch can still
+     * be acknowledged. Throwing fails the whole batch.
+     *
+     * @return one result per message, in the same order as the messages
+     */
+    List<ProcessingResult> processMessages(List<Message> messages);
+
+    @Override
+    default String processMessage(Message message) {
+        List<ProcessingResult> results = processMessages(Collections.singletonList(message));
+        if (results.size() != 1) {
+            throw new IllegalStateException("Expected 1 result but got " + results.size());
+        }
+        return results.get(0).getReceiptOrThrow();
+    }
+
+    /**
+     * Run a batch through the processor the way consumers do: if it throws, or does not report a result for every
+     * message, every message in the batch is treated as failed
+     */
+    static List<ProcessingResult> processBatch(BatchMessageProcessor processor, List<Message> messages) {
+        Exception error;
+        try {
+            List<ProcessingResult> results = processor.processMessages(messages);
+            if (results != null && results.size() == messages.size()) {
+                return results;
+            }
+            error = new IllegalStateException("Expected " + messages.size() + " results but got "
+                    + (results == null ? 0 : results.size()));
+        } catch (Exception e) {
+            error = e;
+        }
+        List<ProcessingResult> failures = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            failures.add(ProcessingResult.failure(error));
+        }
+        return failures;
+    }
+}
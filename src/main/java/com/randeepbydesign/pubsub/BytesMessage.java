@@ -0,0 +1,47 @@
+package com.randeepbydesign.pubsub;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Message backed by the bytes it was received as. The body is only decoded to a String if {@link #getMessage()} is
+ * called, so processors that can work from the bytes directly avoid copying them.
+ */
+public class BytesMessage extends Message {
+
+    private final ByteBuffer data;
+
+    private volatile String decoded;
+
+    public BytesMessage(String messageId, ByteBuffer data) {
+        this(messageId, null, null, data, Collections.emptyMap());
+    }
+
+    public BytesMessage(String messageId, String subject, String messageType, ByteBuffer data,
+            Map<String, String> attributes) {
+        super(messageId, subject, messageType, null, attributes);
+        this.data = data;
+    }
+
+    /**
+     * @return a view of the message bytes from position to limit; the view's position and limit may be changed freely
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    /**
+     * Decodes the bytes as UTF-8 on first use
+     */
+    @Override
+    public String getMessage() {
+        String ret = decoded;
+        if (ret == null) {
+            ret = StandardCharsets.UTF_8.decode(getData()).toString();
+            decoded = ret;
+        }
+        return ret;
+    }
+}
@@ -1,24 +1,122 @@
 package com.randeepbydesign.pubsub;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.codec.MessageCodec;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
- * Publisher implementation that can be used to serialize objects to JSON before Publishing
+ * Publisher implementation that can be used to serialize objects before Publishing; to JSON unless it is given another
+ * {@link MessageCodec}. The encoded bytes are handed to {@link #publishEncoded} along with the codec's content type,
+ * which implementations send along so that consumers can decode them.
  */
 public abstract class JsonPublisher implements Publisher {
 
-    private ObjectMapper objectMapper;
+    private final MessageCodec codec;
 
     public JsonPublisher(ObjectMapper objectMapper) {
-        this.objectMapper = objectMapper;
+        this(new JsonCodec(objectMapper));
+    }
+
+    public JsonPublisher(MessageCodec codec) {
+        this.codec = codec;
     }
 
     public String publishObject(final String subject, Object messageObject) {
+        return publishEncoded(subject, encode(messageObject), codec.getContentType());
+    }
+
+    /**
+     * Publishes synchronously on the calling thread; implementations that can publish in the background override this
+     */
+    @Override
+    public CompletableFuture<String> publishAsync(final String subject, final String messageBody) {
+        CompletableFuture<String> ret = new CompletableFuture<>();
+        try {
+            ret.complete(publish(subject, messageBody));
+        } catch (RuntimeException e) {
+            ret.completeExceptionally(e);
+        }
+        return ret;
+    }
+
+    @Override
+    public CompletableFuture<String> publishObjectAsync(final String subject, Object messageObject) {
+        final byte[] messageBody;
+        try {
+            messageBody = encode(messageObject);
+        } catch (RuntimeException e) {
+            CompletableFuture<String> ret = new CompletableFuture<>();
+            ret.completeExceptionally(e);
+            return ret;
+        }
+        return publishEncodedAsync(subject, messageBody, codec.getContentType());
+    }
+
+    /**
+     * Publish a body written by the codec. This implementation publishes it as {@link MessageCodec#toText} and drops
+     * the content type, which is only good for JSON; publishers that can carry attributes override this to send it
+     * along. The body must have been written by this publisher's codec, e.g. by a publisher that stored it to send
+     * later.
+     */
+    public String publishEncoded(final String subject, final byte[] messageBody, final String contentType) {
+        return publish(subject, codec.toText(messageBody));
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #publishEncoded}
+     */
+    public CompletableFuture<String> publishEncodedAsync(final String subject, final byte[] messageBody,
+            final String contentType) {
+        return publishAsync(subject, codec.toText(messageBody));
+    }
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public List<CompletableFuture<String>> publishAll(final String subject, final Collection<String> messageBodies) {
+        List<CompletableFuture<String>> ret = new ArrayList<>(messageBodies.size());
+        for (String messageBody : messageBodies) {
+            ret.add(publishAsync(subject, messageBody));
+        }
+        return ret;
+    }
+
+    @Override
+    public List<CompletableFuture<String>> publishAllObjects(final String subject, final Collection<?> messages) {
+        List<CompletableFuture<String>> ret = new ArrayList<>(messages.size());
+        for (Object message : messages) {
+            ret.add(publishObjectAsync(subject, message));
+        }
+        return ret;
+    }
+
+    /**
+     * Wait for an asynchronous publish, rethrowing its failure unwrapped
+     */
+    protected static String await(CompletableFuture<String> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private byte[] encode(Object messageObject) {
         try {
-            return publish(subject, objectMapper.writeValueAsString(messageObject));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Unable to serialize object to JSON", e);
+            return codec.encode(messageObject);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to serialize object to " + codec.getContentType(), e);
         }
     }
 
@@ -0,0 +1,247 @@
+package com.randeepbydesign.pubsub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.RateLimiter;
+import com.randeepbydesign.pubsub.codec.CborCodec;
+import com.randeepbydesign.pubsub.codec.CodecRegistry;
+import com.randeepbydesign.pubsub.codec.Compression;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.codec.MessageCodec;
+import com.randeepbydesign.pubsub.codec.PayloadCompressor;
+import com.randeepbydesign.pubsub.codec.PositionalCodec;
+import com.randeepbydesign.pubsub.domain.Bottle;
+import com.randeepbydesign.pubsub.impl.JsonMapperProcessor;
+import com.randeepbydesign.pubsub.kinesis.AcknowledgePolicy;
+import com.randeepbydesign.pubsub.kinesis.KinesisConsumerProcessorFactory;
+import com.randeepbydesign.pubsub.kinesis.KinesisPublisher;
+import com.randeepbydesign.pubsub.kinesis.PartitionKeyStrategies;
+import com.randeepbydesign.pubsub.kinesis.impl.SqsFailureHandler;
+import com.randeepbydesign.pubsub.local.LocalBroker;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.LoggingReporter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import com.randeepbydesign.pubsub.metrics.PeriodicReporter;
+import com.randeepbydesign.pubsub.sqssns.SnsPublisher;
+import com.randeepbydesign.pubsub.sqssns.SqsConsumer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes {@link Bottle} messages at a steady rate for a set time. Messages are padded to roughly the requested size
+ * once serialized, and the given share of them are poison pills, labelled with {@value #POISON_LABEL} and flagged as
+ * poison, so that consumers such as the PoisonPillMessageProcessor fail them and they end up in the dead-letter queue.
+ * <p>
+ * Messages are published asynchronously, so the rate holds as long as the publisher can keep up with it; the counts
+ * of published and failed messages are kept in the default {@link MetricRegistry} under "loadgen.".
+ */
+public class LoadGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static final String POISON_LABEL = "Poison pill";
+
+    /**
+     * Serialized size of a Bottle with an empty label, which the padding makes up the rest of the payload size to
+     */
+    private static final int BOTTLE_OVERHEAD = 70;
+
+    /**
+     * Time in millis the local pipelines are left to drain after publishing stops
+     */
+    private static final long DRAIN_TIME = 5000l;
+
+    private final Publisher publisher;
+
+    private final String subject;
+
+    private final RateLimiter rateLimiter;
+
+    private final double poisonRatio;
+
+    private final Random random;
+
+    private final String padding;
+
+    private final Counter published;
+
+    private final Counter failed;
+
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * @param rate messages per second
+     * @param payloadSize approximate size in bytes of each message once serialized
+     * @param poisonRatio share of messages, from 0 to 1, that are poison pills
+     * @param seed for the choice of poison pills, so that runs can be repeated
+     */
+    public LoadGenerator(Publisher publisher, String subject, double rate, int payloadSize, double poisonRatio,
+            long seed) {
+        if (rate <= 0 || payloadSize < 0 || poisonRatio < 0 || poisonRatio > 1) {
+            throw new IllegalArgumentException("Invalid load configuration: rate=" + rate + ", payloadSize="
+                    + payloadSize + ", poisonRatio=" + poisonRatio);
+        }
+        this.publisher = publisher;
+        this.subject = subject;
+        this.rateLimiter = RateLimiter.create(rate);
+        this.poisonRatio = poisonRatio;
+        this.random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        for (int i = BOTTLE_OVERHEAD + POISON_LABEL.length() + 8; i < payloadSize; i++) {
+            sb.append('x');
+        }
+        this.padding = sb.toString();
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        this.published = metrics.counter("loadgen.published");
+        this.failed = metrics.counter("loadgen.failed");
+    }
+
+    /**
+     * Publish at the configured rate until the duration has passed, then wait for the messages still being published
+     *
+     * @param duration in millis
+     * @return the number of messages handed to the publisher
+     */
+    public long run(long duration) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        long count = 0;
+        while (System.nanoTime() - deadline < 0) {
+            rateLimiter.acquire();
+            outstanding.incrementAndGet();
+            publisher.publishObjectAsync(subject, nextBottle(count++)).whenComplete((messageId, e) -> {
+                if (e == null) {
+                    published.increment();
+                } else {
+                    failed.increment();
+                    log.debug("Unable to publish message: " + e.getLocalizedMessage());
+                }
+                if (outstanding.decrementAndGet() == 0) {
+                    synchronized (outstanding) {
+                        outstanding.notifyAll();
+                    }
+                }
+            });
+        }
+        synchronized (outstanding) {
+            while (outstanding.get() > 0) {
+                outstanding.wait(1000l);
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info(String.format("Published %d of %d messages in %dms (%.1f/s), %d failed", published.getCount(), count,
+                elapsed, count * 1000d / Math.max(1, elapsed), failed.getCount()));
+        return count;
+    }
+
+    private Bottle nextBottle(long counter) {
+        Bottle b = new Bottle();
+        b.setEmpty(false);
+        b.setFluidOunces(random.nextInt(100));
+        boolean poison = random.nextDouble() < poisonRatio;
+        b.setLabel((poison ? POISON_LABEL : "TestBottle") + " " + counter + " " + padding);
+        b.setPoison(poison);
+        return b;
+    }
+
+    /**
+     * Runs a publisher, a consumer and a dead-letter queue consumer entirely in memory against a {@link LocalBroker}
+     *
+     * @param args optional: sns or kinesis, messages per second, payload size in bytes, poison ratio, duration in
+     * seconds, json, cbor or positional for the codec and none, deflate or deflate-fast for the compression of bodies
+     * of {@value PayloadCompressor#DEFAULT_THRESHOLD} bytes or more
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String mode = args.length > 0 ? args[0].toLowerCase() : "sns";
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 1000d;
+        int payloadSize = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        double poisonRatio = args.length > 3 ? Double.parseDouble(args[3]) : .05d;
+        long duration = TimeUnit.SECONDS.toMillis(args.length > 4 ? Long.parseLong(args[4]) : 30l);
+        CodecRegistry codecs = new CodecRegistry().register(new PositionalCodec(Bottle.class));
+        MessageCodec codec = codecs.forContentType(args.length > 5 ? contentType(args[5]) : JsonCodec.CONTENT_TYPE);
+        PayloadCompressor compressor = args.length > 6 ? compressor(args[6]) : null;
+
+        LocalBroker broker = new LocalBroker();
+        broker.createQueue("load-dlq");
+        MessageProcessor poisonCheck = new JsonMapperProcessor<Bottle>(new ObjectMapper(), Bottle.class, codecs) {
+            @Override
+            public Object processMessageObject(Bottle objectInstance) {
+                if (objectInstance.isPoison()) {
+                    throw new RuntimeException("Poisoned message, cannot process");
+                }
+                return objectInstance;
+            }
+        };
+        SqsConsumer dlqConsumer = new SqsConsumer(broker.getSqs(), "load-dlq", Message::getMessageId);
+        PeriodicReporter reporter = new PeriodicReporter(MetricRegistry.getDefault(), new LoggingReporter(), 10000l);
+
+        MessageConsumer consumer;
+        Publisher publisher;
+        SqsFailureHandler failureHandler = null;
+        switch (mode) {
+            case "sns":
+                broker.createQueue("load-queue");
+                broker.setRedrivePolicy("load-queue", "load-dlq", 3);
+                broker.createTopic("load-topic");
+                broker.subscribe("load-topic", "load-queue", false);
+                publisher = new SnsPublisher(broker.getSns(), "load-topic", SnsPublisher.DEFAULT_MAX_IN_FLIGHT, codec,
+                        compressor);
+                // With a visibility timeout of its own the consumer releases failed messages straight away
+                consumer = new SqsConsumer(broker.getSqs(), "load-queue", poisonCheck, 2, 8, 100, 5);
+                break;
+            case "kinesis":
+                broker.createStream("load-stream", 4);
+                publisher = new KinesisPublisher(broker.newKinesisProducer(), "load-stream", codec,
+                        KinesisPublisher.DEFAULT_MAX_IN_FLIGHT, PartitionKeyStrategies.random(), compressor);
+                failureHandler = new SqsFailureHandler(broker.getSqs(), "load-dlq", 1000, 1000l, 30000l);
+                consumer = broker.newKinesisWorker("load-consumer", "load-stream",
+                        new KinesisConsumerProcessorFactory(poisonCheck, failureHandler, AcknowledgePolicy.EVERY_BATCH,
+                                5000l));
+                break;
+            default:
+                throw new RuntimeException("Invalid mode requested: " + mode);
+        }
+
+        consumer.startPolling();
+        dlqConsumer.startPolling();
+        new LoadGenerator(publisher, "LoadEvent", rate, payloadSize, poisonRatio, 1l).run(duration);
+        Thread.sleep(DRAIN_TIME);
+        consumer.stopPolling();
+        if (failureHandler != null) {
+            failureHandler.close(DRAIN_TIME, TimeUnit.MILLISECONDS);
+        }
+        dlqConsumer.stopPolling();
+        reporter.close();
+    }
+
+    private static String contentType(String codec) {
+        switch (codec.toLowerCase()) {
+            case "json":
+                return JsonCodec.CONTENT_TYPE;
+            case "cbor":
+                return CborCodec.CONTENT_TYPE;
+            case "positional":
+                return PositionalCodec.CONTENT_TYPE;
+            default:
+                throw new RuntimeException("Invalid codec requested: " + codec);
+        }
+    }
+
+    /**
+     * @return null for no compression
+     */
+    private static PayloadCompressor compressor(String compression) {
+        switch (compression.toLowerCase()) {
+            case "none":
+                return null;
+            case "deflate":
+                return new PayloadCompressor(Compression.DEFLATE);
+            case "deflate-fast":
+                return new PayloadCompressor(Compression.DEFLATE_FAST);
+            default:
+                throw new RuntimeException("Invalid compression requested: " + compression);
+        }
+    }
+}
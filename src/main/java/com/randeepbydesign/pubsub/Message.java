@@ -1,13 +1,35 @@
 package com.randeepbydesign.pubsub;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Generic envelope representing a published/consumed message
  */
 public class Message {
+
+    /**
+     * Attribute holding the id the publishing service assigned to the message, e.g. the SNS MessageId. Unlike the
+     * messageId of a consumed SQS message this stays the same across redeliveries.
+     */
+    public static final String SOURCE_ID_ATTRIBUTE = "SourceMessageId";
+
+    /**
+     * Attribute holding the time the publishing service accepted the message, as reported by that service
+     */
+    public static final String SOURCE_TIMESTAMP_ATTRIBUTE = "SourceTimestamp";
+
     private String messageId;
     private String subject;
     private String messageType;
     private String message;
+    private Map<String, String> attributes = Collections.emptyMap();
+
+    public Message(String messageId, String subject, String messageType, String message,
+            Map<String, String> attributes) {
+        this(messageId, subject, messageType, message);
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
 
     public Message(String messageId, String subject, String messageType, String message) {
         this.subject = subject;
@@ -43,4 +65,15 @@ public class Message {
         return message;
     }
 
+    /**
+     * @return metadata that travelled with the message, such as SNS message attributes
+     */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
 }
@@ -0,0 +1,46 @@
+package com.randeepbydesign.pubsub;
+
+/**
+ * Names of the attributes publishers stamp on messages. SNS carries them as message attributes and Kinesis in the
+ * attributes of the record envelope; consumers make them available through {@link Message#getAttribute}.
+ */
+public final class MessageAttributes {
+
+    /**
+     * When the message was handed to the publisher, in epoch millis. Latencies computed from it on another host include
+     * the clock difference between the two hosts.
+     */
+    public static final String PUBLISHED_AT = "PublishedAt";
+
+    /**
+     * Id tying the message to the request or message that caused it, when the publishing thread had one
+     *
+     * @see TraceContext
+     */
+    public static final String TRACE_ID = "TraceId";
+
+    /**
+     * Content type of the {@link com.randeepbydesign.pubsub.codec.MessageCodec} the body was encoded with. Only set on
+     * messages published as objects; bodies published as strings carry none and are taken to be JSON.
+     */
+    public static final String CONTENT_TYPE = "ContentType";
+
+    /**
+     * Compression applied to the body on top of its content type, e.g. "deflate", when the publisher compressed it.
+     * Consumers decompress such bodies before handing them on, so message processors never see this attribute.
+     *
+     * @see com.randeepbydesign.pubsub.codec.PayloadCompressor
+     */
+    public static final String CONTENT_ENCODING = "ContentEncoding";
+
+    /**
+     * Set on messages whose body is a reference to a blob holding the real one, with the size of the blob in bytes.
+     * Consumers configured with the same blob store fetch the body when it is read.
+     *
+     * @see com.randeepbydesign.pubsub.claimcheck.ClaimCheck
+     */
+    public static final String CLAIM_CHECK = "ClaimCheck";
+
+    private MessageAttributes() {
+    }
+}
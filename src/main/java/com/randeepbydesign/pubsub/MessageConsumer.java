@@ -1,5 +1,7 @@
 package com.randeepbydesign.pubsub;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Generic contract for a consumer of messages to follow
  */
@@ -15,4 +17,15 @@ public interface MessageConsumer {
      * Stop the polling process for shutdown or other reasons
      */
     void stopPolling();
+
+    /**
+     * Stop receiving messages, give the ones in flight until the timeout to finish, send the acknowledgements of those
+     * that did and hand the rest back to the broker. This implementation only stops polling, for consumers that do not
+     * track their work in flight.
+     */
+    default ShutdownReport shutdown(long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        stopPolling();
+        return ShutdownReport.of(true, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
 }
@@ -14,4 +14,14 @@ public interface MessageProcessor {
      * processed an exception can be thrown for tracking purposes or just ignored.
      */
     String processMessage(Message message);
+
+    /**
+     * Lets a processor that knows it cannot currently succeed, e.g. because a dependency is down, ask consumers to stop
+     * fetching messages for a while rather than fail every one of them
+     *
+     * @return in millis; how long consumers should hold off handing over more messages, 0 to carry on
+     */
+    default long pauseMillis() {
+        return 0;
+    }
 }
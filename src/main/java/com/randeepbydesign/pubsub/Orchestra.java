@@ -3,6 +3,10 @@ package com.randeepbydesign.pubsub;
 import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.randeepbydesign.pubsub.impl.PrintlnProcessor;
+import com.randeepbydesign.pubsub.impl.RoutingMessageProcessor;
+import com.randeepbydesign.pubsub.sqssns.SnsPublisher;
+import com.randeepbydesign.pubsub.sqssns.SqsConsumer;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,22 +21,24 @@ import org.slf4j.LoggerFactory;
  * <li>
  * consumer that reads from a dead-letter-queue linked to the previous consumer
  * </li></ol>
- * The program will run as long as it takes for the Publisher to write 100 messages and then will exit. AS a result,
- * some messages may remain.
+ * The publisher is driven by a {@link LoadGenerator} for a set time and then the program exits. AS a result, some
+ * messages may remain. {@link LoadGenerator#main} runs the same pipeline without AWS.
  */
 public class Orchestra {
 
-    private static int counter = 0;
-
     private static final Logger log = LoggerFactory.getLogger(Orchestra.class);
 
-    public static void main(String[] args) {
+    private static final String EVENT_SUBJECT = "MediaPlanEvent";
+
+    public static void main(String[] args) throws InterruptedException {
         if (args.length < 3) {
             System.err.println(
                     "Invalid call: program should be invoked with 3 arguments\n\t"
                             + "Topic Name for SNS to write to\n\t"
                             + "A Queue that can be attached to the topic\n\t"
-                            + "A Queue that can serve as the dead-letter queue for processing failures");
+                            + "A Queue that can serve as the dead-letter queue for processing failures\n"
+                            + "optionally followed by messages per second, payload size in bytes, poison ratio and "
+                            + "duration in seconds");
             System.exit(0);
         }
         final String topicName = args[0];
@@ -46,35 +52,34 @@ public class Orchestra {
             throw new RuntimeException("No valid consumers found subscribing to topic");
         }
 
-        SqsConsumer consumer = new SqsConsumer(AmazonSQSClientBuilder.defaultClient(), sqsName, (message -> {
-            String messageBody = message.getMessage().toString();
-            if (!messageBody.contains("Poison pill")) {
-                System.out
-                        .println("simulate successful processing of " + messageBody.replace('\n', ' '));
-                return message.getMessageId();
-            }
-            log.warn("Simulating processing failure at 5% rate for " + messageBody);
-            throw new RuntimeException("Poisoned message, cannot process");
-        }));
+        // One queue serves every kind of event published to the topic; anything but the load events is printed
+        MessageProcessor router = new RoutingMessageProcessor(sqsName, RoutingMessageProcessor.SUBJECT)
+                .route(EVENT_SUBJECT, message -> {
+                    String messageBody = message.getMessage().toString();
+                    if (!messageBody.contains(LoadGenerator.POISON_LABEL)) {
+                        System.out
+                                .println("simulate successful processing of " + messageBody.replace('\n', ' '));
+                        return message.getMessageId();
+                    }
+                    log.warn("Simulating processing failure at 5% rate for " + messageBody);
+                    throw new RuntimeException("Poisoned message, cannot process");
+                })
+                .defaultRoute(new PrintlnProcessor());
+        SqsConsumer consumer = new SqsConsumer(AmazonSQSClientBuilder.defaultClient(), sqsName, router);
         SqsConsumer dlqConsumer = new SqsConsumer(AmazonSQSClientBuilder.defaultClient(), dlqName,
                 new PrintlnProcessor());
 
         consumer.startPolling();
         dlqConsumer.startPolling();
 
-        //Publish 100 messages and exit
-        boolean val = true;
-        while (counter < 100) {
-            long sleepTime = (long) (Math.random() * 10000l);
-            System.out.println("Sleeping for " + sleepTime);
-            try {
-                Thread.sleep(sleepTime);
-            } catch (InterruptedException e) {
-                System.err.println("Thread sleep interrupted: " + e.getLocalizedMessage());
-            }
-            publisher.publish("MediaPlanEvent",
-                    Math.random() > .1d ? "Publishing event " + counter++ : "Poison pill " + counter++);
-        }
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 1d;
+        int payloadSize = args.length > 4 ? Integer.parseInt(args[4]) : 128;
+        double poisonRatio = args.length > 5 ? Double.parseDouble(args[5]) : .1d;
+        long duration = TimeUnit.SECONDS.toMillis(args.length > 6 ? Long.parseLong(args[6]) : 100l);
+        new LoadGenerator(publisher, EVENT_SUBJECT, rate, payloadSize, poisonRatio, System.nanoTime())
+                .run(duration);
+        consumer.stopPolling();
+        dlqConsumer.stopPolling();
     }
 
 }
@@ -0,0 +1,59 @@
+package com.randeepbydesign.pubsub;
+
+/**
+ * Outcome of processing one message of a batch handed to a {@link BatchMessageProcessor}
+ */
+public class ProcessingResult {
+
+    private final String receipt;
+
+    private final Exception error;
+
+    private ProcessingResult(String receipt, Exception error) {
+        this.receipt = receipt;
+        this.error = error;
+    }
+
+    /**
+     * @param receipt as returned by {@link MessageProcessor#processMessage}; the message's id in most cases
+     */
+    public static ProcessingResult success(String receipt) {
+        return new ProcessingResult(receipt, null);
+    }
+
+    public static ProcessingResult success(Message message) {
+        return success(message.getMessageId());
+    }
+
+    public static ProcessingResult failure(Exception error) {
+        return new ProcessingResult(null, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public String getReceipt() {
+        return receipt;
+    }
+
+    /**
+     * @return why the message could not be processed, or null if it was
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Single-message form of the result: the receipt on success, otherwise the error is thrown
+     */
+    public String getReceiptOrThrow() {
+        if (error == null) {
+            return receipt;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        throw new RuntimeException(error);
+    }
+}
@@ -1,5 +1,9 @@
 package com.randeepbydesign.pubsub;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public interface Publisher {
 
     /**
@@ -11,4 +15,24 @@ public interface Publisher {
     String publish(final String subject, final String messageBody);
 
     String publishObject(final String subject, final Object message);
+
+    /**
+     * Publish without waiting for the message to be accepted. Implementations may block the caller while their limit
+     * of in-flight messages is reached.
+     *
+     * @return a future completed with the identifier {@link #publish} would have returned, or completed exceptionally
+     * if the message could not be published
+     */
+    CompletableFuture<String> publishAsync(final String subject, final String messageBody);
+
+    CompletableFuture<String> publishObjectAsync(final String subject, final Object message);
+
+    /**
+     * Publish each message body asynchronously
+     *
+     * @return one future per message, in iteration order of the collection
+     */
+    List<CompletableFuture<String>> publishAll(final String subject, final Collection<String> messageBodies);
+
+    List<CompletableFuture<String>> publishAllObjects(final String subject, final Collection<?> messages);
 }
@@ -0,0 +1,75 @@
+package com.randeepbydesign.pubsub;
+
+/**
+ * Outcome of shutting a {@link MessageConsumer} down with {@link MessageConsumer#shutdown}
+ */
+public class ShutdownReport {
+
+    private final boolean drained;
+
+    private final int inFlight;
+
+    private final int abandoned;
+
+    private final int unacknowledged;
+
+    private final int released;
+
+    private final long elapsedMillis;
+
+    /**
+     * @param drained whether the work in flight finished before the deadline
+     * @param inFlight messages received but not finished when receiving stopped
+     * @param abandoned messages of those left unprocessed: still running or waiting for a worker at the deadline, or
+     * received as the consumer was stopping
+     * @param unacknowledged processed messages whose acknowledgement could not be sent, which are delivered again
+     * @param released unfinished messages handed back to the broker for immediate redelivery
+     */
+    public ShutdownReport(boolean drained, int inFlight, int abandoned, int unacknowledged, int released,
+            long elapsedMillis) {
+        this.drained = drained;
+        this.inFlight = inFlight;
+        this.abandoned = abandoned;
+        this.unacknowledged = unacknowledged;
+        this.released = released;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * For consumers that do not track their work in flight
+     */
+    public static ShutdownReport of(boolean drained, long elapsedMillis) {
+        return new ShutdownReport(drained, 0, 0, 0, 0, elapsedMillis);
+    }
+
+    public boolean isDrained() {
+        return drained;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getAbandoned() {
+        return abandoned;
+    }
+
+    public int getUnacknowledged() {
+        return unacknowledged;
+    }
+
+    public int getReleased() {
+        return released;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownReport{drained=" + drained + ", inFlight=" + inFlight + ", abandoned=" + abandoned
+                + ", unacknowledged=" + unacknowledged + ", released=" + released + ", elapsedMillis=" + elapsedMillis
+                + "}";
+    }
+}
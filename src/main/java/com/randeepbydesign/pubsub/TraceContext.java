@@ -0,0 +1,62 @@
+package com.randeepbydesign.pubsub;
+
+/**
+ * The trace id of the work the current thread is doing. Publishers stamp it on the messages they publish, and
+ * consumers set it from the message being processed, so that messages published while processing carry the trace id
+ * of the message that caused them.
+ * <p>
+ * A thread publishing on behalf of an earlier publish, e.g. replaying messages from an outbox, can also set the time
+ * they were first published, which publishers then stamp in place of the current time.
+ */
+public final class TraceContext {
+
+    private static final ThreadLocal<String> TRACE_ID = new ThreadLocal<>();
+
+    private static final ThreadLocal<Long> PUBLISHED_AT = new ThreadLocal<>();
+
+    private TraceContext() {
+    }
+
+    /**
+     * @return the trace id of the current thread, or null if it has none
+     */
+    public static String getTraceId() {
+        return TRACE_ID.get();
+    }
+
+    /**
+     * @param traceId null clears the trace id
+     */
+    public static void setTraceId(String traceId) {
+        if (traceId == null) {
+            TRACE_ID.remove();
+        } else {
+            TRACE_ID.set(traceId);
+        }
+    }
+
+    /**
+     * @return in epoch millis; the publish time to stamp on messages published now from the current thread, which is
+     * the current time unless one has been set
+     */
+    public static long getPublishedAt() {
+        Long publishedAt = PUBLISHED_AT.get();
+        return publishedAt == null ? System.currentTimeMillis() : publishedAt;
+    }
+
+    /**
+     * @param publishedAt in epoch millis; 0 clears it
+     */
+    public static void setPublishedAt(long publishedAt) {
+        if (publishedAt == 0) {
+            PUBLISHED_AT.remove();
+        } else {
+            PUBLISHED_AT.set(publishedAt);
+        }
+    }
+
+    public static void clear() {
+        TRACE_ID.remove();
+        PUBLISHED_AT.remove();
+    }
+}
@@ -0,0 +1,30 @@
+package com.randeepbydesign.pubsub.claimcheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Holds message bodies too large to travel through the messaging service itself. Each body is stored under a new
+ * reference, which is what gets published in its place.
+ * <p>
+ * References come in with received messages, so implementations must only ever resolve references to blobs they
+ * stored themselves. Implementations must be thread safe.
+ */
+public interface BlobStore {
+
+    /**
+     * @return the reference the blob can be read with
+     */
+    String put(byte[] data) throws IOException;
+
+    /**
+     * @return a stream over the blob, which the caller closes
+     * @throws IOException also if there is no such blob, or the reference is not one of this store's
+     */
+    InputStream open(String reference) throws IOException;
+
+    /**
+     * Deleting a blob that no longer exists is not an error
+     */
+    void delete(String reference) throws IOException;
+}
@@ -0,0 +1,143 @@
+package com.randeepbydesign.pubsub.claimcheck;
+
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Claim-check handling of oversized messages. Publishers store bodies over the threshold in a {@link BlobStore} and
+ * publish the reference in their place, with the {@link MessageAttributes#CLAIM_CHECK} attribute; consumers turn such
+ * messages into a {@link ClaimCheckMessage}, which fetches the body only when it is read, and delete the blob once the
+ * message has been processed and acknowledged.
+ * <p>
+ * Deleting on acknowledgement assumes a single consumer per message. When a topic fans a message out to several
+ * queues the first of them to process it would delete the blob from under the others, so consumers of such topics
+ * should not delete, leaving clean-up to the store, e.g. an S3 lifecycle rule.
+ * <p>
+ * Publishers delete the blob again when its message could not be published. A failure on the client's side, such as a
+ * timeout, may have come after the message was taken, so those blobs are left in place and counted as orphaned; they
+ * too are left to the store to clean up.
+ */
+public class ClaimCheck {
+
+    private static final Logger log = LoggerFactory.getLogger(ClaimCheck.class);
+
+    /**
+     * Default size in bytes above which bodies are stored: what SNS allows for a whole message, less room for its
+     * attributes and the notification envelope SNS wraps bodies delivered to SQS in
+     */
+    public static final int DEFAULT_THRESHOLD = 200 * 1024;
+
+    private final BlobStore blobStore;
+
+    private final int threshold;
+
+    private final boolean deleteOnAcknowledge;
+
+    private final Counter stored;
+
+    private final Counter deleted;
+
+    private final Counter deleteFailed;
+
+    private final Counter discarded;
+
+    private final Counter orphaned;
+
+    public ClaimCheck(BlobStore blobStore) {
+        this(blobStore, DEFAULT_THRESHOLD, true);
+    }
+
+    /**
+     * @param threshold size in bytes, as sent, above which bodies are stored
+     * @param deleteOnAcknowledge false to leave blobs in place once their message is processed
+     */
+    public ClaimCheck(BlobStore blobStore, int threshold, boolean deleteOnAcknowledge) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid claim check threshold: " + threshold);
+        }
+        this.blobStore = blobStore;
+        this.threshold = threshold;
+        this.deleteOnAcknowledge = deleteOnAcknowledge;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        this.stored = metrics.counter("claimcheck.stored");
+        this.deleted = metrics.counter("claimcheck.deleted");
+        this.deleteFailed = metrics.counter("claimcheck.deleteFailed");
+        this.discarded = metrics.counter("claimcheck.discarded");
+        this.orphaned = metrics.counter("claimcheck.orphaned");
+    }
+
+    /**
+     * @return the reference to publish in place of the body
+     */
+    public String store(byte[] body) {
+        try {
+            String ret = blobStore.put(body);
+            stored.increment();
+            return ret;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to store message body of " + body.length + " bytes", e);
+        }
+    }
+
+    public static boolean isClaimCheck(Message message) {
+        return message.getAttribute(MessageAttributes.CLAIM_CHECK) != null;
+    }
+
+    /**
+     * @param message whose body is the reference to the blob holding the real one
+     */
+    public ClaimCheckMessage resolve(Message message) {
+        return new ClaimCheckMessage(message, blobStore);
+    }
+
+    /**
+     * Delete the message's blob, unless blobs are to be left in place. Failures are logged rather than thrown, since
+     * the message itself is done with.
+     */
+    public void release(ClaimCheckMessage message) {
+        if (!deleteOnAcknowledge) {
+            return;
+        }
+        try {
+            blobStore.delete(message.getReference());
+            deleted.increment();
+        } catch (IOException e) {
+            deleteFailed.increment();
+            log.warn("Unable to delete blob " + message.getReference() + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Delete the blob of a message that was not published, whether or not blobs are deleted on acknowledgement, since
+     * nothing will ever fetch it. Failures are logged and counted as orphaned rather than thrown.
+     */
+    public void discard(String reference) {
+        try {
+            blobStore.delete(reference);
+            discarded.increment();
+        } catch (IOException e) {
+            orphan(reference, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Count the blob of a message that may or may not have been published, and leave it in place
+     */
+    public void orphan(String reference, String reason) {
+        orphaned.increment();
+        log.warn("Leaving behind blob " + reference + " of a message that failed to publish: " + reason);
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+}
@@ -0,0 +1,110 @@
+package com.randeepbydesign.pubsub.claimcheck;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.randeepbydesign.pubsub.BytesMessage;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import com.randeepbydesign.pubsub.codec.Compression;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Message whose body is held in a {@link BlobStore}. Nothing is fetched until the body is read: {@link #openStream}
+ * streams it straight from the store, while {@link #getData} and {@link #getMessage} fetch it once and keep it.
+ * Bodies that were compressed before they were stored are inflated as they are read, so the message carries no
+ * {@link MessageAttributes#CONTENT_ENCODING} attribute.
+ */
+public class ClaimCheckMessage extends BytesMessage {
+
+    private final BlobStore blobStore;
+
+    private final String reference;
+
+    private final String contentEncoding;
+
+    /**
+     * Size of the blob in bytes, as published in the {@link MessageAttributes#CLAIM_CHECK} attribute; 0 if unknown
+     */
+    private final int size;
+
+    private volatile ByteBuffer data;
+
+    ClaimCheckMessage(Message message, BlobStore blobStore) {
+        super(message.getMessageId(), message.getSubject(), message.getMessageType(), null,
+                withoutContentEncoding(message.getAttributes()));
+        this.blobStore = blobStore;
+        this.reference = message.getMessage().trim();
+        this.contentEncoding = message.getAttribute(MessageAttributes.CONTENT_ENCODING);
+        int size;
+        try {
+            size = Integer.parseInt(message.getAttribute(MessageAttributes.CLAIM_CHECK));
+        } catch (NumberFormatException e) {
+            size = 0;
+        }
+        this.size = size;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    /**
+     * @return a stream over the body, read from the store unless it has been fetched already; the caller closes it
+     */
+    public InputStream openStream() throws IOException {
+        ByteBuffer fetched = data;
+        if (fetched != null) {
+            return new ByteBufferBackedInputStream(fetched.duplicate());
+        }
+        if (contentEncoding != null && !Compression.DEFLATE_ENCODING.equals(contentEncoding)) {
+            throw new IOException("Unsupported content encoding " + contentEncoding);
+        }
+        InputStream in = blobStore.open(reference);
+        return contentEncoding == null ? in : new InflaterInputStream(in);
+    }
+
+    /**
+     * Fetches the body from the store on first use
+     *
+     * @throws RuntimeException if it cannot be fetched
+     */
+    @Override
+    public ByteBuffer getData() {
+        ByteBuffer ret = data;
+        if (ret == null) {
+            synchronized (this) {
+                ret = data;
+                if (ret == null) {
+                    ret = fetch();
+                    data = ret;
+                }
+            }
+        }
+        return ret.duplicate();
+    }
+
+    private ByteBuffer fetch() {
+        try (InputStream in = openStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(8192, size));
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to fetch message body " + reference, e);
+        }
+    }
+
+    private static Map<String, String> withoutContentEncoding(Map<String, String> attributes) {
+        Map<String, String> ret = new HashMap<>(attributes);
+        ret.remove(MessageAttributes.CONTENT_ENCODING);
+        return ret;
+    }
+}
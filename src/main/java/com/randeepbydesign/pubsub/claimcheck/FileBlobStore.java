@@ -0,0 +1,69 @@
+package com.randeepbydesign.pubsub.claimcheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Stores each blob as a file in one directory, referenced by its file URI. Suited to publishers and consumers on the
+ * same host or sharing a network file system, and to local testing.
+ */
+public class FileBlobStore implements BlobStore {
+
+    private final Path directory;
+
+    /**
+     * @param directory created if it does not exist
+     */
+    public FileBlobStore(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create blob directory " + this.directory, e);
+        }
+    }
+
+    @Override
+    public String put(byte[] data) throws IOException {
+        Path file = directory.resolve(UUID.randomUUID().toString());
+        Files.write(file, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return file.toUri().toString();
+    }
+
+    @Override
+    public InputStream open(String reference) throws IOException {
+        return Files.newInputStream(file(reference));
+    }
+
+    @Override
+    public void delete(String reference) throws IOException {
+        Files.deleteIfExists(file(reference));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @throws IOException if the reference is not a file directly inside the directory
+     */
+    private Path file(String reference) throws IOException {
+        Path file;
+        try {
+            file = Paths.get(URI.create(reference)).normalize();
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            throw new IOException("Not a file reference: " + reference, e);
+        }
+        if (!directory.equals(file.getParent())) {
+            throw new IOException("Reference is not a blob in " + directory + ": " + reference);
+        }
+        return file;
+    }
+}
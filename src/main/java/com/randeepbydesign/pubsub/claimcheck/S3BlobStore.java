@@ -0,0 +1,78 @@
+package com.randeepbydesign.pubsub.claimcheck;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Stores each blob as an object in an S3 bucket, referenced as s3://bucket/key. An S3 lifecycle rule expiring objects
+ * under the key prefix cleans up blobs whose messages were never processed, e.g. those that ended up in a dead-letter
+ * queue and were discarded.
+ */
+public class S3BlobStore implements BlobStore {
+
+    private final AmazonS3 s3;
+
+    private final String bucketName;
+
+    private final String keyPrefix;
+
+    public S3BlobStore(AmazonS3 s3, String bucketName) {
+        this(s3, bucketName, "");
+    }
+
+    /**
+     * @param keyPrefix put in front of every key, e.g. "claim-checks/"
+     */
+    public S3BlobStore(AmazonS3 s3, String bucketName, String keyPrefix) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.keyPrefix = keyPrefix;
+    }
+
+    @Override
+    public String put(byte[] data) throws IOException {
+        String key = keyPrefix + UUID.randomUUID();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(data.length);
+        try {
+            s3.putObject(bucketName, key, new ByteArrayInputStream(data), metadata);
+        } catch (AmazonClientException e) {
+            throw new IOException("Unable to store blob in " + bucketName, e);
+        }
+        return "s3://" + bucketName + "/" + key;
+    }
+
+    @Override
+    public InputStream open(String reference) throws IOException {
+        try {
+            return s3.getObject(bucketName, key(reference)).getObjectContent();
+        } catch (AmazonClientException e) {
+            throw new IOException("Unable to read blob " + reference, e);
+        }
+    }
+
+    @Override
+    public void delete(String reference) throws IOException {
+        try {
+            s3.deleteObject(bucketName, key(reference));
+        } catch (AmazonClientException e) {
+            throw new IOException("Unable to delete blob " + reference, e);
+        }
+    }
+
+    /**
+     * @throws IOException if the reference is not under this store's bucket and key prefix
+     */
+    private String key(String reference) throws IOException {
+        String prefix = "s3://" + bucketName + "/" + keyPrefix;
+        if (!reference.startsWith(prefix) || reference.length() == prefix.length()) {
+            throw new IOException("Reference is not a blob under " + prefix + ": " + reference);
+        }
+        return reference.substring(prefix.length() - keyPrefix.length());
+    }
+}
@@ -0,0 +1,25 @@
+package com.randeepbydesign.pubsub.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * CBOR, a binary JSON data model: the same objects as {@link JsonCodec} with the same field names, but numbers and
+ * booleans are written as binary values and strings are length-prefixed rather than quoted and escaped. It needs no
+ * agreement between publisher and consumer beyond the content type.
+ */
+public class CborCodec extends JacksonCodec {
+
+    public static final String CONTENT_TYPE = "application/cbor";
+
+    public CborCodec() {
+        this(new ObjectMapper(new CBORFactory()));
+    }
+
+    /**
+     * @param objectMapper must be built on a CBORFactory
+     */
+    public CborCodec(ObjectMapper objectMapper) {
+        super(objectMapper, CONTENT_TYPE, true);
+    }
+}
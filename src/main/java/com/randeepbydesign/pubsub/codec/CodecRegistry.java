@@ -0,0 +1,76 @@
+package com.randeepbydesign.pubsub.codec;
+
+import com.randeepbydesign.pubsub.BytesMessage;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Looks codecs up by the content type a message was published with. Messages without a content type were published
+ * before codecs were negotiated, and are decoded with the default codec.
+ */
+public class CodecRegistry {
+
+    private final MessageCodec defaultCodec;
+
+    private final Map<String, MessageCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * JSON by default, plus CBOR
+     */
+    public CodecRegistry() {
+        this(new JsonCodec(), new CborCodec());
+    }
+
+    /**
+     * @param defaultCodec used for messages without a content type
+     * @param codecs registered along with the default codec
+     */
+    public CodecRegistry(MessageCodec defaultCodec, MessageCodec... codecs) {
+        this.defaultCodec = defaultCodec;
+        register(defaultCodec);
+        for (MessageCodec codec : codecs) {
+            register(codec);
+        }
+    }
+
+    /**
+     * Adds a codec, replacing any registered for the same content type
+     */
+    public CodecRegistry register(MessageCodec codec) {
+        codecs.put(codec.getContentType(), codec);
+        return this;
+    }
+
+    /**
+     * @param contentType null for the default codec
+     * @return null if no codec is registered for the content type
+     */
+    public MessageCodec forContentType(String contentType) {
+        return contentType == null ? defaultCodec : codecs.get(contentType);
+    }
+
+    /**
+     * Decode the message body with the codec for its content type: straight from the bytes of a {@link BytesMessage},
+     * otherwise from the body as {@link MessageCodec#encodeText} wrote it
+     *
+     * @throws IOException also if no codec is registered for the content type
+     */
+    public <T> T decode(Message message, Class<T> type) throws IOException {
+        String contentType = message.getAttribute(MessageAttributes.CONTENT_TYPE);
+        MessageCodec codec = forContentType(contentType);
+        if (codec == null) {
+            throw new IOException("No codec registered for content type " + contentType);
+        }
+        if (message instanceof BytesMessage) {
+            return codec.decode(((BytesMessage) message).getData(), type);
+        }
+        return codec.decodeText(message.getMessage(), type);
+    }
+
+    public MessageCodec getDefaultCodec() {
+        return defaultCodec;
+    }
+}
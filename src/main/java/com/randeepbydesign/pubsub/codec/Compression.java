@@ -0,0 +1,73 @@
+package com.randeepbydesign.pubsub.codec;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compression algorithms publishers can apply to message bodies. Both write the zlib format, so consumers inflate them
+ * the same way whatever level they were written at.
+ */
+public enum Compression {
+
+    /**
+     * zlib's default level, a good balance of size and speed for JSON
+     */
+    DEFLATE(Deflater.DEFAULT_COMPRESSION),
+
+    /**
+     * zlib's fastest level; several times quicker than the default at the cost of somewhat larger output
+     */
+    DEFLATE_FAST(Deflater.BEST_SPEED);
+
+    /**
+     * {@link com.randeepbydesign.pubsub.MessageAttributes#CONTENT_ENCODING} of bodies compressed by any of these
+     */
+    public static final String DEFLATE_ENCODING = "deflate";
+
+    private final int level;
+
+    /**
+     * Deflaters hold native buffers that are costly to set up, so each thread keeps one per level and resets it
+     */
+    private final ThreadLocal<Deflater> deflaters;
+
+    Compression(int level) {
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    public String getContentEncoding() {
+        return DEFLATE_ENCODING;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param maxLength size the output must come in under for compressing to be worthwhile
+     * @return the compressed bytes, or null if they would not be smaller than maxLength
+     */
+    byte[] compress(byte[] data, int maxLength) {
+        if (maxLength <= 0) {
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[maxLength];
+            int length = 0;
+            while (!deflater.finished() && length < maxLength) {
+                length += deflater.deflate(buffer, length, maxLength - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] ret = new byte[length];
+            System.arraycopy(buffer, 0, ret, 0, length);
+            return ret;
+        } finally {
+            deflater.reset();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.randeepbydesign.pubsub.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec backed by a Jackson ObjectMapper, for whichever data format the mapper's factory writes
+ */
+public class JacksonCodec implements MessageCodec {
+
+    private final ObjectMapper objectMapper;
+
+    private final String contentType;
+
+    private final boolean binary;
+
+    public JacksonCodec(ObjectMapper objectMapper, String contentType, boolean binary) {
+        this.objectMapper = objectMapper;
+        this.contentType = contentType;
+        this.binary = binary;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        return objectMapper.writeValueAsBytes(value);
+    }
+
+    @Override
+    public <T> T decode(ByteBuffer data, Class<T> type) throws IOException {
+        if (data.hasArray()) {
+            return objectMapper.readValue(data.array(), data.arrayOffset() + data.position(), data.remaining(), type);
+        }
+        return objectMapper.readValue(new ByteBufferBackedInputStream(data.duplicate()), type);
+    }
+
+    protected ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+}
@@ -0,0 +1,33 @@
+package com.randeepbydesign.pubsub.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+
+/**
+ * Plain JSON, which is what messages without a content type are taken to be
+ */
+public class JsonCodec extends JacksonCodec {
+
+    public static final String CONTENT_TYPE = "application/json";
+
+    public JsonCodec() {
+        this(new ObjectMapper());
+    }
+
+    public JsonCodec(ObjectMapper objectMapper) {
+        super(objectMapper, CONTENT_TYPE, false);
+    }
+
+    /**
+     * Writes the string directly rather than going through UTF-8 bytes
+     */
+    @Override
+    public String encodeText(Object value) throws IOException {
+        return getObjectMapper().writeValueAsString(value);
+    }
+
+    @Override
+    public <T> T decodeText(String text, Class<T> type) throws IOException {
+        return getObjectMapper().readValue(text, type);
+    }
+}
@@ -0,0 +1,59 @@
+package com.randeepbydesign.pubsub.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Turns message objects into bytes and back. Publishers send the codec's content type along in the
+ * {@link com.randeepbydesign.pubsub.MessageAttributes#CONTENT_TYPE} attribute so that consumers can pick the matching
+ * codec from a {@link CodecRegistry}.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface MessageCodec {
+
+    String getContentType();
+
+    /**
+     * @return true if encoded messages are not UTF-8 text, so that they have to be base64 encoded to travel as SNS and
+     * SQS message bodies
+     */
+    boolean isBinary();
+
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * @param data read from position to limit; implementations must not change the buffer's position
+     */
+    <T> T decode(ByteBuffer data, Class<T> type) throws IOException;
+
+    /**
+     * Encode for transports whose message bodies are strings: UTF-8 text as is, anything else base64 encoded
+     */
+    default String encodeText(Object value) throws IOException {
+        return toText(encode(value));
+    }
+
+    /**
+     * @param encoded as written by {@link #encode}
+     * @return the bytes as {@link #encodeText} would have written them
+     */
+    default String toText(byte[] encoded) {
+        return isBinary() ? Base64.getEncoder().encodeToString(encoded) : new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reverse of {@link #encodeText}
+     */
+    default <T> T decodeText(String text, Class<T> type) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = isBinary() ? Base64.getDecoder().decode(text) : text.getBytes(StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Message body is not base64 encoded", e);
+        }
+        return decode(ByteBuffer.wrap(bytes), type);
+    }
+}
@@ -0,0 +1,148 @@
+package com.randeepbydesign.pubsub.codec;
+
+import com.randeepbydesign.pubsub.BytesMessage;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses message bodies of at least a threshold size. Publishers send compressed bodies with the
+ * {@link MessageAttributes#CONTENT_ENCODING} attribute, and consumers undo it with {@link #decompress} before the body
+ * reaches the message processor. Bodies that do not shrink enough to be worth it are sent as they are.
+ * <p>
+ * Instances are thread safe.
+ */
+public class PayloadCompressor {
+
+    /**
+     * Default size in bytes below which bodies are not compressed; smaller bodies seldom shrink by much
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * Largest body, in bytes, a compressed message may inflate to
+     */
+    static final int MAX_DECOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final Compression compression;
+
+    private final int threshold;
+
+    public PayloadCompressor(Compression compression) {
+        this(compression, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold size in bytes from which bodies are compressed
+     */
+    public PayloadCompressor(Compression compression, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid compression threshold: " + threshold);
+        }
+        this.compression = compression;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param maxLength size the compressed body must come in under to be sent instead of the original, e.g. less than
+     * the original's length, or three quarters of it if the compressed body has to be base64 encoded where the original
+     * would not be
+     * @return the compressed body, or null if it is below the threshold or does not compress under maxLength
+     */
+    public byte[] compress(byte[] body, int maxLength) {
+        if (body.length < threshold) {
+            return null;
+        }
+        return compression.compress(body, Math.min(maxLength, body.length));
+    }
+
+    public String getContentEncoding() {
+        return compression.getContentEncoding();
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public static boolean isCompressed(Message message) {
+        return message.getAttribute(MessageAttributes.CONTENT_ENCODING) != null;
+    }
+
+    /**
+     * Inflate the body of a compressed message: straight from the bytes of a {@link BytesMessage}, otherwise from the
+     * base64 text it travelled as. The returned message is otherwise the same, without the
+     * {@link MessageAttributes#CONTENT_ENCODING} attribute.
+     *
+     * @throws IOException if the encoding is not one this library writes or the body is corrupt
+     */
+    public static BytesMessage decompress(Message message) throws IOException {
+        String contentEncoding = message.getAttribute(MessageAttributes.CONTENT_ENCODING);
+        if (!Compression.DEFLATE_ENCODING.equals(contentEncoding)) {
+            throw new IOException("Unsupported content encoding " + contentEncoding);
+        }
+        ByteBuffer data;
+        if (message instanceof BytesMessage) {
+            data = ((BytesMessage) message).getData();
+        } else {
+            try {
+                data = ByteBuffer.wrap(Base64.getDecoder().decode(message.getMessage()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Compressed message body is not base64 encoded", e);
+            }
+        }
+        Map<String, String> attributes = new HashMap<>(message.getAttributes());
+        attributes.remove(MessageAttributes.CONTENT_ENCODING);
+        return new BytesMessage(message.getMessageId(), message.getSubject(), message.getMessageType(), inflate(data),
+                attributes);
+    }
+
+    private static ByteBuffer inflate(ByteBuffer data) throws IOException {
+        byte[] input;
+        int offset;
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            input = new byte[data.remaining()];
+            data.duplicate().get(input);
+            offset = 0;
+        }
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(input, offset, data.remaining());
+            // Bodies worth compressing usually shrink to a quarter of their size or less
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(MAX_DECOMPRESSED_LENGTH,
+                    data.remaining() * 4));
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed message body is truncated");
+                }
+                if (out.size() + length > MAX_DECOMPRESSED_LENGTH) {
+                    throw new IOException("Compressed message body inflates beyond " + MAX_DECOMPRESSED_LENGTH
+                            + " bytes");
+                }
+                out.write(buffer, 0, length);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed message body is corrupt", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
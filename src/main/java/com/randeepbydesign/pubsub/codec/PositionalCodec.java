@@ -0,0 +1,36 @@
+package com.randeepbydesign.pubsub.codec;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * The most compact codec: CBOR with the objects of the registered classes written as arrays of their property values,
+ * in alphabetical order of property name, so no field names are sent at all. The classes act as the schema, which
+ * means publishers and consumers must register the same classes with the same properties; adding, removing or
+ * renaming a property breaks compatibility, so change the class together with the subject or topic it is sent on.
+ * Objects of other classes are written as {@link CborCodec} writes them.
+ */
+public class PositionalCodec extends JacksonCodec {
+
+    public static final String CONTENT_TYPE = "application/x-positional+cbor";
+
+    public PositionalCodec(Class<?>... schemaClasses) {
+        super(createObjectMapper(schemaClasses), CONTENT_TYPE, true);
+    }
+
+    private static ObjectMapper createObjectMapper(Class<?>... schemaClasses) {
+        ObjectMapper objectMapper = new ObjectMapper(new CBORFactory());
+        // Both sides must agree on the order, which reflection does not guarantee
+        objectMapper.configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+        for (Class<?> schemaClass : schemaClasses) {
+            objectMapper.addMixIn(schemaClass, AsArray.class);
+        }
+        return objectMapper;
+    }
+
+    @JsonFormat(shape = JsonFormat.Shape.ARRAY)
+    private abstract static class AsArray {
+    }
+}
@@ -0,0 +1,115 @@
+package com.randeepbydesign.pubsub.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calls to a dependency that is failing consistently.
+ * <p>
+ * The breaker starts closed and lets every call through. After failureThreshold failures in a row it opens and refuses
+ * calls for the open time. Once that has passed it lets a single trial call through: if the trial succeeds the breaker
+ * closes again, if it fails the breaker stays open for another open time. A trial that never reports back is replaced
+ * by another one after the open time.
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * In millis; the pause suggested to callers while a trial call is under way
+     */
+    private static final long TRIAL_PAUSE = 100l;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    /**
+     * While open, when the next trial is due; while half open, when the trial under way is given up on
+     */
+    private long openUntil;
+
+    /**
+     * @param failureThreshold number of failures in a row that opens the breaker
+     * @param openTime in millis; how long the breaker stays open before a trial call is let through
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openTime) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be at least 1");
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openTime);
+    }
+
+    /**
+     * @return true if the call may go ahead; the caller must then report its outcome
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            default:
+                long now = System.nanoTime();
+                if (now - openUntil < 0) {
+                    // Still open, or a trial call is already under way
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                openUntil = now + openNanos;
+                log.info("Circuit " + name + " half open; letting a trial call through");
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            log.info("Circuit " + name + " closed");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openUntil = System.nanoTime() + openNanos;
+            log.warn("Circuit " + name + " open after " + consecutiveFailures + " consecutive failures");
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return in millis; how long callers should hold off before trying again, 0 if calls are allowed now
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        long remaining = openUntil - System.nanoTime();
+        if (remaining <= 0) {
+            return 0;
+        }
+        if (state == State.HALF_OPEN) {
+            return Math.min(TRIAL_PAUSE, Math.max(1l, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+        return Math.max(1l, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+}
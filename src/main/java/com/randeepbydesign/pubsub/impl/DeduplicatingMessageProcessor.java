@@ -0,0 +1,101 @@
+package com.randeepbydesign.pubsub.impl;
+
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageProcessor;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Skips messages that have already been processed, as happens when SQS redelivers a message whose delete did not go
+ * through or when the KCL replays records after a rebalance.
+ * <p>
+ * Messages are identified by the id the publishing service gave them ({@link Message#SOURCE_ID_ATTRIBUTE}, e.g. the
+ * SNS MessageId) or, when there is none, by the message id, which for Kinesis records is the sequence number, along
+ * with the subsequence number for records the KPL aggregated. The SQS receipt handle cannot be used as it changes with
+ * every delivery. A message is remembered only once the delegate has processed it, so failed messages are still
+ * retried. A duplicate is reported as processed so that the consumer acknowledges it.
+ * <p>
+ * Duplicates skipped and messages handed on are counted in the default {@link MetricRegistry} under "dedup." and the
+ * name.
+ *
+ * @see IdempotencyCache
+ */
+public class DeduplicatingMessageProcessor implements MessageProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(DeduplicatingMessageProcessor.class);
+
+    private final MessageProcessor delegate;
+
+    private final IdempotencyCache processed;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    /**
+     * @param name names the metrics, e.g. after the queue or stream consumed
+     * @param maxEntries most message ids remembered at once
+     * @param ttl in millis; how long a message id is remembered for, which should cover the redelivery window, e.g. the
+     * queue's visibility timeout or the time between checkpoints
+     * @param bloomFilter whether to put a Bloom filter in front of the cache
+     */
+    public DeduplicatingMessageProcessor(String name, MessageProcessor delegate, int maxEntries, long ttl,
+            boolean bloomFilter) {
+        this.delegate = delegate;
+        this.processed = new IdempotencyCache(maxEntries, ttl, bloomFilter);
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "dedup." + name + ".";
+        this.hits = metrics.counter(prefix + "hits");
+        this.misses = metrics.counter(prefix + "misses");
+        metrics.gauge(prefix + "cached", processed::size);
+    }
+
+    @Override
+    public String processMessage(Message message) {
+        String key = key(message);
+        if (key != null && processed.contains(key)) {
+            hits.increment();
+            log.debug("Skipping duplicate message " + key);
+            return message.getMessageId();
+        }
+        misses.increment();
+        String receipt = delegate.processMessage(message);
+        if (key != null) {
+            processed.add(key);
+        }
+        return receipt;
+    }
+
+    @Override
+    public long pauseMillis() {
+        return delegate.pauseMillis();
+    }
+
+    /**
+     * @return the number of duplicate messages skipped
+     */
+    public long getHitCount() {
+        return hits.getCount();
+    }
+
+    /**
+     * @return the number of messages handed to the delegate
+     */
+    public long getMissCount() {
+        return misses.getCount();
+    }
+
+    /**
+     * @return the number of message ids currently remembered
+     */
+    public int getCachedCount() {
+        return processed.size();
+    }
+
+    static String key(Message message) {
+        String sourceId = message.getAttribute(Message.SOURCE_ID_ATTRIBUTE);
+        return sourceId != null ? sourceId : message.getMessageId();
+    }
+}
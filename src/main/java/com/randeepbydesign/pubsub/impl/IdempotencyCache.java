@@ -0,0 +1,181 @@
+package com.randeepbydesign.pubsub.impl;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers keys for a limited time in a bounded amount of memory.
+ * <p>
+ * Keys are spread over a number of segments, each an insertion-ordered map with its own lock, so that threads seldom
+ * contend. A segment holds at most its share of maxEntries; adding beyond that evicts its oldest key. Keys also expire
+ * once the TTL has passed since they were added.
+ * <p>
+ * Optionally a Bloom filter sits in front of the segments as a fast path for keys that have never been seen, which is
+ * the common case. It is split into two generations that are swapped every TTL, so a key stays in the filter for at
+ * least as long as it can stay in the cache. A false positive from the filter only costs a lookup in the segments; the
+ * segments always have the final say.
+ */
+public class IdempotencyCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private final Segment[] segments;
+
+    private final long ttlNanos;
+
+    private final boolean bloomEnabled;
+
+    private final int bloomCapacity;
+
+    private volatile BloomFilter<CharSequence> currentBloom;
+
+    private volatile BloomFilter<CharSequence> previousBloom;
+
+    private long bloomRotateAt;
+
+    /**
+     * @param maxEntries most keys held at once
+     * @param ttl in millis; how long a key is remembered for
+     * @param bloomFilter whether to put a Bloom filter in front of the cache
+     */
+    public IdempotencyCache(int maxEntries, long ttl, boolean bloomFilter) {
+        if (maxEntries < SEGMENTS) {
+            throw new IllegalArgumentException("Cache must hold at least " + SEGMENTS + " entries");
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxEntries / SEGMENTS);
+        }
+        this.bloomEnabled = bloomFilter;
+        this.bloomCapacity = maxEntries;
+        if (bloomFilter) {
+            currentBloom = newBloom();
+            previousBloom = newBloom();
+            bloomRotateAt = System.nanoTime() + ttlNanos;
+        }
+    }
+
+    /**
+     * @return true if the key was added within the TTL and has not been evicted since
+     */
+    public boolean contains(String key) {
+        if (bloomEnabled && !bloomMightContain(key)) {
+            return false;
+        }
+        return segment(key).contains(key, System.nanoTime());
+    }
+
+    public void add(String key) {
+        long now = System.nanoTime();
+        segment(key).add(key, now, now + ttlNanos);
+        if (bloomEnabled) {
+            bloomPut(key, now);
+        }
+    }
+
+    /**
+     * @return the number of keys held, including any that have expired but not yet been cleared out
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segment(String key) {
+        int hash = key.hashCode();
+        // Spread the bits so that keys sharing a suffix do not pile into one segment
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % SEGMENTS];
+    }
+
+    /**
+     * Reads without the lock; a read racing a put of the same key may miss it, which at worst lets through a duplicate
+     * that is being processed at that very moment
+     */
+    private boolean bloomMightContain(String key) {
+        return currentBloom.mightContain(key) || previousBloom.mightContain(key);
+    }
+
+    private synchronized void bloomPut(String key, long now) {
+        if (now - bloomRotateAt >= 0) {
+            previousBloom = currentBloom;
+            currentBloom = newBloom();
+            bloomRotateAt = now + ttlNanos;
+        }
+        currentBloom.put(key);
+    }
+
+    private BloomFilter<CharSequence> newBloom() {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), bloomCapacity,
+                BLOOM_FALSE_POSITIVE_RATE);
+    }
+
+    private static class Segment {
+
+        private final int capacity;
+
+        /**
+         * Key to the time it expires, oldest first
+         */
+        private final LinkedHashMap<String, Long> entries;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > Segment.this.capacity;
+                }
+            };
+        }
+
+        synchronized boolean contains(String key, long now) {
+            Long expiresAt = entries.get(key);
+            if (expiresAt == null) {
+                return false;
+            }
+            if (now - expiresAt >= 0) {
+                entries.remove(key);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void add(String key, long now, long expiresAt) {
+            // Re-insert so that the key moves to the young end
+            entries.remove(key);
+            entries.put(key, expiresAt);
+            expire(now);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        /**
+         * Drop expired keys from the old end; entries are ordered by insertion and all share one TTL, so the first key
+         * that has not expired ends the sweep
+         */
+        private void expire(long now) {
+            Iterator<Long> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next() < 0) {
+                    return;
+                }
+                it.remove();
+            }
+        }
+    }
+}
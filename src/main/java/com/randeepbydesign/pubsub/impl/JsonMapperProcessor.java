@@ -1,29 +1,65 @@
 package com.randeepbydesign.pubsub.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.randeepbydesign.pubsub.BytesMessage;
 import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
 import com.randeepbydesign.pubsub.MessageProcessor;
+import com.randeepbydesign.pubsub.claimcheck.ClaimCheckMessage;
+import com.randeepbydesign.pubsub.codec.CodecRegistry;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Deserializes each message into an object of the given class before processing it. JSON messages, and those published
+ * without a content type, are read with the ObjectMapper; other content types with the matching codec of the
+ * {@link CodecRegistry}. JSON bodies held by a claim check are streamed from the blob store into the ObjectMapper.
+ */
 public abstract class JsonMapperProcessor<T> implements MessageProcessor {
 
     Logger log = LoggerFactory.getLogger(JsonMapperProcessor.class);
 
     private ObjectMapper objectMapper;
     private Class<T> clazz;
+    private ObjectReader reader;
+    private CodecRegistry codecs;
 
     public JsonMapperProcessor(ObjectMapper objectMapper, Class<T> clazz) {
+        this(objectMapper, clazz, new CodecRegistry());
+    }
+
+    /**
+     * @param codecs for messages published with a content type other than JSON
+     */
+    public JsonMapperProcessor(ObjectMapper objectMapper, Class<T> clazz, CodecRegistry codecs) {
         this.objectMapper = objectMapper;
         this.clazz = clazz;
+        this.reader = objectMapper.readerFor(clazz);
+        this.codecs = codecs;
     }
 
     @Override
     public String processMessage(Message message) {
         T ret;
+        String contentType = message.getAttribute(MessageAttributes.CONTENT_TYPE);
         try {
-            ret = objectMapper.readValue(message.getMessage(), clazz);
+            if (contentType != null && !JsonCodec.CONTENT_TYPE.equals(contentType)) {
+                ret = codecs.decode(message, clazz);
+            } else if (message instanceof ClaimCheckMessage) {
+                try (InputStream in = ((ClaimCheckMessage) message).openStream()) {
+                    ret = reader.readValue(in);
+                }
+            } else if (message instanceof BytesMessage) {
+                ret = read(((BytesMessage) message).getData());
+            } else {
+                ret = reader.readValue(message.getMessage());
+            }
         } catch (IOException e) {
             log.error("Unable to deserialize message", e);
             throw new RuntimeException(e);
@@ -32,5 +68,15 @@ public abstract class JsonMapperProcessor<T> implements MessageProcessor {
         return message.getMessageId();
     }
 
+    /**
+     * Deserialize straight from the received bytes without decoding them to a String first
+     */
+    private T read(ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            return reader.readValue(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        return reader.readValue(new ByteBufferBackedInputStream(data));
+    }
+
     public abstract Object processMessageObject(T objectInstance);
 }
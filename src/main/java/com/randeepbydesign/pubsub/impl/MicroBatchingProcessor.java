@@ -0,0 +1,153 @@
+package com.randeepbydesign.pubsub.impl;
+
+import com.randeepbydesign.pubsub.BatchMessageProcessor;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageProcessor;
+import com.randeepbydesign.pubsub.ProcessingResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets code that hands over one message at a time use a {@link BatchMessageProcessor} efficiently. Calls to
+ * {@link #processMessage} from concurrent threads, such as the workers of a consumer, are gathered into a batch that is
+ * processed once it holds maxBatchSize messages or its oldest message has waited for the linger time. Each caller
+ * blocks until its batch has been processed and gets back the result for its own message.
+ * <p>
+ * This is deliberately not a {@link BatchMessageProcessor} itself, since consumers hand those their batches whole.
+ * Batches are gathered when it is given to an {@link com.randeepbydesign.pubsub.sqssns.SqsConsumer} with several
+ * workers, each of which processes one message at a time; a caller with a single thread, such as the processor of a
+ * Kinesis shard, would only wait out the linger time for every message.
+ * <p>
+ * {@link #close()} stops the linger timer.
+ */
+public class MicroBatchingProcessor implements MessageProcessor {
+
+    private final BatchMessageProcessor delegate;
+
+    private final int maxBatchSize;
+
+    private final long linger;
+
+    private final ScheduledExecutorService lingerTimer;
+
+    private List<Entry> buffer;
+
+    private boolean closed;
+
+    /**
+     * @param linger in millis; the longest a message waits for its batch to fill up
+     */
+    public MicroBatchingProcessor(BatchMessageProcessor delegate, int maxBatchSize, long linger) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.delegate = delegate;
+        this.maxBatchSize = maxBatchSize;
+        this.linger = linger;
+        this.buffer = new ArrayList<>(maxBatchSize);
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "micro-batch-linger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public String processMessage(Message message) {
+        Entry entry = new Entry(message);
+        List<Entry> full = null;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Processor is closed");
+            }
+            buffer.add(entry);
+            if (buffer.size() == 1) {
+                List<Entry> batch = buffer;
+                lingerTimer.schedule(() -> flush(batch), linger, TimeUnit.MILLISECONDS);
+            }
+            if (buffer.size() == maxBatchSize) {
+                full = drain();
+            }
+        }
+        if (full != null) {
+            // The caller that fills the batch processes it rather than waiting on the timer thread
+            process(full);
+        }
+        try {
+            return entry.result.get().getReceiptOrThrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for batch to be processed", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to process batch", e.getCause());
+        }
+    }
+
+    @Override
+    public long pauseMillis() {
+        return delegate.pauseMillis();
+    }
+
+    /**
+     * Stop taking messages and process the batch being gathered on the calling thread, so that its callers are not left
+     * waiting for a timer that no longer runs
+     */
+    public void close() {
+        List<Entry> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending = drain();
+        }
+        lingerTimer.shutdownNow();
+        if (!pending.isEmpty()) {
+            process(pending);
+        }
+    }
+
+    /**
+     * Process the batch the linger timer was started for, if it has not been processed already
+     */
+    private void flush(List<Entry> batch) {
+        synchronized (this) {
+            if (buffer != batch) {
+                return;
+            }
+            drain();
+        }
+        process(batch);
+    }
+
+    private List<Entry> drain() {
+        List<Entry> ret = buffer;
+        buffer = new ArrayList<>(maxBatchSize);
+        return ret;
+    }
+
+    private void process(List<Entry> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        batch.forEach(entry -> messages.add(entry.message));
+        List<ProcessingResult> results = BatchMessageProcessor.processBatch(delegate, messages);
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(results.get(i));
+        }
+    }
+
+    private static class Entry {
+
+        private final Message message;
+
+        private final CompletableFuture<ProcessingResult> result = new CompletableFuture<>();
+
+        Entry(Message message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.randeepbydesign.pubsub.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageProcessor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries a message processor in-process before a failure is handed back to the consumer.
+ * <p>
+ * Attempts are spaced by exponential backoff with full jitter: the wait before attempt n is a random time between 0 and
+ * min(maxBackoff, initialBackoff * 2^(n-1)), which keeps consumers that failed together from retrying in lockstep. Only
+ * exceptions the classifier deems retryable are retried; anything else, e.g. a message that cannot be deserialized,
+ * fails straight away.
+ * <p>
+ * With a {@link CircuitBreaker} every attempt that fails with a retryable exception counts against it. While the
+ * breaker is open messages fail without reaching the delegate and {@link #pauseMillis()} asks consumers to stop
+ * polling until a trial call is due.
+ */
+public class RetryingMessageProcessor implements MessageProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(RetryingMessageProcessor.class);
+
+    private final MessageProcessor delegate;
+
+    private final int maxAttempts;
+
+    private final long initialBackoff;
+
+    private final long maxBackoff;
+
+    private final Predicate<Exception> retryable;
+
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Retries everything but the exceptions {@link #isRetryable} considers fatal, without a circuit breaker
+     */
+    public RetryingMessageProcessor(MessageProcessor delegate, int maxAttempts, long initialBackoff, long maxBackoff) {
+        this(delegate, maxAttempts, initialBackoff, maxBackoff, RetryingMessageProcessor::isRetryable, null);
+    }
+
+    /**
+     * @param maxAttempts number of times the delegate is called for a message, including the first
+     * @param initialBackoff in millis; the upper bound of the wait before the first retry
+     * @param maxBackoff in millis; the upper bound of the wait before any retry
+     * @param retryable returns true for exceptions worth trying again
+     * @param circuitBreaker may be null
+     */
+    public RetryingMessageProcessor(MessageProcessor delegate, int maxAttempts, long initialBackoff, long maxBackoff,
+            Predicate<Exception> retryable, CircuitBreaker circuitBreaker) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least 1 attempt is required");
+        }
+        this.delegate = delegate;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.retryable = retryable;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public String processMessage(Message message) {
+        for (int attempt = 1; ; attempt++) {
+            if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+                throw new RuntimeException("Circuit open; not processing message " + message.getMessageId());
+            }
+            try {
+                String receipt = delegate.processMessage(message);
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordSuccess();
+                }
+                return receipt;
+            } catch (RuntimeException e) {
+                if (!retryable.test(e)) {
+                    // The message is at fault rather than the dependency, so the breaker is left alone; a trial call
+                    // that ends this way is replaced by another once the open time has passed
+                    throw e;
+                }
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordFailure();
+                }
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                long backoff = backoff(attempt);
+                log.info("Attempt " + attempt + " at message " + message.getMessageId() + " failed, retrying in "
+                        + backoff + "ms: " + e.getLocalizedMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long pauseMillis() {
+        long pause = circuitBreaker == null ? 0 : circuitBreaker.getRemainingOpenMillis();
+        return Math.max(pause, delegate.pauseMillis());
+    }
+
+    /**
+     * Full jitter: a random wait up to the exponential backoff for the attempt
+     */
+    private long backoff(int attempt) {
+        long ceiling = initialBackoff << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoff) {
+            ceiling = maxBackoff;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * The default classifier: malformed messages and programming errors are fatal, anything else, e.g. a timeout
+     * talking to a dependency, is worth retrying
+     */
+    public static boolean isRetryable(Exception e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof JsonProcessingException || t instanceof IllegalArgumentException
+                    || t instanceof NullPointerException || t instanceof ClassCastException
+                    || t instanceof UnsupportedOperationException) {
+                return false;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,252 @@
+package com.randeepbydesign.pubsub.impl;
+
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageProcessor;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands each message to the processor registered for its routing key, e.g. its subject, message type or an attribute,
+ * so that one consumer can serve many kinds of message:
+ * <pre>
+ * MessageProcessor router = new RoutingMessageProcessor("orders", RoutingMessageProcessor.SUBJECT)
+ *         .route("OrderPlaced", orderProcessor)
+ *         .routePrefix("Inventory", inventoryProcessor, 4)
+ *         .defaultRoute(new PrintlnProcessor());
+ * </pre>
+ * A key matching a route exactly goes to that route, otherwise to the route with the longest matching prefix,
+ * otherwise to the default route; messages with no route at all fail. The route chosen for each key is remembered, so
+ * routing a message is normally a single hash lookup.
+ * <p>
+ * A route may limit how many of its messages are processed at once, so that a slow kind of message cannot take every
+ * worker of the consumer. A message that finds its route full waits for a slot, which holds back the consumer rather
+ * than failing a message that is fine; size the limits below the consumer's worker count so that the other routes
+ * keep some workers.
+ * <p>
+ * Messages that fail for lack of a route, and those that had to wait for a slot, are counted in the default
+ * {@link MetricRegistry} under "router." and the name.
+ * <p>
+ * Routes are to be registered before messages are handed to the processor.
+ */
+public class RoutingMessageProcessor implements MessageProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(RoutingMessageProcessor.class);
+
+    public static final Function<Message, String> SUBJECT = Message::getSubject;
+
+    public static final Function<Message, String> MESSAGE_TYPE = Message::getMessageType;
+
+    /**
+     * Most routing keys whose route is remembered, which bounds the memory used when the keys are, say, ids
+     */
+    static final int MAX_RESOLVED_KEYS = 10000;
+
+    private final Function<Message, String> routingKey;
+
+    private final Map<String, Route> exactRoutes = new HashMap<>();
+
+    /**
+     * Longest prefix first
+     */
+    private final List<Route> prefixRoutes = new ArrayList<>();
+
+    private Route defaultRoute;
+
+    private final Map<String, Route> resolved = new ConcurrentHashMap<>();
+
+    private final Counter unrouted;
+
+    private final Counter throttled;
+
+    /**
+     * @param name names the metrics, e.g. after the queue or stream consumed
+     * @param routingKey returns the key to route a message by, e.g. {@link #SUBJECT}, {@link #MESSAGE_TYPE} or
+     * {@link #attribute}; may return null
+     */
+    public RoutingMessageProcessor(String name, Function<Message, String> routingKey) {
+        this.routingKey = routingKey;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "router." + name + ".";
+        this.unrouted = metrics.counter(prefix + "unrouted");
+        this.throttled = metrics.counter(prefix + "throttled");
+    }
+
+    /**
+     * Route by the value of a message attribute
+     */
+    public static Function<Message, String> attribute(String name) {
+        return message -> message.getAttribute(name);
+    }
+
+    public RoutingMessageProcessor route(String key, MessageProcessor processor) {
+        return route(key, processor, 0);
+    }
+
+    /**
+     * @param maxConcurrency most messages of this route processed at once; 0 for no limit
+     */
+    public RoutingMessageProcessor route(String key, MessageProcessor processor, int maxConcurrency) {
+        exactRoutes.put(key, new Route(key, processor, maxConcurrency));
+        resolved.clear();
+        return this;
+    }
+
+    /**
+     * Route keys starting with the prefix, unless a longer prefix or an exact route matches
+     */
+    public RoutingMessageProcessor routePrefix(String prefix, MessageProcessor processor) {
+        return routePrefix(prefix, processor, 0);
+    }
+
+    public RoutingMessageProcessor routePrefix(String prefix, MessageProcessor processor, int maxConcurrency) {
+        prefixRoutes.removeIf(route -> route.key.equals(prefix));
+        prefixRoutes.add(new Route(prefix, processor, maxConcurrency));
+        prefixRoutes.sort(Comparator.comparingInt((Route route) -> route.key.length()).reversed());
+        resolved.clear();
+        return this;
+    }
+
+    /**
+     * Route the messages no other route matches, including those without a routing key
+     */
+    public RoutingMessageProcessor defaultRoute(MessageProcessor processor) {
+        return defaultRoute(processor, 0);
+    }
+
+    public RoutingMessageProcessor defaultRoute(MessageProcessor processor, int maxConcurrency) {
+        defaultRoute = new Route(null, processor, maxConcurrency);
+        resolved.clear();
+        return this;
+    }
+
+    @Override
+    public String processMessage(Message message) {
+        String key = routingKey.apply(message);
+        Route route = key == null ? defaultRoute : resolve(key);
+        if (route == null) {
+            unrouted.increment();
+            throw new RuntimeException("No route for message " + message.getMessageId() + " with key " + key);
+        }
+        if (route.permits == null) {
+            return route.processor.processMessage(message);
+        }
+        acquire(route);
+        try {
+            return route.processor.processMessage(message);
+        } finally {
+            route.permits.release();
+        }
+    }
+
+    /**
+     * Pauses the consumer only while every route's processor asks for a pause, since the others can still make
+     * progress
+     */
+    @Override
+    public long pauseMillis() {
+        long ret = Long.MAX_VALUE;
+        for (Route route : exactRoutes.values()) {
+            ret = Math.min(ret, route.processor.pauseMillis());
+        }
+        for (Route route : prefixRoutes) {
+            ret = Math.min(ret, route.processor.pauseMillis());
+        }
+        if (defaultRoute != null) {
+            ret = Math.min(ret, defaultRoute.processor.pauseMillis());
+        }
+        return ret == Long.MAX_VALUE ? 0 : ret;
+    }
+
+    /**
+     * @return the number of messages that failed for lack of a route
+     */
+    public long getUnroutedCount() {
+        return unrouted.getCount();
+    }
+
+    /**
+     * @return the number of messages that had to wait for a slot on a route with limited concurrency
+     */
+    public long getThrottledCount() {
+        return throttled.getCount();
+    }
+
+    /**
+     * Waits as long as it takes for a slot on the route
+     */
+    private void acquire(Route route) {
+        if (route.permits.tryAcquire()) {
+            return;
+        }
+        throttled.increment();
+        try {
+            route.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for route " + route.describe(), e);
+        }
+    }
+
+    private Route resolve(String key) {
+        Route ret = resolved.get(key);
+        if (ret != null) {
+            return ret;
+        }
+        ret = exactRoutes.get(key);
+        if (ret == null) {
+            for (Route route : prefixRoutes) {
+                if (key.startsWith(route.key)) {
+                    ret = route;
+                    break;
+                }
+            }
+        }
+        if (ret == null) {
+            ret = defaultRoute;
+        }
+        if (ret != null && resolved.size() < MAX_RESOLVED_KEYS) {
+            resolved.put(key, ret);
+        } else if (ret == null) {
+            log.debug("No route for key " + key);
+        }
+        return ret;
+    }
+
+    private static final class Route {
+
+        /**
+         * Null for the default route
+         */
+        private final String key;
+
+        private final MessageProcessor processor;
+
+        /**
+         * Null for unlimited concurrency
+         */
+        private final Semaphore permits;
+
+        Route(String key, MessageProcessor processor, int maxConcurrency) {
+            if (maxConcurrency < 0) {
+                throw new IllegalArgumentException("Invalid route concurrency: " + maxConcurrency);
+            }
+            this.key = key;
+            this.processor = processor;
+            this.permits = maxConcurrency == 0 ? null : new Semaphore(maxConcurrency);
+        }
+
+        String describe() {
+            return key == null ? "(default)" : key;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.KinesisClientLibRetryableException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.model.Record;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checkpoints a shard up to the highest record below which every record has been processed, without holding up the
+ * threads doing the processing.
+ * <p>
+ * Checkpoints are written by a dedicated thread, which flushes on a fixed interval (whether or not records are
+ * arriving), once a number of records have completed since the last flush, or when asked to. A flush is skipped when
+ * nothing new has become checkpointable, and flush requests made while one is pending are folded into it. When the
+ * lease table throttles a checkpoint, flushing backs off exponentially.
+ *
+ * @see SequenceTracker
+ */
+public class CheckpointTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckpointTracker.class);
+
+    private static final long INITIAL_BACKOFF = 200l;
+
+    private static final long MAX_BACKOFF = 10000l;
+
+    /**
+     * Attempts at the final checkpoint when the shard shuts down
+     */
+    private static final int SHUTDOWN_ATTEMPTS = 3;
+
+    private final String shardId;
+
+    private final int recordThreshold;
+
+    private final SequenceTracker sequences = new SequenceTracker();
+
+    private final ScheduledExecutorService checkpointThread;
+
+    private final AtomicInteger sinceFlush = new AtomicInteger();
+
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+
+    private volatile IRecordProcessorCheckpointer checkpointer;
+
+    /**
+     * Only touched on the checkpoint thread, or after it has stopped
+     */
+    private Record lastCheckpoint;
+
+    private long backoff;
+
+    private long retryAt;
+
+    /**
+     * @param interval in millis; how often to flush. 0 flushes only on the record count or on request
+     * @param recordThreshold number of completed records that triggers a flush; 0 to not count records
+     */
+    public CheckpointTracker(String shardId, long interval, int recordThreshold) {
+        this.shardId = shardId;
+        this.recordThreshold = recordThreshold;
+        this.checkpointThread = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kinesis-checkpoint-" + shardId);
+            t.setDaemon(true);
+            return t;
+        });
+        if (interval > 0) {
+            checkpointThread.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The checkpointer to flush with; the KCL hands the same one to every call for a shard
+     */
+    public void setCheckpointer(IRecordProcessorCheckpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * Register a record; must be called in the order records were delivered
+     */
+    public SequenceTracker.Entry register(Record record) {
+        return sequences.register(record);
+    }
+
+    /**
+     * @param resolved whether the record was dealt with, either processed or handed off after failing; checkpoints do
+     * not move past records that were not
+     */
+    public void complete(SequenceTracker.Entry entry, boolean resolved) {
+        sequences.complete(entry, resolved);
+        if (recordThreshold > 0 && sinceFlush.incrementAndGet() >= recordThreshold) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Flush on the checkpoint thread as soon as it is free
+     */
+    public void requestFlush() {
+        if (!flushPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            checkpointThread.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Closed; the final checkpoint is written by close
+            flushPending.set(false);
+        }
+    }
+
+    public SequenceTracker getSequences() {
+        return sequences;
+    }
+
+    /**
+     * Stop flushing in the background and write the final checkpoint for the shard
+     *
+     * @param shardEnded true when the shard has been read to its end; the shard is then checkpointed as finished if
+     * every record was resolved
+     * @param checkpoint false when the lease has been lost and checkpointing is no longer allowed
+     */
+    public void close(IRecordProcessorCheckpointer checkpointer, boolean shardEnded, boolean checkpoint) {
+        checkpointThread.shutdownNow();
+        try {
+            checkpointThread.awaitTermination(MAX_BACKOFF, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!checkpoint) {
+            return;
+        }
+        Record stalledAt = sequences.getStalledAt();
+        if (stalledAt != null) {
+            log.warn("Shard " + shardId + " is held at unresolved record " + stalledAt.getSequenceNumber());
+        }
+        boolean finished = shardEnded && stalledAt == null && sequences.getOutstandingCount() == 0;
+        Record target = sequences.getCheckpointable();
+        if (!finished && (target == null || target == lastCheckpoint)) {
+            return;
+        }
+        for (int attempt = 1; attempt <= SHUTDOWN_ATTEMPTS; attempt++) {
+            try {
+                if (finished) {
+                    checkpointer.checkpoint();
+                } else {
+                    checkpointer.checkpoint(target);
+                }
+                lastCheckpoint = target;
+                return;
+            } catch (KinesisClientLibRetryableException e) {
+                log.info("Unable to checkpoint shard " + shardId + " on shutdown, attempt " + attempt + ": " + e
+                        .getLocalizedMessage());
+                pause(INITIAL_BACKOFF << attempt);
+            } catch (Exception e) {
+                log.info("Unable to checkpoint shard " + shardId + " on shutdown: " + e.getLocalizedMessage());
+                return;
+            }
+        }
+    }
+
+    private void flush() {
+        flushPending.set(false);
+        if (backoff > 0 && System.nanoTime() - retryAt < 0) {
+            // The retry scheduled by the backoff will pick this up
+            return;
+        }
+        IRecordProcessorCheckpointer current = checkpointer;
+        Record target = sequences.getCheckpointable();
+        if (current == null || target == null || target == lastCheckpoint) {
+            return;
+        }
+        sinceFlush.set(0);
+        try {
+            current.checkpoint(target);
+            lastCheckpoint = target;
+            backoff = 0;
+            log.debug("Checkpointed shard " + shardId + " at " + target.getSequenceNumber());
+        } catch (KinesisClientLibRetryableException e) {
+            backoff = backoff == 0 ? INITIAL_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            log.info("Checkpoint of shard " + shardId + " throttled, retrying in " + backoff + "ms: " + e
+                    .getLocalizedMessage());
+            try {
+                checkpointThread.schedule(this::flush, backoff, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                // Closed in the meantime
+            }
+        } catch (Exception e) {
+            // Shut down or lease lost; the KCL stops this processor shortly
+            log.info("Unable to checkpoint shard " + shardId + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.producer.Attempt;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps another {@link PartitionKeyStrategy} and steers records away from shards that are being throttled.
+ * <p>
+ * Put results are tallied per shard over a fixed window. At the end of each window every shard whose share of throttled
+ * attempts is above the threshold is considered hot and paired with one of the least loaded shards that is not. While
+ * it stays hot, records whose key hashes into it are given an explicit hash key at the same relative position in the
+ * paired shard. Keys therefore still map to a single shard at any one time, but records for a key may be read out of
+ * order around the moment its shard turns hot or cools down.
+ * <p>
+ * Once steered around, a hot shard receives no records, so its throttling can no longer tell whether it has cooled.
+ * Instead the records steered away from it are counted, and it is considered cool again only once comfortably fewer of
+ * them, see {@link #COOL_FRACTION}, are published in a window than it took without being throttled in the window it
+ * turned hot, and no sooner than
+ * {@link #MIN_HOLD_WINDOWS} windows after it turned hot. Keys therefore do not move back and forth between shards
+ * every window. Should the paired shard turn hot in turn, the hot shard is paired with another one.
+ * <p>
+ * Windows are rolled, and shards looked up again after resharding, on a background thread, so that publishing never
+ * waits on the stream's control plane; {@link #close()} stops it.
+ */
+public class HotShardBalancer implements PartitionKeyStrategy {
+
+    private static final Logger log = LoggerFactory.getLogger(HotShardBalancer.class);
+
+    private static final String THROTTLED = "ProvisionedThroughputExceededException";
+
+    /**
+     * Fewest windows a hot shard is steered around before it may be considered cool again
+     */
+    static final int MIN_HOLD_WINDOWS = 3;
+
+    /**
+     * Share of what a hot shard took without being throttled that the records steered away from it must fall below for
+     * it to be considered cool, which leaves a margin against noise between windows
+     */
+    static final double COOL_FRACTION = 0.75;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final PartitionKeyStrategy delegate;
+
+    private final AmazonKinesis kinesis;
+
+    private final String streamName;
+
+    private final double throttleThreshold;
+
+    private final ScheduledExecutorService windowTimer;
+
+    private final Map<String, ShardStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Open shards ordered by starting hash key
+     */
+    private volatile ShardRange[] shards;
+
+    /**
+     * Hot shard id to the shard its records are sent to instead
+     */
+    private volatile Map<String, ShardRange> reroutes = Collections.emptyMap();
+
+    private volatile boolean shardsChanged;
+
+    /**
+     * Hot shards being steered around; only used on the window thread
+     */
+    private final Map<String, Hold> holds = new HashMap<>();
+
+    private long windowCount;
+
+    /**
+     * @param kinesis used to look up the hash key ranges of the stream's shards
+     * @param window in millis; how long put results are tallied before hot shards are re-evaluated
+     * @param throttleThreshold fraction of put attempts to a shard that must be throttled for it to count as hot
+     */
+    public HotShardBalancer(PartitionKeyStrategy delegate, AmazonKinesis kinesis, String streamName, long window,
+            double throttleThreshold) {
+        this.delegate = delegate;
+        this.kinesis = kinesis;
+        this.streamName = streamName;
+        this.throttleThreshold = throttleThreshold;
+        refreshShards();
+        this.windowTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hot-shards-" + streamName);
+            t.setDaemon(true);
+            return t;
+        });
+        windowTimer.scheduleWithFixedDelay(this::rollWindow, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public PartitionKey partitionKey(String subject, Object message) {
+        PartitionKey key = delegate.partitionKey(subject, message);
+        Map<String, ShardRange> current = reroutes;
+        if (current.isEmpty()) {
+            return key;
+        }
+        BigInteger hash = hash(key);
+        ShardRange shard = find(hash);
+        ShardRange target = shard == null ? null : current.get(shard.shardId);
+        if (target == null) {
+            return key;
+        }
+        stats.computeIfAbsent(shard.shardId, id -> new ShardStats()).steered.increment();
+        BigInteger moved = target.start.add(hash.subtract(shard.start).multiply(target.width).divide(shard.width));
+        return new PartitionKey(key.getPartitionKey(), moved.toString());
+    }
+
+    @Override
+    public void onResult(PartitionKey key, UserRecordResult result) {
+        delegate.onResult(key, result);
+        String shardId = result.getShardId();
+        if (shardId == null) {
+            ShardRange shard = find(hash(key));
+            if (shard == null) {
+                return;
+            }
+            shardId = shard.shardId;
+        }
+        ShardStats shardStats = stats.computeIfAbsent(shardId, id -> new ShardStats());
+        for (Attempt attempt : result.getAttempts()) {
+            shardStats.attempts.increment();
+            if (THROTTLED.equals(attempt.getErrorCode())) {
+                shardStats.throttled.increment();
+            }
+        }
+    }
+
+    /**
+     * @return ids of the shards currently being steered around
+     */
+    public List<String> getHotShards() {
+        return new ArrayList<>(reroutes.keySet());
+    }
+
+    /**
+     * Reload shard hash key ranges, e.g. after resharding
+     */
+    public void refreshShards() {
+        List<ShardRange> open = new ArrayList<>();
+        String lastShardId = null;
+        DescribeStreamResult result;
+        do {
+            result = kinesis.describeStream(new DescribeStreamRequest().withStreamName(streamName)
+                    .withExclusiveStartShardId(lastShardId));
+            for (Shard shard : result.getStreamDescription().getShards()) {
+                lastShardId = shard.getShardId();
+                if (shard.getSequenceNumberRange().getEndingSequenceNumber() == null) {
+                    open.add(new ShardRange(shard));
+                }
+            }
+        } while (Boolean.TRUE.equals(result.getStreamDescription().getHasMoreShards()));
+        open.sort(Comparator.comparing(range -> range.start));
+        shards = open.toArray(new ShardRange[0]);
+        shardsChanged = false;
+        log.info("Balancing " + streamName + " across " + shards.length + " open shards");
+    }
+
+    /**
+     * Stop re-evaluating hot shards; records keep the routes in place at the time
+     */
+    public void close() {
+        windowTimer.shutdown();
+    }
+
+    private void rollWindow() {
+        try {
+            evaluate();
+        } catch (Exception e) {
+            log.error("Unable to evaluate hot shards of " + streamName, e);
+        }
+    }
+
+    private void evaluate() {
+        if (shardsChanged) {
+            try {
+                refreshShards();
+            } catch (Exception e) {
+                log.warn("Unable to refresh shards of " + streamName + ": " + e.getLocalizedMessage());
+            }
+        }
+        long window = ++windowCount;
+        ShardRange[] open = shards;
+        Map<String, Long> load = new HashMap<>();
+        Map<String, Long> accepted = new HashMap<>();
+        Map<String, Long> steered = new HashMap<>();
+        Set<String> throttling = new HashSet<>();
+        for (ShardRange shard : open) {
+            ShardStats shardStats = stats.get(shard.shardId);
+            long attempts = shardStats == null ? 0 : shardStats.attempts.sumThenReset();
+            long throttled = shardStats == null ? 0 : shardStats.throttled.sumThenReset();
+            load.put(shard.shardId, attempts);
+            accepted.put(shard.shardId, attempts - throttled);
+            steered.put(shard.shardId, shardStats == null ? 0 : shardStats.steered.sumThenReset());
+            if (attempts > 0 && (double) throttled / attempts > throttleThreshold) {
+                throttling.add(shard.shardId);
+            }
+        }
+        shardsChanged |= stats.keySet().stream().anyMatch(id -> !load.containsKey(id));
+        stats.keySet().retainAll(load.keySet());
+
+        Map<String, ShardRange> current = reroutes;
+        List<ShardRange> hot = new ArrayList<>();
+        List<ShardRange> cool = new ArrayList<>();
+        for (ShardRange shard : open) {
+            Hold hold = holds.get(shard.shardId);
+            boolean stillHot = hold == null ? throttling.contains(shard.shardId)
+                    : window - hold.since < MIN_HOLD_WINDOWS
+                            || steered.get(shard.shardId) >= hold.capacity * COOL_FRACTION;
+            if (stillHot) {
+                hot.add(shard);
+            } else if (hold == null) {
+                // A shard just cooled down is not given other shards' records straight away
+                cool.add(shard);
+            }
+        }
+        Set<String> hotIds = hot.stream().map(shard -> shard.shardId).collect(Collectors.toSet());
+        holds.keySet().retainAll(hotIds);
+        cool.sort(Comparator.comparing(shard -> load.get(shard.shardId)));
+
+        Map<String, ShardRange> next = new HashMap<>();
+        int paired = 0;
+        for (ShardRange shard : hot) {
+            ShardRange target = current.get(shard.shardId);
+            if (target == null || hotIds.contains(target.shardId)) {
+                if (cool.isEmpty()) {
+                    holds.remove(shard.shardId);
+                    continue;
+                }
+                // Newly hot, or its paired shard turned hot in turn
+                target = cool.get(paired++ % cool.size());
+            }
+            next.put(shard.shardId, target);
+            holds.computeIfAbsent(shard.shardId, id -> new Hold(window, accepted.get(id)));
+        }
+        if (next.isEmpty()) {
+            if (!current.isEmpty()) {
+                log.info("No shards of " + streamName + " need balancing");
+            }
+            reroutes = Collections.emptyMap();
+            return;
+        }
+        if (!next.keySet().equals(current.keySet())) {
+            log.warn("Steering records away from throttled shards " + next.keySet() + " of " + streamName);
+        }
+        reroutes = next;
+    }
+
+    private ShardRange find(BigInteger hash) {
+        ShardRange[] ranges = shards;
+        int low = 0;
+        int high = ranges.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            ShardRange range = ranges[mid];
+            if (hash.compareTo(range.start) < 0) {
+                high = mid - 1;
+            } else if (hash.compareTo(range.end) > 0) {
+                low = mid + 1;
+            } else {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The position in the hash key space Kinesis would place the key at
+     */
+    private static BigInteger hash(PartitionKey key) {
+        if (key.getExplicitHashKey() != null) {
+            return new BigInteger(key.getExplicitHashKey());
+        }
+        MessageDigest md5 = MD5.get();
+        md5.reset();
+        return new BigInteger(1, md5.digest(key.getPartitionKey().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class ShardRange {
+
+        private final String shardId;
+
+        private final BigInteger start;
+
+        private final BigInteger end;
+
+        private final BigInteger width;
+
+        ShardRange(Shard shard) {
+            this.shardId = shard.getShardId();
+            this.start = new BigInteger(shard.getHashKeyRange().getStartingHashKey());
+            this.end = new BigInteger(shard.getHashKeyRange().getEndingHashKey());
+            this.width = end.subtract(start).add(BigInteger.ONE);
+        }
+    }
+
+    private static class ShardStats {
+
+        private final LongAdder attempts = new LongAdder();
+
+        private final LongAdder throttled = new LongAdder();
+
+        /**
+         * Records whose key hashes into the shard but were steered to its paired shard
+         */
+        private final LongAdder steered = new LongAdder();
+    }
+
+    private static class Hold {
+
+        /**
+         * Window the shard turned hot in
+         */
+        private final long since;
+
+        /**
+         * Put attempts the shard accepted in the window it turned hot
+         */
+        private final long capacity;
+
+        Hold(long since, long capacity) {
+            this.since = since;
+            this.capacity = capacity;
+        }
+    }
+}
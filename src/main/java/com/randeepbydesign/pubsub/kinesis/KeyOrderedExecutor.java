@@ -0,0 +1,106 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a fixed number of single-threaded lanes, choosing the lane by key. Tasks with the same key run one after
+ * another in submission order while tasks with different keys may run in parallel. The number of tasks waiting across
+ * all lanes is bounded; submitting blocks while the bound is reached.
+ */
+public class KeyOrderedExecutor {
+
+    private final ExecutorService[] lanes;
+
+    private final Semaphore outstanding;
+
+    private final int maxOutstanding;
+
+    /**
+     * @param name used to name the lane threads
+     * @param maxOutstanding the number of submitted tasks that may not yet have finished
+     */
+    public KeyOrderedExecutor(String name, int parallelism, int maxOutstanding) {
+        lanes = new ExecutorService[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            String threadName = name + "-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        this.maxOutstanding = maxOutstanding;
+        outstanding = new Semaphore(maxOutstanding);
+    }
+
+    /**
+     * @param key tasks with equal keys run in order; a null key may run on any lane
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+        execute(lane(key), 1, task);
+    }
+
+    /**
+     * @return the lane tasks with the given key run on
+     */
+    public int lane(Object key) {
+        if (key == null) {
+            return ThreadLocalRandom.current().nextInt(lanes.length);
+        }
+        return (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Run a task on a specific lane, e.g. one that works through several keys mapped to that lane
+     *
+     * @param weight the number of outstanding tasks this one counts as
+     */
+    public void execute(int lane, int weight, Runnable task) throws InterruptedException {
+        // A task heavier than the bound would never get in; let it take the whole bound instead
+        int permits = Math.min(weight, maxOutstanding);
+        outstanding.acquire(permits);
+        try {
+            lanes[lane].execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    outstanding.release(permits);
+                }
+            });
+        } catch (RuntimeException e) {
+            outstanding.release(permits);
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting tasks and wait for those already submitted to finish
+     *
+     * @return true if every task finished within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting tasks and abandon those that have not started
+     */
+    public void shutdownNow() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+}
@@ -7,14 +7,35 @@ import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibC
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
 import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.randeepbydesign.pubsub.MessageConsumer;
+import com.randeepbydesign.pubsub.ShutdownReport;
 import com.randeepbydesign.pubsub.impl.PoisonPillMessageProcessor;
 import com.randeepbydesign.pubsub.kinesis.impl.SqsFailureHandler;
+import com.randeepbydesign.pubsub.metrics.JmxReporter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Runs a KCL {@link Worker} on a thread of its own. {@link #shutdown} asks the worker to shut down gracefully, so that
+ * every record processor can finish the records it was handed and checkpoint before giving up its lease, and falls
+ * back to stopping it outright if that does not finish in time.
+ */
 public class KinesisConsumer implements MessageConsumer {
 
+    /**
+     * Time in millis {@link #stopPolling} gives record processors to finish and checkpoint
+     */
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 60000l;
+
+    /**
+     * Time in millis to wait for the worker thread to exit once the worker has been stopped
+     */
+    private static final long WORKER_EXIT_TIMEOUT = 10000l;
+
     private Logger log = LoggerFactory.getLogger(KinesisConsumer.class);
 
     private IRecordProcessorFactory rpf;
@@ -23,26 +44,73 @@ public class KinesisConsumer implements MessageConsumer {
 
     private Worker kinesisWorker;
 
+    private Thread workerThread;
+
     public KinesisConsumer(IRecordProcessorFactory rpf,
             KinesisClientLibConfiguration kinesisConfiguration) {
         this.rpf = rpf;
         this.kinesisConfiguration = kinesisConfiguration;
     }
 
+    /**
+     * Starts the worker on a thread of its own and returns
+     */
     @Override
-    public void startPolling() {
+    public synchronized void startPolling() {
+        if (workerThread != null && workerThread.isAlive()) {
+            log.info("Kinesis worker appears to already be running");
+            return;
+        }
         log.info("Starting Kinesis worker");
         kinesisWorker = new Worker.Builder()
                 .recordProcessorFactory(rpf)
                 .config(kinesisConfiguration)
                 .build();
-        kinesisWorker.run();
+        workerThread = new Thread(kinesisWorker, "kinesis-worker-" + kinesisConfiguration.getApplicationName());
+        workerThread.start();
     }
 
+    /**
+     * Shuts the worker down, giving record processors up to {@value #DEFAULT_SHUTDOWN_TIMEOUT}ms to finish
+     *
+     * @see #shutdown
+     */
     @Override
     public void stopPolling() {
+        ShutdownReport report = shutdown(DEFAULT_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        log.info("Stopped Kinesis worker: " + report);
+    }
+
+    /**
+     * Records are not released the way SQS messages are; those not checkpointed by the deadline are read again by
+     * whichever worker takes over their shard
+     */
+    @Override
+    public synchronized ShutdownReport shutdown(long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        if (kinesisWorker == null) {
+            return ShutdownReport.of(true, 0l);
+        }
         log.info("Shutting down Kinesis worker");
+        boolean drained = false;
+        try {
+            kinesisWorker.requestShutdown().get(timeout, unit);
+            drained = true;
+        } catch (TimeoutException e) {
+            log.warn("Kinesis worker did not shut down gracefully within " + unit.toMillis(timeout) + "ms");
+        } catch (ExecutionException e) {
+            log.warn("Unable to shut Kinesis worker down gracefully", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         kinesisWorker.shutdown();
+        try {
+            workerThread.join(WORKER_EXIT_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        kinesisWorker = null;
+        return ShutdownReport.of(drained, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
     }
 
     public static void main(String[] args) throws InterruptedException {
@@ -50,16 +118,22 @@ public class KinesisConsumer implements MessageConsumer {
             System.err.println("Consumer application name and Stream Name params required");
             System.exit(1);
         }
+        // Failed records go to the dead-letter queue named by the optional third argument
+        String dlqName = args.length > 2 ? args[2] : args[1] + "-dlq";
+        SqsFailureHandler failureHandler = new SqsFailureHandler(AmazonSQSClientBuilder.defaultClient(), dlqName,
+                1000, 1000l, 30000l);
         KinesisConsumerProcessorFactory rpf = new KinesisConsumerProcessorFactory(new PoisonPillMessageProcessor(),
-                null, 
+                failureHandler,
                 AcknowledgePolicy.EVERY_BATCH, 5000l);
         KinesisClientLibConfiguration kcfg = new KinesisClientLibConfiguration(args[0], args[1],
                 DefaultAWSCredentialsProviderChain.getInstance(), UUID.randomUUID().toString());
         kcfg.withInitialPositionInStream(InitialPositionInStream.TRIM_HORIZON);
+        new JmxReporter(MetricRegistry.getDefault()).start();
         MessageConsumer consumer = new KinesisConsumer(rpf, kcfg);
         consumer.startPolling();
         Thread.sleep(30000l);
         consumer.stopPolling();
+        failureHandler.close(5000l, TimeUnit.MILLISECONDS);
     }
 
 }
@@ -1,44 +1,121 @@
 package com.randeepbydesign.pubsub.kinesis;
 
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IShutdownNotificationAware;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
 import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
 import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
 import com.amazonaws.services.kinesis.model.Record;
+import com.randeepbydesign.pubsub.BatchMessageProcessor;
 import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
 import com.randeepbydesign.pubsub.MessageProcessor;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
-import java.time.LocalDateTime;
+import com.randeepbydesign.pubsub.ProcessingResult;
+import com.randeepbydesign.pubsub.TraceContext;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.EndToEndLatency;
+import com.randeepbydesign.pubsub.metrics.Gauge;
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static java.util.stream.Collectors.toList;
-
-public class KinesisConsumerProcessor implements IRecordProcessor {
+/**
+ * Checkpoints only move past a record once it and every record before it have been resolved, meaning processed or, if
+ * processing failed, accepted by the failure handler. Checkpoints are written in the background by a
+ * {@link CheckpointTracker}; the acknowledgePolicy decides when:
+ * <ul>
+ * <li>EVERY_MESSAGE: as soon as a record is resolved, coalescing records that resolve while a checkpoint is being
+ * written</li>
+ * <li>EVERY_BATCH: at the end of each batch of records delivered by the KCL</li>
+ * <li>PERIODICALLY: every acknowledgeTimeout millis, even while the shard is idle, or after
+ * {@value #PERIODIC_CHECKPOINT_RECORDS} records, whichever comes first</li>
+ * </ul>
+ * When the worker is asked to shut down gracefully, the records already handed to workers are finished and the shard
+ * is checkpointed before its lease is given up.
+ */
+public class KinesisConsumerProcessor implements IRecordProcessor, IShutdownNotificationAware {
 
     Logger log = LoggerFactory.getLogger(KinesisConsumerProcessor.class);
 
     private MessageProcessor messageProcessor;
 
+    /**
+     * The messageProcessor when it can take whole batches, otherwise null
+     */
+    private BatchMessageProcessor batchProcessor;
+
     private MessageProcessorFailureHandler failoverHandler;
 
     private AcknowledgePolicy acknowledgePolicy;
 
     private long acknowledgeTimeout = 0;
 
-    private LocalDateTime startTime;
+    /**
+     * Number of records a shard may have handed to its workers per worker before processRecords blocks
+     */
+    static final int MAX_OUTSTANDING_PER_WORKER = 500;
+
+    /**
+     * Number of resolved records that brings a PERIODICALLY checkpoint forward
+     */
+    static final int PERIODIC_CHECKPOINT_RECORDS = 10000;
+
+    /**
+     * Time in millis between background checkpoints for the policies not driven by a timer, which picks up records
+     * that are resolved by workers after their batch has ended
+     */
+    private static final long IDLE_CHECKPOINT_INTERVAL = 5000l;
+
+    /**
+     * Time in millis to let workers finish their records when the shard shuts down
+     */
+    private static final long SHUTDOWN_DRAIN_TIMEOUT = 30000l;
+
+    private final int parallelism;
+
+    private final Function<Message, ?> keyExtractor;
+
+    private String shardId;
+
+    private KeyOrderedExecutor workers;
+
+    private CheckpointTracker checkpointTracker;
+
+    private Counter received;
+
+    private Counter processed;
+
+    private Counter failed;
+
+    /**
+     * In micros, per call to the message processor
+     */
+    private Histogram processLatency;
+
+    private Histogram batchSize;
+
+    private EndToEndLatency endToEndLatency;
+
+    private volatile long millisBehindLatest;
+
+    private String millisBehindLatestName;
+
+    private Gauge millisBehindLatestGauge;
+
+    private static final KinesisEnvelopeDecoder ENVELOPE_DECODER = new KinesisEnvelopeDecoder();
 
     /**
-     * Convert a Kinesis Record to the Generic Message format
+     * Convert a Kinesis Record to the Generic Message format, unwrapping the envelope the record was published in
      */
-    private Function<Record, Message> toMessage = r -> new Message(r.getSequenceNumber(),
-            StandardCharsets.UTF_8.decode(r.getData()).toString());
+    private Function<Record, Message> toMessage = ENVELOPE_DECODER::decode;
 
     /**
      * @param acknowledgeTimeout in millis; the time to wait between acknowledgements if the acknowledgePolicy is set to
@@ -46,78 +123,320 @@ public class KinesisConsumerProcessor implements IRecordProcessor {
      */
     public KinesisConsumerProcessor(MessageProcessor messageProcessor, MessageProcessorFailureHandler failoverHandler,
             AcknowledgePolicy acknowledgePolicy, final long acknowledgeTimeout) {
+        this(messageProcessor, failoverHandler, acknowledgePolicy, acknowledgeTimeout, 1, null);
+    }
+
+    /**
+     * Processes the records of the shard on several workers at once. Records are assigned to a worker by the key
+     * extracted from their message, so records with equal keys are still processed in the order they were written while
+     * records with different keys are processed in parallel.
+     *
+     * @param parallelism number of workers per shard; 1 processes records one at a time on the KCL thread
+     * @param keyExtractor returns the ordering key of a message; messages with a null key may be processed in any order
+     */
+    public KinesisConsumerProcessor(MessageProcessor messageProcessor, MessageProcessorFailureHandler failoverHandler,
+            AcknowledgePolicy acknowledgePolicy, final long acknowledgeTimeout, int parallelism,
+            Function<Message, ?> keyExtractor) {
+        if (parallelism > 1 && keyExtractor == null) {
+            throw new IllegalArgumentException("A key extractor is required to process records in parallel");
+        }
+        if (acknowledgePolicy == AcknowledgePolicy.PERIODICALLY && acknowledgeTimeout <= 0) {
+            throw new IllegalArgumentException("Periodic acknowledgement requires a positive acknowledgeTimeout");
+        }
         this.messageProcessor = messageProcessor;
+        this.batchProcessor = messageProcessor instanceof BatchMessageProcessor
+                ? (BatchMessageProcessor) messageProcessor : null;
         this.failoverHandler = failoverHandler;
         this.acknowledgePolicy = acknowledgePolicy;
         this.acknowledgeTimeout = acknowledgeTimeout;
-        startTime = LocalDateTime.now();
+        this.parallelism = parallelism;
+        this.keyExtractor = keyExtractor;
     }
 
     @Override
     public void initialize(InitializationInput initializationInput) {
+        shardId = initializationInput.getShardId();
         log.info(initializationInput.getShardId() + " shard processing from " + initializationInput
                 .getExtendedSequenceNumber());
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "kinesis.consumer." + shardId + ".";
+        received = metrics.counter(prefix + "received");
+        processed = metrics.counter(prefix + "processed");
+        failed = metrics.counter(prefix + "failed");
+        processLatency = metrics.histogram(prefix + "processLatency");
+        batchSize = metrics.histogram(prefix + "batchSize");
+        // Keyed by stream rather than shard, since the shards of a stream all carry the same subjects
+        endToEndLatency = new EndToEndLatency(metrics, "kinesis.consumer.");
+        millisBehindLatestName = prefix + "millisBehindLatest";
+        millisBehindLatestGauge = metrics.gauge(millisBehindLatestName, () -> millisBehindLatest);
+        switch (acknowledgePolicy) {
+            case EVERY_MESSAGE:
+                checkpointTracker = new CheckpointTracker(shardId, IDLE_CHECKPOINT_INTERVAL, 1);
+                break;
+            case PERIODICALLY:
+                checkpointTracker = new CheckpointTracker(shardId, acknowledgeTimeout, PERIODIC_CHECKPOINT_RECORDS);
+                break;
+            default:
+                checkpointTracker = new CheckpointTracker(shardId, IDLE_CHECKPOINT_INTERVAL, 0);
+                break;
+        }
+        if (isParallel()) {
+            workers = new KeyOrderedExecutor("kinesis-" + shardId, parallelism,
+                    parallelism * MAX_OUTSTANDING_PER_WORKER);
+        }
     }
 
     @Override
     public void processRecords(ProcessRecordsInput processRecordsInput) {
-        List<Message> successes = new ArrayList<>();
-        List<Message> failures = new ArrayList<>();
-        for (Message message : processRecordsInput.getRecords()
-                .stream()
-                .map(toMessage).collect(toList())) {
+        checkpointTracker.setCheckpointer(processRecordsInput.getCheckpointer());
+        int records = processRecordsInput.getRecords().size();
+        received.add(records);
+        batchSize.record(records);
+        if (processRecordsInput.getMillisBehindLatest() != null) {
+            millisBehindLatest = processRecordsInput.getMillisBehindLatest();
+        }
+        if (isParallel()) {
+            dispatchRecords(processRecordsInput);
+        } else if (batchProcessor != null) {
+            processBatch(processRecordsInput);
+        } else {
+            for (Record record : processRecordsInput.getRecords()) {
+                process(toMessage.apply(record), checkpointTracker.register(record));
+            }
+        }
+        if (acknowledgePolicy == AcknowledgePolicy.EVERY_BATCH) {
+            checkpointTracker.requestFlush();
+        }
+    }
+
+    /**
+     * Hand every record the KCL delivered to the batch processor in one call
+     */
+    private void processBatch(ProcessRecordsInput processRecordsInput) {
+        List<SequenceTracker.Entry> entries = new ArrayList<>(processRecordsInput.getRecords().size());
+        List<Message> messages = new ArrayList<>(processRecordsInput.getRecords().size());
+        for (Record record : processRecordsInput.getRecords()) {
+            entries.add(checkpointTracker.register(record));
+            messages.add(toMessage.apply(record));
+        }
+        process(entries, messages);
+    }
+
+    /**
+     * Hand each record to the worker for its key and return without waiting for them, blocking only while the workers
+     * are too far behind
+     */
+    private void dispatchRecords(ProcessRecordsInput processRecordsInput) {
+        if (batchProcessor != null) {
+            dispatchBatches(processRecordsInput);
+            return;
+        }
+        for (Record record : processRecordsInput.getRecords()) {
+            Message message = toMessage.apply(record);
+            SequenceTracker.Entry entry = checkpointTracker.register(record);
+            try {
+                workers.execute(keyExtractor.apply(message), () -> process(message, entry));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted dispatching records of shard " + shardId);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #dispatchRecords}: the records are split by the worker their key maps to and each
+     * worker is handed its share as one batch, which keeps records with equal keys in order
+     */
+    private void dispatchBatches(ProcessRecordsInput processRecordsInput) {
+        List<List<SequenceTracker.Entry>> entries = new ArrayList<>(parallelism);
+        List<List<Message>> messages = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            entries.add(new ArrayList<>());
+            messages.add(new ArrayList<>());
+        }
+        for (Record record : processRecordsInput.getRecords()) {
+            Message message = toMessage.apply(record);
+            int lane = workers.lane(keyExtractor.apply(message));
+            entries.get(lane).add(checkpointTracker.register(record));
+            messages.get(lane).add(message);
+        }
+        for (int lane = 0; lane < parallelism; lane++) {
+            List<SequenceTracker.Entry> laneEntries = entries.get(lane);
+            List<Message> laneMessages = messages.get(lane);
+            if (laneEntries.isEmpty()) {
+                continue;
+            }
             try {
-                messageProcessor.processMessage(message);
-                successes.add(message);
-            } catch (Exception e) {
-                log.info("Error processing message " + message.getMessageId() + ": " + e.getLocalizedMessage());
-                failoverHandler.handleFailure(message);
-                failures.add(message);
+                workers.execute(lane, laneEntries.size(), () -> process(laneEntries, laneMessages));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted dispatching records of shard " + shardId);
+                return;
             }
-            if (AcknowledgePolicy.EVERY_MESSAGE.equals(acknowledgePolicy)) {
+        }
+    }
+
+    /**
+     * Process the message and complete its entry, or hand it to the failure handler, which has the entry completed once
+     * the message is taken care of.
+     * <p>
+     * While the message processor asks for a pause, the message is held and tried again afterwards rather than handed
+     * to the failure handler, which holds up the rest of the shard (or the worker) with it
+     */
+    private void process(Message message, SequenceTracker.Entry entry) {
+        boolean completed = false;
+        endToEndLatency.received(message);
+        TraceContext.setTraceId(message.getAttribute(MessageAttributes.TRACE_ID));
+        try {
+            while (true) {
+                if (!awaitResume()) {
+                    return;
+                }
+                long start = System.nanoTime();
                 try {
-                    processRecordsInput.getCheckpointer().checkpoint(message.getMessageId());
+                    messageProcessor.processMessage(message);
+                    processLatency.recordSince(start);
+                    processed.increment();
+                    endToEndLatency.acknowledged(message);
+                    checkpointTracker.complete(entry, true);
+                    completed = true;
+                    return;
                 } catch (Exception e) {
-                    log.info("Unable to checkpoint: " + e.getLocalizedMessage());
+                    processLatency.recordSince(start);
+                    if (messageProcessor.pauseMillis() <= 0) {
+                        failed.increment();
+                        completed = true;
+                        handleFailure(message, e, entry);
+                        return;
+                    }
+                    log.info("Holding message " + message.getMessageId() + " while processing is paused: " + e
+                            .getLocalizedMessage());
                 }
             }
+        } finally {
+            TraceContext.clear();
+            if (!completed) {
+                checkpointTracker.complete(entry, false);
+            }
         }
-        acknowledge(successes, failures, processRecordsInput.getCheckpointer());
     }
 
-    private void acknowledge(List<Message> successes, List<Message> failures,
-            IRecordProcessorCheckpointer checkpointer) {
-        try {
-            switch (acknowledgePolicy) {
-                case EVERY_BATCH:
-                    log.info("Checkpointing at end of batch");
-                    checkpointer.checkpoint();
-                    break;
-                case PERIODICALLY:
-                    if (Duration.between(startTime, LocalDateTime.now()).toMillis() > acknowledgeTimeout) {
-                        log.info("Executing period checkpoint and rese4tting clock");
-                        checkpointer.checkpoint();
-                        startTime = LocalDateTime.now();
-                    }
-                    break;
+    /**
+     * Block for as long as the message processor asks for a pause
+     *
+     * @return false if interrupted while waiting
+     */
+    private boolean awaitResume() {
+        long pause;
+        while ((pause = messageProcessor.pauseMillis()) > 0) {
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
-        } catch (Exception e) {
-            log.info("Unable to checkpoint: " + e.getLocalizedMessage());
-            e.printStackTrace();
         }
+        return true;
+    }
 
+    /**
+     * Run the messages through the batch processor and complete their entries
+     */
+    private void process(List<SequenceTracker.Entry> entries, List<Message> messages) {
+        messages.forEach(endToEndLatency::received);
+        if (!awaitResume()) {
+            entries.forEach(entry -> checkpointTracker.complete(entry, false));
+            return;
+        }
+        long start = System.nanoTime();
+        List<ProcessingResult> results = BatchMessageProcessor.processBatch(batchProcessor, messages);
+        processLatency.recordSince(start);
+        for (int i = 0; i < messages.size(); i++) {
+            ProcessingResult result = results.get(i);
+            if (result.isSuccess()) {
+                processed.increment();
+                endToEndLatency.acknowledged(messages.get(i));
+                checkpointTracker.complete(entries.get(i), true);
+            } else {
+                failed.increment();
+                handleFailure(messages.get(i), result.getError(), entries.get(i));
+            }
+        }
+    }
+
+    /**
+     * Hand the message to the failure handler and complete its entry once the handler has taken care of it, without
+     * waiting for that unless the handler holds up the caller while it is backed up; the entry is resolved only if the
+     * handler succeeds
+     */
+    private void handleFailure(Message message, Exception e, SequenceTracker.Entry entry) {
+        log.info("Error processing message " + message.getMessageId() + ": " + e.getLocalizedMessage());
+        CompletableFuture<Void> handled;
+        try {
+            handled = failoverHandler.handleFailureAsync(message, e, shardId);
+        } catch (Exception handlerException) {
+            handled = new CompletableFuture<>();
+            handled.completeExceptionally(handlerException);
+        }
+        handled.whenComplete((ignored, handlerException) -> {
+            if (handlerException != null) {
+                log.error("Unable to hand off failed message " + message.getMessageId() + "; checkpoints are held until"
+                        + " the shard is read again from the last one", handlerException);
+            }
+            checkpointTracker.complete(entry, handlerException == null);
+        });
+    }
+
+    private boolean isParallel() {
+        return parallelism > 1;
+    }
+
+    /**
+     * Called by the KCL on a graceful shutdown of the worker, before the lease is given up; once it is, the shard can no
+     * longer be checkpointed, so drain and checkpoint now
+     */
+    @Override
+    public void shutdownRequested(IRecordProcessorCheckpointer checkpointer) {
+        log.info("Shutdown requested for shard " + shardId);
+        if (isParallel()) {
+            drainWorkers(ShutdownReason.REQUESTED);
+        }
+        checkpointTracker.close(checkpointer, false, true);
     }
 
     @Override
     public void shutdown(ShutdownInput shutdownInput) {
         log.info("Shutting down kinesis consumer");
+        ShutdownReason reason = shutdownInput.getShutdownReason();
+        if (isParallel()) {
+            drainWorkers(reason);
+        }
+        // After a ZOMBIE shutdown the lease belongs to another worker, which picks up from the last checkpoint
+        checkpointTracker.close(shutdownInput.getCheckpointer(), reason == ShutdownReason.TERMINATE,
+                reason != ShutdownReason.ZOMBIE);
+        // The shard's lag is reported by whichever worker takes it over
+        MetricRegistry.getDefault().remove(millisBehindLatestName, millisBehindLatestGauge);
+    }
+
+    /**
+     * Give the workers time to finish the records they were handed; those that do not finish are read again
+     */
+    private void drainWorkers(ShutdownReason reason) {
+        if (reason == ShutdownReason.ZOMBIE) {
+            workers.shutdownNow();
+            return;
+        }
         try {
-            shutdownInput.getCheckpointer().checkpoint();
-        } catch (ThrottlingException e) {
-            log.info("Unable to checkpoint on shutdown due to throttled call. This would be retryable");
-        } catch (Exception e) {
-            log.info("Unable to checkpoint on shutdown: " + e.getLocalizedMessage());
+            if (workers.shutdown(SHUTDOWN_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            log.warn(checkpointTracker.getSequences().getOutstandingCount() + " records of shard " + shardId
+                    + " still processing at shutdown");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        workers.shutdownNow();
     }
 
 }
@@ -2,7 +2,9 @@ package com.randeepbydesign.pubsub.kinesis;
 
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+import com.randeepbydesign.pubsub.Message;
 import com.randeepbydesign.pubsub.MessageProcessor;
+import java.util.function.Function;
 
 public class KinesisConsumerProcessorFactory implements IRecordProcessorFactory {
 
@@ -14,19 +16,36 @@ public class KinesisConsumerProcessorFactory implements IRecordProcessorFactory
 
     private long acknowledgeTimeout;
 
+    private int parallelism;
+
+    private Function<Message, ?> keyExtractor;
+
     public KinesisConsumerProcessorFactory(MessageProcessor messageProcessor,
             MessageProcessorFailureHandler messageProcessorFailureHandler,
             AcknowledgePolicy acknowledgePolicy, long acknowledgeTimeout) {
+        this(messageProcessor, messageProcessorFailureHandler, acknowledgePolicy, acknowledgeTimeout, 1, null);
+    }
+
+    /**
+     * @see KinesisConsumerProcessor#KinesisConsumerProcessor(MessageProcessor, MessageProcessorFailureHandler,
+     * AcknowledgePolicy, long, int, Function)
+     */
+    public KinesisConsumerProcessorFactory(MessageProcessor messageProcessor,
+            MessageProcessorFailureHandler messageProcessorFailureHandler,
+            AcknowledgePolicy acknowledgePolicy, long acknowledgeTimeout, int parallelism,
+            Function<Message, ?> keyExtractor) {
         this.messageProcessor = messageProcessor;
         this.messageProcessorFailureHandler = messageProcessorFailureHandler;
         this.acknowledgePolicy = acknowledgePolicy;
         this.acknowledgeTimeout = acknowledgeTimeout;
+        this.parallelism = parallelism;
+        this.keyExtractor = keyExtractor;
     }
 
     @Override
     public IRecordProcessor createProcessor() {
         return new KinesisConsumerProcessor(messageProcessor, messageProcessorFailureHandler, acknowledgePolicy,
-                acknowledgeTimeout);
+                acknowledgeTimeout, parallelism, keyExtractor);
     }
 
 }
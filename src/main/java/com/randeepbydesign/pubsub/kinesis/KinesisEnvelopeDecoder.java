@@ -0,0 +1,161 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
+import com.amazonaws.services.kinesis.model.Record;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.randeepbydesign.pubsub.BytesMessage;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.codec.PayloadCompressor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns a Kinesis record written by {@link KinesisPublisher} back into the {@link Message} it was published as. The
+ * sequence number becomes the messageId. The KPL aggregates records by default, and the records the KCL takes out of
+ * an aggregated record all share its sequence number, so theirs are followed by the subsequence number to keep message
+ * ids unique.
+ * <p>
+ * Records in a {@link KinesisFrame} become a {@link BytesMessage} over the body, without copying it. Records in the
+ * JSON envelope earlier versions wrote are still read, in a single pass over a streaming parser. Records that are
+ * neither, e.g. those written by other producers, are passed on as a {@link BytesMessage} over the record's bytes.
+ * Frames with a compressed body are decompressed; if that fails the message is passed on compressed, for the message
+ * processor to fail. Instances are thread safe.
+ */
+public class KinesisEnvelopeDecoder {
+
+    private static final Logger log = LoggerFactory.getLogger(KinesisEnvelopeDecoder.class);
+
+    private final JsonFactory jsonFactory;
+
+    public KinesisEnvelopeDecoder() {
+        this(new JsonFactory());
+    }
+
+    public KinesisEnvelopeDecoder(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    public Message decode(Record record) {
+        ByteBuffer data = record.getData();
+        String messageId = messageId(record);
+        Message message = null;
+        if (KinesisFrame.isFrame(data)) {
+            try {
+                message = KinesisFrame.decode(messageId, data);
+            } catch (IOException e) {
+                log.debug("Record " + record.getSequenceNumber() + " is not a valid frame: " + e.getLocalizedMessage());
+            }
+            if (message != null && PayloadCompressor.isCompressed(message)) {
+                try {
+                    message = PayloadCompressor.decompress(message);
+                } catch (IOException e) {
+                    log.warn("Unable to decompress record " + record.getSequenceNumber() + ": "
+                            + e.getLocalizedMessage());
+                }
+            }
+        } else if (startsWithObject(data)) {
+            try (JsonParser parser = createParser(data.duplicate())) {
+                message = decode(messageId, parser);
+            } catch (IOException e) {
+                log.debug("Record " + record.getSequenceNumber() + " is not valid JSON: " + e.getLocalizedMessage());
+            }
+        }
+        return message != null ? message : new BytesMessage(messageId, data);
+    }
+
+    /**
+     * @return the sequence number, followed by the subsequence number for records taken out of an aggregated record
+     */
+    static String messageId(Record record) {
+        if (record instanceof UserRecord && ((UserRecord) record).isAggregated()) {
+            return record.getSequenceNumber() + ":" + ((UserRecord) record).getSubSequenceNumber();
+        }
+        return record.getSequenceNumber();
+    }
+
+    /**
+     * @return null if the document has fields other than those of a {@link Message} or no message body
+     */
+    private Message decode(String messageId, JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        String subject = null;
+        String messageType = null;
+        String body = null;
+        Map<String, String> attributes = Collections.emptyMap();
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "messageId":
+                    break;
+                case "subject":
+                    subject = parser.getValueAsString();
+                    break;
+                case "messageType":
+                    messageType = parser.getValueAsString();
+                    break;
+                case "message":
+                    if (value != JsonToken.VALUE_STRING) {
+                        return null;
+                    }
+                    body = parser.getText();
+                    break;
+                case "attributes":
+                    if (value == JsonToken.START_OBJECT) {
+                        attributes = decodeAttributes(parser);
+                    } else if (value != JsonToken.VALUE_NULL) {
+                        return null;
+                    }
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (body == null) {
+            return null;
+        }
+        return new Message(messageId, subject, messageType, body, attributes);
+    }
+
+    private Map<String, String> decodeAttributes(JsonParser parser) throws IOException {
+        Map<String, String> attributes = new HashMap<>();
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+                attributes.put(name, parser.getValueAsString());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return attributes;
+    }
+
+    private JsonParser createParser(ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            return jsonFactory.createParser(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return jsonFactory.createParser(bytes);
+    }
+
+    private static boolean startsWithObject(ByteBuffer data) {
+        for (int i = data.position(); i < data.limit(); i++) {
+            byte b = data.get(i);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return b == '{';
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,88 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.randeepbydesign.pubsub.BytesMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary record layout {@link KinesisPublisher} writes: a short header carrying the subject and attributes, followed by
+ * the message body exactly as the codec wrote it. Unlike a JSON envelope the body is neither escaped nor re-encoded,
+ * so binary codecs can be used and consumers read the body straight out of the record.
+ * <pre>
+ * byte    {@link #MAGIC}
+ * byte    {@link #VERSION}
+ * UTF     subject, empty for none
+ * short   number of attributes
+ * UTF UTF name and value of each attribute
+ * ...     body, up to the end of the record
+ * </pre>
+ * UTF strings are as written by {@link DataOutputStream#writeUTF}.
+ */
+public final class KinesisFrame {
+
+    /**
+     * 0xF5 never occurs in UTF-8 text, so a frame cannot be mistaken for a JSON record
+     */
+    static final byte MAGIC = (byte) 0xF5;
+
+    static final byte VERSION = 1;
+
+    private KinesisFrame() {
+    }
+
+    public static ByteBuffer encode(String subject, Map<String, String> attributes, byte[] body) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(64 + attributes.size() * 32);
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(subject == null ? "" : subject);
+            out.writeShort(attributes.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                out.writeUTF(attribute.getKey());
+                out.writeUTF(attribute.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write record frame", e);
+        }
+        ByteBuffer ret = ByteBuffer.allocate(header.size() + body.length);
+        ret.put(header.toByteArray()).put(body).flip();
+        return ret;
+    }
+
+    static boolean isFrame(ByteBuffer data) {
+        return data.remaining() > 1 && data.get(data.position()) == MAGIC;
+    }
+
+    /**
+     * @return a message whose body is a view of the record's bytes after the header
+     * @throws IOException if the data is not a frame this version understands
+     */
+    static BytesMessage decode(String messageId, ByteBuffer data) throws IOException {
+        ByteBuffer buffer = data.duplicate();
+        // Reads straight from the buffer, moving its position to the start of the body
+        DataInputStream in = new DataInputStream(new ByteBufferBackedInputStream(buffer));
+        if (in.readByte() != MAGIC) {
+            throw new IOException("Not a record frame");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported record frame version " + version);
+        }
+        String subject = in.readUTF();
+        int attributeCount = in.readUnsignedShort();
+        Map<String, String> attributes = attributeCount == 0 ? Collections.emptyMap()
+                : new HashMap<>(attributeCount * 2);
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.put(in.readUTF(), in.readUTF());
+        }
+        return new BytesMessage(messageId, subject.isEmpty() ? null : subject, null, buffer.slice(),
+                attributes);
+    }
+}
@@ -1,26 +1,81 @@
 package com.randeepbydesign.pubsub.kinesis;
 
+import com.amazonaws.services.kinesis.producer.IKinesisProducer;
 import com.amazonaws.services.kinesis.producer.KinesisProducer;
 import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
 import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
 import com.amazonaws.services.kinesis.producer.UserRecordResult;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.randeepbydesign.pubsub.JsonPublisher;
-import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
 import com.randeepbydesign.pubsub.Publisher;
+import com.randeepbydesign.pubsub.TraceContext;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.codec.MessageCodec;
+import com.randeepbydesign.pubsub.codec.PayloadCompressor;
 import com.randeepbydesign.pubsub.domain.Bottle;
-import java.nio.ByteBuffer;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Publishes each message as a record in a {@link KinesisFrame}, so the body goes into the stream exactly as the codec
+ * wrote it, binary codecs included, with the subject and attributes in the frame header.
+ * <p>
+ * Given a {@link PayloadCompressor}, bodies from its threshold up are compressed if that makes them smaller, and sent
+ * with the {@link MessageAttributes#CONTENT_ENCODING} attribute. {@link KinesisEnvelopeDecoder} decompresses them again
+ * before they reach the message processor.
+ */
 public class KinesisPublisher extends JsonPublisher {
 
-    private final ObjectMapper objectMapper;
+    /**
+     * Default number of records that may be waiting on the KPL before publishing blocks
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 5000;
 
-    private KinesisProducer publisher;
+    private IKinesisProducer publisher;
 
     private String streamName;
 
+    private final Semaphore inFlight;
+
+    private final PartitionKeyStrategy partitionKeyStrategy;
+
+    /**
+     * Null unless bodies are to be compressed
+     */
+    private final PayloadCompressor compressor;
+
+    private final Counter published;
+
+    private final Counter publishFailed;
+
+    /**
+     * In micros, from handing a record to the KPL until its result, which includes aggregation and retries
+     */
+    private final Histogram publishLatency;
+
+    /**
+     * Number of put attempts the KPL made per record
+     */
+    private final Histogram putAttempts;
+
+    private final Counter compressed;
+
+    /**
+     * Bytes compression took off the bodies sent
+     */
+    private final Counter bytesSaved;
+
     /**
      *
      * @param publisher
@@ -28,33 +83,197 @@ public class KinesisPublisher extends JsonPublisher {
      * @param objectMapper Kinesis is much more flexible with what data can be published. We use Jackson mappers
      * to setup JSON data for our purposes
      */
-    public KinesisPublisher(KinesisProducer publisher, String streamName, ObjectMapper objectMapper) {
-        super(objectMapper);
+    public KinesisPublisher(IKinesisProducer publisher, String streamName, ObjectMapper objectMapper) {
+        this(publisher, streamName, objectMapper, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxInFlight the number of records that may be handed to the KPL without a result; once reached, publishing
+     * blocks until a record completes
+     */
+    public KinesisPublisher(IKinesisProducer publisher, String streamName, ObjectMapper objectMapper,
+            int maxInFlight) {
+        this(publisher, streamName, objectMapper, maxInFlight, PartitionKeyStrategies.random());
+    }
+
+    /**
+     * @param partitionKeyStrategy decides which shard each record goes to
+     */
+    public KinesisPublisher(IKinesisProducer publisher, String streamName, ObjectMapper objectMapper,
+            int maxInFlight, PartitionKeyStrategy partitionKeyStrategy) {
+        this(publisher, streamName, new JsonCodec(objectMapper), maxInFlight, partitionKeyStrategy);
+    }
+
+    /**
+     * @param codec encodes the objects published with {@link #publishObject}; its content type is sent along in the
+     * {@link MessageAttributes#CONTENT_TYPE} attribute
+     */
+    public KinesisPublisher(IKinesisProducer publisher, String streamName, MessageCodec codec, int maxInFlight,
+            PartitionKeyStrategy partitionKeyStrategy) {
+        this(publisher, streamName, codec, maxInFlight, partitionKeyStrategy, null);
+    }
+
+    /**
+     * @param compressor compresses bodies from its threshold up; null to send them as they are
+     */
+    public KinesisPublisher(IKinesisProducer publisher, String streamName, MessageCodec codec, int maxInFlight,
+            PartitionKeyStrategy partitionKeyStrategy, PayloadCompressor compressor) {
+        super(codec);
+        this.compressor = compressor;
         this.publisher = publisher;
         this.streamName = streamName;
-        this.objectMapper = objectMapper;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.partitionKeyStrategy = partitionKeyStrategy;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "kinesis.publisher." + streamName + ".";
+        this.published = metrics.counter(prefix + "published");
+        this.publishFailed = metrics.counter(prefix + "publishFailed");
+        this.publishLatency = metrics.histogram(prefix + "publishLatency");
+        this.putAttempts = metrics.histogram(prefix + "putAttempts");
+        this.compressed = metrics.counter(prefix + "compressed");
+        this.bytesSaved = metrics.counter(prefix + "bytesSaved");
+        metrics.gauge(prefix + "outstandingRecords", publisher::getOutstandingRecordsCount);
+        metrics.gauge(prefix + "inFlight", () -> maxInFlight - inFlight.availablePermits());
     }
 
+    /**
+     * Blocks until the record has been put, which includes the KPL's aggregation delay. Prefer
+     * {@link #publishAsync} when publishing many records from one thread.
+     */
     @Override
     public String publish(String subject, String messageBody) {
+        return await(publishAsync(subject, messageBody));
+    }
+
+    /**
+     * @return a future completed with the sequence number of the record once the KPL has put it
+     */
+    @Override
+    public CompletableFuture<String> publishAsync(String subject, String messageBody) {
+        return publishAsync(subject, messageBody.getBytes(StandardCharsets.UTF_8), null,
+                partitionKeyStrategy.partitionKey(subject, messageBody));
+    }
+
+    /**
+     * Picks the partition key from the object itself rather than from its serialized form
+     */
+    @Override
+    public CompletableFuture<String> publishObjectAsync(String subject, Object messageObject) {
+        final PartitionKey key;
+        final byte[] messageBody;
+        MessageCodec codec = getCodec();
+        try {
+            key = partitionKeyStrategy.partitionKey(subject, messageObject);
+            messageBody = codec.encode(messageObject);
+        } catch (Exception e) {
+            CompletableFuture<String> ret = new CompletableFuture<>();
+            ret.completeExceptionally(new RuntimeException("Unable to serialize object to " + codec.getContentType(),
+                    e));
+            return ret;
+        }
+        return publishAsync(subject, messageBody, codec.getContentType(), key);
+    }
+
+    @Override
+    public String publishObject(String subject, Object messageObject) {
+        return await(publishObjectAsync(subject, messageObject));
+    }
+
+    /**
+     * Without the object, the partition key is picked from the body as text: the JSON itself, or the base64 of a
+     * binary codec's output
+     */
+    @Override
+    public CompletableFuture<String> publishEncodedAsync(String subject, byte[] messageBody, String contentType) {
+        final PartitionKey key;
+        try {
+            key = partitionKeyStrategy.partitionKey(subject, getCodec().toText(messageBody));
+        } catch (RuntimeException e) {
+            CompletableFuture<String> ret = new CompletableFuture<>();
+            ret.completeExceptionally(e);
+            return ret;
+        }
+        return publishAsync(subject, messageBody, contentType, key);
+    }
+
+    @Override
+    public String publishEncoded(String subject, byte[] messageBody, String contentType) {
+        return await(publishEncodedAsync(subject, messageBody, contentType));
+    }
+
+    /**
+     * @param contentType null for bodies published as strings
+     */
+    private CompletableFuture<String> publishAsync(String subject, byte[] messageBody, String contentType,
+            PartitionKey key) {
+        CompletableFuture<String> ret = new CompletableFuture<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ret.completeExceptionally(new RuntimeException("Interrupted waiting to publish message to stream", e));
+            return ret;
+        }
+        long start = System.nanoTime();
         try {
             ListenableFuture<UserRecordResult> resp = publisher
-                    .addUserRecord(createUserRecord(subject, messageBody));
-            /*
-            Blocking operation- we could consider using callbacks to process failures asynchronously
-            but probably better to catch this critical err at runtime
-             */
-            return resp.get().getSequenceNumber();
+                    .addUserRecord(createUserRecord(subject, messageBody, contentType, key));
+            Futures.addCallback(resp, new FutureCallback<UserRecordResult>() {
+                @Override
+                public void onSuccess(UserRecordResult result) {
+                    inFlight.release();
+                    publishLatency.recordSince(start);
+                    putAttempts.record(result.getAttempts().size());
+                    published.increment();
+                    ret.complete(result.getSequenceNumber());
+                    partitionKeyStrategy.onResult(key, result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    inFlight.release();
+                    publishLatency.recordSince(start);
+                    publishFailed.increment();
+                    ret.completeExceptionally(new RuntimeException("Unable to publish message to stream", t));
+                    if (t instanceof UserRecordFailedException) {
+                        partitionKeyStrategy.onResult(key, ((UserRecordFailedException) t).getResult());
+                    }
+                }
+            });
         } catch (Exception e) {
-            throw new RuntimeException("Unable to publish message to stream", e);
+            inFlight.release();
+            publishFailed.increment();
+            ret.completeExceptionally(new RuntimeException("Unable to publish message to stream", e));
         }
+        return ret;
     }
 
-    private UserRecord createUserRecord(String subject, String messageBody) throws JsonProcessingException {
+    /**
+     * Frames the body, compressed if that is worth it, with attributes carrying the publish time, the trace id of the
+     * calling thread, if any, the content type and the content encoding
+     */
+    private UserRecord createUserRecord(String subject, byte[] messageBody, String contentType, PartitionKey key) {
+        Map<String, String> attributes = new HashMap<>(4);
+        attributes.put(MessageAttributes.PUBLISHED_AT, Long.toString(TraceContext.getPublishedAt()));
+        String traceId = TraceContext.getTraceId();
+        if (traceId != null) {
+            attributes.put(MessageAttributes.TRACE_ID, traceId);
+        }
+        if (contentType != null) {
+            attributes.put(MessageAttributes.CONTENT_TYPE, contentType);
+        }
+        byte[] compressedBody = compressor == null ? null : compressor.compress(messageBody, messageBody.length);
+        if (compressedBody != null) {
+            attributes.put(MessageAttributes.CONTENT_ENCODING, compressor.getContentEncoding());
+            compressed.increment();
+            bytesSaved.add(messageBody.length - compressedBody.length);
+            messageBody = compressedBody;
+        }
         UserRecord r = new UserRecord();
         r.setStreamName(this.streamName);
-        r.setData(ByteBuffer.wrap(objectMapper.writeValueAsBytes(new Message(subject, null, messageBody))));
-        r.setPartitionKey(messageBody);
+        r.setData(KinesisFrame.encode(subject, attributes, messageBody));
+        r.setPartitionKey(key.getPartitionKey());
+        r.setExplicitHashKey(key.getExplicitHashKey());
         return r;
     }
 
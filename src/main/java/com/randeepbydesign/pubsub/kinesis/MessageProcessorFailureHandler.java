@@ -1,6 +1,7 @@
 package com.randeepbydesign.pubsub.kinesis;
 
 import com.randeepbydesign.pubsub.Message;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Can be defined to setup a workflow in the event a messaqge can't be processed
@@ -12,4 +13,32 @@ public interface MessageProcessorFailureHandler {
      * @param message
      */
     void handleFailure(Message message);
+
+    /**
+     * Called by consumers that know why and where the message failed. Throwing tells the consumer the message was not
+     * taken care of, so it is not checkpointed past.
+     *
+     * @param cause what the message processor threw
+     * @param shardId the shard the message was read from
+     */
+    default void handleFailure(Message message, Exception cause, String shardId) {
+        handleFailure(message);
+    }
+
+    /**
+     * Called by consumers that can carry on while the message is taken care of. The consumer does not checkpoint past
+     * the message until the future completes, nor at all if it completes exceptionally, so implementations should wait
+     * out failures that pass, holding up the caller if need be, rather than report them. This implementation hands the
+     * message to {@link #handleFailure(Message, Exception, String)} on the calling thread.
+     */
+    default CompletableFuture<Void> handleFailureAsync(Message message, Exception cause, String shardId) {
+        CompletableFuture<Void> ret = new CompletableFuture<>();
+        try {
+            handleFailure(message, cause, shardId);
+            ret.complete(null);
+        } catch (RuntimeException e) {
+            ret.completeExceptionally(e);
+        }
+        return ret;
+    }
 }
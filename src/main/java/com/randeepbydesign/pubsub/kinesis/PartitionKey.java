@@ -0,0 +1,46 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+/**
+ * Where a record should land in a stream: the partition key, and optionally an explicit hash key that overrides the
+ * shard the partition key would otherwise hash to
+ */
+public class PartitionKey {
+
+    /**
+     * Kinesis rejects partition keys longer than this many characters
+     */
+    public static final int MAX_LENGTH = 256;
+
+    private final String partitionKey;
+
+    private final String explicitHashKey;
+
+    public PartitionKey(String partitionKey) {
+        this(partitionKey, null);
+    }
+
+    /**
+     * @param explicitHashKey decimal value in [0, 2^128) used to pick the shard in place of the MD5 hash of the
+     * partition key; may be null
+     */
+    public PartitionKey(String partitionKey, String explicitHashKey) {
+        if (partitionKey == null || partitionKey.isEmpty() || partitionKey.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("Partition key must be between 1 and " + MAX_LENGTH + " characters");
+        }
+        this.partitionKey = partitionKey;
+        this.explicitHashKey = explicitHashKey;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public String getExplicitHashKey() {
+        return explicitHashKey;
+    }
+
+    @Override
+    public String toString() {
+        return explicitHashKey == null ? partitionKey : partitionKey + "@" + explicitHashKey;
+    }
+}
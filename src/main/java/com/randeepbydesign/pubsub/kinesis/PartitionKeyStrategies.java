@@ -0,0 +1,159 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The stock {@link PartitionKeyStrategy} implementations
+ */
+public final class PartitionKeyStrategies {
+
+    /**
+     * Size of the Kinesis hash key space
+     */
+    static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private PartitionKeyStrategies() {
+    }
+
+    /**
+     * Spread records evenly over all shards with no ordering between them
+     */
+    public static PartitionKeyStrategy random() {
+        return (subject, message) -> randomKey();
+    }
+
+    /**
+     * Keep records for the same entity in order by keying them on one of the entity's properties. For objects the
+     * property is read through its getter (or the field itself); for plain message bodies it is read from the top level
+     * of the JSON document. Records without the property are spread randomly.
+     */
+    public static PartitionKeyStrategy field(String fieldName) {
+        Map<Class<?>, Function<Object, Object>> accessors = new ConcurrentHashMap<>();
+        return (subject, message) -> {
+            Object value;
+            if (message instanceof String) {
+                value = readJsonField((String) message, fieldName);
+            } else {
+                value = accessors.computeIfAbsent(message.getClass(), clazz -> accessor(clazz, fieldName))
+                        .apply(message);
+            }
+            if (value == null) {
+                return randomKey();
+            }
+            String key = value.toString();
+            if (key.isEmpty()) {
+                return randomKey();
+            }
+            return new PartitionKey(key.length() > PartitionKey.MAX_LENGTH ? key.substring(0, PartitionKey.MAX_LENGTH)
+                    : key);
+        };
+    }
+
+    /**
+     * Deal records out to each shard in turn using explicit hash keys at the middle of each of shardCount equal slices
+     * of the hash key space. Matches the shards exactly only for streams whose shards split the space evenly.
+     */
+    public static PartitionKeyStrategy roundRobin(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+        }
+        PartitionKey[] keys = new PartitionKey[shardCount];
+        BigInteger slice = HASH_KEY_SPACE.divide(BigInteger.valueOf(shardCount));
+        for (int i = 0; i < shardCount; i++) {
+            BigInteger middle = slice.multiply(BigInteger.valueOf(i)).add(slice.shiftRight(1));
+            keys[i] = new PartitionKey(Integer.toString(i), middle.toString());
+        }
+        AtomicLong counter = new AtomicLong();
+        return (subject, message) -> keys[(int) Math.floorMod(counter.getAndIncrement(), (long) shardCount)];
+    }
+
+    /**
+     * Place records by an explicit hash key computed by the caller, e.g. to pin a tenant to a shard
+     *
+     * @param hashKey returns a decimal value in [0, 2^128) for each message
+     */
+    public static PartitionKeyStrategy explicitHashKey(Function<Object, String> hashKey) {
+        return (subject, message) -> {
+            String explicitHashKey = hashKey.apply(message);
+            // The partition key still decides how the KPL aggregates records, so keep it the same per hash key
+            return new PartitionKey(explicitHashKey, explicitHashKey);
+        };
+    }
+
+    static PartitionKey randomKey() {
+        return new PartitionKey(Long.toHexString(ThreadLocalRandom.current().nextLong()));
+    }
+
+    /**
+     * Scan the top level of a JSON document for a field without building a tree
+     */
+    private static String readJsonField(String json, String fieldName) {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                JsonToken value = parser.nextToken();
+                if (fieldName.equals(field)) {
+                    return value.isScalarValue() && value != JsonToken.VALUE_NULL ? parser.getValueAsString() : null;
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            // Not JSON; treat as missing
+        }
+        return null;
+    }
+
+    private static Function<Object, Object> accessor(Class<?> clazz, String fieldName) {
+        String suffix = Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+        for (String getter : new String[]{"get" + suffix, "is" + suffix}) {
+            try {
+                Method method = clazz.getMethod(getter);
+                return target -> invoke(method, target);
+            } catch (NoSuchMethodException e) {
+                // try the next form
+            }
+        }
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(fieldName);
+                field.setAccessible(true);
+                return target -> read(field, target);
+            } catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        throw new IllegalArgumentException(clazz.getName() + " has no property " + fieldName);
+    }
+
+    private static Object invoke(Method method, Object target) {
+        try {
+            return method.invoke(target);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Unable to read partition key from " + method, e);
+        }
+    }
+
+    private static Object read(Field field, Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Unable to read partition key from " + field, e);
+        }
+    }
+}
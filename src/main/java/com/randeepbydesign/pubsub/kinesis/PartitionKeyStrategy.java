@@ -0,0 +1,25 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+
+/**
+ * Decides which shard each published record goes to. Records that share a partition key land on the same shard and
+ * are read back in the order they were published.
+ *
+ * @see PartitionKeyStrategies
+ */
+public interface PartitionKeyStrategy {
+
+    /**
+     * @param subject the subject the message is published under
+     * @param message the object handed to publishObject, or the message body for a plain publish
+     */
+    PartitionKey partitionKey(String subject, Object message);
+
+    /**
+     * Called with the outcome of every record put with a key from this strategy, for strategies that adapt to how the
+     * stream is behaving
+     */
+    default void onResult(PartitionKey key, UserRecordResult result) {
+    }
+}
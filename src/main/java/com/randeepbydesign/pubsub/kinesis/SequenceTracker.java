@@ -0,0 +1,93 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.amazonaws.services.kinesis.model.Record;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Tracks records of a shard that complete out of order and reports the last record below which every record has
+ * completed, which is the furthest a checkpoint may safely go.
+ * <p>
+ * A record can complete unresolved, e.g. when it failed and could not be handed off either. Once every record before
+ * it has completed the tracker stalls there: no later record can become checkpointable, so the record is read again
+ * after the next restart or rebalance.
+ */
+public class SequenceTracker {
+
+    private final Deque<Entry> outstanding = new ArrayDeque<>();
+
+    private Record checkpointable;
+
+    private Entry stalledAt;
+
+    /**
+     * Register a record; must be called in the order records were delivered
+     */
+    public synchronized Entry register(Record record) {
+        Entry entry = new Entry(record);
+        if (stalledAt == null) {
+            outstanding.addLast(entry);
+        }
+        return entry;
+    }
+
+    public void complete(Entry entry) {
+        complete(entry, true);
+    }
+
+    /**
+     * @param resolved false to keep checkpoints from moving past the record
+     */
+    public synchronized void complete(Entry entry, boolean resolved) {
+        entry.complete = true;
+        entry.resolved = resolved;
+        while (stalledAt == null && !outstanding.isEmpty() && outstanding.peekFirst().complete) {
+            Entry head = outstanding.pollFirst();
+            if (head.resolved) {
+                checkpointable = head.record;
+            } else {
+                stalledAt = head;
+                // Nothing after the stalled record can be checkpointed, so there is no point tracking it
+                outstanding.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the highest record such that it and all records before it have completed, or null if none have
+     */
+    public synchronized Record getCheckpointable() {
+        return checkpointable;
+    }
+
+    /**
+     * @return the unresolved record checkpoints are held at, or null if there is none
+     */
+    public synchronized Record getStalledAt() {
+        return stalledAt == null ? null : stalledAt.record;
+    }
+
+    /**
+     * @return the number of registered records that have not yet been passed by the checkpointable record
+     */
+    public synchronized int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    public static class Entry {
+
+        private final Record record;
+
+        private boolean complete;
+
+        private boolean resolved;
+
+        Entry(Record record) {
+            this.record = record;
+        }
+
+        public Record getRecord() {
+            return record;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.randeepbydesign.pubsub.kinesis.impl;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.randeepbydesign.pubsub.BytesMessage;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.codec.PayloadCompressor;
+import com.randeepbydesign.pubsub.kinesis.MessageProcessorFailureHandler;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends messages that could not be processed to an SQS dead-letter queue.
+ * <p>
+ * Failed messages are put in a bounded buffer and sent with SendMessageBatch on a background thread, as soon as
+ * {@value #MAX_BATCH_SIZE} are waiting or otherwise once the flush interval passes, so the record processor is never
+ * held up by SQS. Why and where the message failed is sent along as message attributes.
+ * <p>
+ * {@link #handleFailureAsync} returns a future that completes once SQS has accepted the message, which is what the
+ * consumer waits for before checkpointing past it. Since the consumer can never checkpoint past a message whose future
+ * fails, failures that pass are waited out rather than reported: sends that fail are retried with an exponential
+ * backoff for as long as it takes, and while the buffer is full, e.g. because SQS is unavailable during a burst of
+ * failures, {@link #handleFailureAsync} blocks, holding up the record processor until there is room. A message SQS
+ * refuses outright, e.g. for its size, is sent again without its body, which can be read from the stream by the
+ * sequence number sent along. The future fails only if the handler is closed, or the caller interrupted, before the
+ * message is sent. {@link #handleFailure(Message, Exception, String)} blocks until the message is sent.
+ * <p>
+ * The message's content type and content encoding are sent along too, and bodies that are compressed or encoded with a
+ * codec other than JSON are sent base64 encoded, as SNS delivers them.
+ */
+public class SqsFailureHandler implements MessageProcessorFailureHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(SqsFailureHandler.class);
+
+    public static final String ERROR_TYPE_ATTRIBUTE = "ErrorType";
+
+    public static final String ERROR_MESSAGE_ATTRIBUTE = "ErrorMessage";
+
+    public static final String SHARD_ID_ATTRIBUTE = "ShardId";
+
+    public static final String SEQUENCE_NUMBER_ATTRIBUTE = "SequenceNumber";
+
+    public static final String SUBJECT_ATTRIBUTE = "Subject";
+
+    /**
+     * Why the body was left out, on messages SQS refused with their body
+     */
+    public static final String BODY_OMITTED_ATTRIBUTE = "BodyOmitted";
+
+    /**
+     * Upper limit SQS places on the number of entries in a single batch send
+     */
+    static final int MAX_BATCH_SIZE = 10;
+
+    /**
+     * Upper limit SQS places on the combined size of the messages in a single batch send
+     */
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    /**
+     * Longest error message sent along; stack traces are left to the logs
+     */
+    private static final int MAX_ERROR_MESSAGE_LENGTH = 1024;
+
+    /**
+     * Time in millis between checks for the handler being closed while waiting for room in the buffer
+     */
+    private static final long BUFFER_WAIT = 100l;
+
+    private final AmazonSQS sqs;
+
+    private final String dlqName;
+
+    private final long flushInterval;
+
+    private final long maxBackoff;
+
+    /**
+     * One permit per message that may be buffered; taken until the message is sent or failed
+     */
+    private final Semaphore room;
+
+    private final Deque<Failure> pending = new ConcurrentLinkedDeque<>();
+
+    private final ScheduledExecutorService sender;
+
+    /**
+     * Only used on the sender thread
+     */
+    private long backoff;
+
+    private long nextAttempt = System.nanoTime();
+
+    private volatile String dlqUrl;
+
+    private volatile boolean closed;
+
+    /**
+     * @param maxBuffered number of failed messages that may wait to be sent before further failures are held up
+     * @param flushInterval in millis; the longest a message waits for a batch to fill before it is sent anyway, and the
+     * wait before the first retry of a failed send
+     * @param maxBackoff in millis; the longest wait between retries of a failed send
+     */
+    public SqsFailureHandler(AmazonSQS sqs, String dlqName, int maxBuffered, long flushInterval, long maxBackoff) {
+        this.sqs = sqs;
+        this.dlqName = dlqName;
+        this.flushInterval = flushInterval;
+        this.maxBackoff = maxBackoff;
+        this.backoff = flushInterval;
+        this.room = new Semaphore(maxBuffered);
+        this.sender = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sqs-dlq-" + dlqName);
+            t.setDaemon(true);
+            return t;
+        });
+        sender.scheduleWithFixedDelay(() -> flush(false), flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void handleFailure(Message message) {
+        handleFailure(message, null, null);
+    }
+
+    /**
+     * Blocks until SQS has accepted the message
+     *
+     * @throws RuntimeException if the message could not be sent
+     */
+    @Override
+    public void handleFailure(Message message, Exception cause, String shardId) {
+        try {
+            handleFailureAsync(message, cause, shardId).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                    : new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Blocks while the buffer is full
+     *
+     * @return a future completed once SQS has accepted the message, or exceptionally if the handler is closed first
+     */
+    @Override
+    public CompletableFuture<Void> handleFailureAsync(Message message, Exception cause, String shardId) {
+        Failure failure = new Failure(message, cause, shardId);
+        if (!awaitRoom(failure)) {
+            return failure.result;
+        }
+        failure.result.whenComplete((ignored, e) -> room.release());
+        pending.add(failure);
+        if (closed && pending.remove(failure)) {
+            failure.fail("Dead-letter handler for " + dlqName + " closed before message " + message.getMessageId()
+                    + " was sent");
+            return failure.result;
+        }
+        if (pending.size() >= MAX_BATCH_SIZE) {
+            try {
+                sender.execute(() -> flush(true));
+            } catch (RejectedExecutionException e) {
+                // Closed; whatever is left is sent or failed by close
+            }
+        }
+        return failure.result;
+    }
+
+    /**
+     * Send everything currently buffered, then stop the background thread. Blocks for at most the given time; messages
+     * not sent by then fail.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        closed = true;
+        try {
+            sender.execute(() -> {
+                // One last attempt, backing off or not
+                nextAttempt = System.nanoTime();
+                flush(false);
+            });
+            sender.shutdown();
+            if (!sender.awaitTermination(timeout, unit)) {
+                sender.shutdownNow();
+                log.warn(pending.size() + " failed messages not sent to " + dlqName + " before shutdown");
+            }
+        } catch (RejectedExecutionException e) {
+            // Already closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Failure failure;
+        while ((failure = pending.poll()) != null) {
+            failure.fail("Dead-letter handler for " + dlqName + " closed before message " + failure.message
+                    .getMessageId() + " was sent");
+        }
+    }
+
+    /**
+     * @return the number of failed messages waiting to be sent
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Wait for room in the buffer, for as long as the handler is open
+     *
+     * @return false if the message was failed instead
+     */
+    private boolean awaitRoom(Failure failure) {
+        String messageId = failure.message.getMessageId();
+        try {
+            if (!closed && room.tryAcquire()) {
+                return true;
+            }
+            if (!closed) {
+                log.warn("Dead-letter buffer for " + dlqName + " is full; holding up message " + messageId);
+            }
+            while (!closed) {
+                if (room.tryAcquire(BUFFER_WAIT, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            failure.fail("Dead-letter handler for " + dlqName + " is closed; unable to accept message " + messageId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.fail("Interrupted waiting for room in the dead-letter buffer for " + dlqName + "; unable to accept "
+                    + "message " + messageId);
+        }
+        return false;
+    }
+
+    /**
+     * Send without letting an unexpected error cancel the timed flush
+     */
+    private void flush(boolean fullBatchesOnly) {
+        try {
+            send(fullBatchesOnly);
+        } catch (RuntimeException e) {
+            log.error("Unable to send failed messages to " + dlqName, e);
+        }
+    }
+
+    /**
+     * Sends nothing while backing off after a failed send; a pass stops at the first send that fails
+     *
+     * @param fullBatchesOnly when true, leaves a trailing partial batch for the timed flush to pick up
+     */
+    private void send(boolean fullBatchesOnly) {
+        if (System.nanoTime() - nextAttempt < 0) {
+            return;
+        }
+        int threshold = fullBatchesOnly ? MAX_BATCH_SIZE : 1;
+        List<Failure> retries = new ArrayList<>();
+        boolean failed = false;
+        while (!failed && pending.size() >= threshold) {
+            List<Failure> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            int batchBytes = 0;
+            Failure failure;
+            while (batch.size() < MAX_BATCH_SIZE && (failure = pending.peek()) != null) {
+                if (!batch.isEmpty() && batchBytes + failure.bytes > MAX_BATCH_BYTES) {
+                    break;
+                }
+                batch.add(pending.poll());
+                batchBytes += failure.bytes;
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            failed = sendBatch(batch, retries);
+        }
+        // Back at the front, in order, so that they go out first once the backoff is over
+        for (int i = retries.size() - 1; i >= 0; i--) {
+            pending.addFirst(retries.get(i));
+        }
+        if (failed) {
+            log.warn("Retrying " + retries.size() + " failed messages to " + dlqName + " in " + backoff + "ms");
+            nextAttempt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            backoff = Math.min(backoff * 2, maxBackoff);
+        } else {
+            backoff = flushInterval;
+        }
+    }
+
+    /**
+     * @return whether any message failed to send for a reason that may pass
+     */
+    private boolean sendBatch(List<Failure> batch, List<Failure> retries) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Failure failure = batch.get(i);
+            SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry();
+            entry.setId(Integer.toString(i));
+            entry.setMessageBody(failure.body);
+            entry.setMessageAttributes(failure.attributes());
+            entries.add(entry);
+        }
+        SendMessageBatchResult result;
+        try {
+            SendMessageBatchRequest request = new SendMessageBatchRequest();
+            request.setQueueUrl(getDlqUrl());
+            request.setEntries(entries);
+            result = sqs.sendMessageBatch(request);
+        } catch (Exception e) {
+            log.warn("Unable to send " + batch.size() + " failed messages to " + dlqName + ": " + e
+                    .getLocalizedMessage());
+            retries.addAll(batch);
+            return true;
+        }
+        log.debug("Sent " + result.getSuccessful().size() + " of " + batch.size() + " failed messages to " + dlqName);
+        for (SendMessageBatchResultEntry success : result.getSuccessful()) {
+            batch.get(Integer.parseInt(success.getId())).result.complete(null);
+        }
+        boolean ret = false;
+        for (BatchResultErrorEntry error : result.getFailed()) {
+            Failure failure = batch.get(Integer.parseInt(error.getId()));
+            if (!Boolean.TRUE.equals(error.getSenderFault())) {
+                retries.add(failure);
+                ret = true;
+            } else if (failure.omitted == null) {
+                // e.g. a message too large for SQS; sending it again as it is will not help
+                log.error("Dead-letter queue " + dlqName + " rejected message " + failure.message.getMessageId()
+                        + " (" + error.getCode() + "): " + error.getMessage() + "; sending it without its body");
+                failure.omitBody(error.getCode());
+                retries.add(failure);
+            } else {
+                failure.fail("Dead-letter queue " + dlqName + " rejected message " + failure.message.getMessageId()
+                        + " even without its body (" + error.getCode() + "): " + error.getMessage());
+            }
+        }
+        return ret;
+    }
+
+    private String getDlqUrl() {
+        if (dlqUrl == null) {
+            dlqUrl = sqs.listQueues().getQueueUrls().stream()
+                    .filter(url -> url.endsWith(dlqName)).findAny()
+                    .orElseThrow(() -> new RuntimeException("Unable to locate SQS " + dlqName));
+        }
+        return dlqUrl;
+    }
+
+    private static class Failure {
+
+        private final Message message;
+
+        private final Exception cause;
+
+        private final String shardId;
+
+        private String body;
+
+        private int bytes;
+
+        /**
+         * Why the body was left out, if it was
+         */
+        private String omitted;
+
+        /**
+         * Completed once SQS has accepted the message
+         */
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Failure(Message message, Exception cause, String shardId) {
+            this.message = message;
+            this.cause = cause;
+            this.shardId = shardId;
+            this.body = body(message);
+            this.bytes = body.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        void omitBody(String reason) {
+            omitted = reason;
+            body = "Body of message " + message.getMessageId() + " omitted";
+            bytes = body.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        void fail(String reason) {
+            log.error(reason);
+            result.completeExceptionally(new RuntimeException(reason));
+        }
+
+        private static String body(Message message) {
+            String contentType = message.getAttribute(MessageAttributes.CONTENT_TYPE);
+            boolean binary = contentType != null && !JsonCodec.CONTENT_TYPE.equals(contentType);
+            if (message instanceof BytesMessage && (binary || PayloadCompressor.isCompressed(message))) {
+                ByteBuffer data = ((BytesMessage) message).getData();
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                return Base64.getEncoder().encodeToString(bytes);
+            }
+            return message.getMessage();
+        }
+
+        Map<String, MessageAttributeValue> attributes() {
+            Map<String, MessageAttributeValue> attributes = new HashMap<>();
+            if (cause != null) {
+                put(attributes, ERROR_TYPE_ATTRIBUTE, cause.getClass().getName());
+                String error = cause.getMessage();
+                if (error != null && error.length() > MAX_ERROR_MESSAGE_LENGTH) {
+                    error = error.substring(0, MAX_ERROR_MESSAGE_LENGTH);
+                }
+                put(attributes, ERROR_MESSAGE_ATTRIBUTE, error);
+            }
+            put(attributes, SHARD_ID_ATTRIBUTE, shardId);
+            put(attributes, SEQUENCE_NUMBER_ATTRIBUTE, message.getMessageId());
+            put(attributes, SUBJECT_ATTRIBUTE, message.getSubject());
+            put(attributes, MessageAttributes.CONTENT_TYPE, message.getAttribute(MessageAttributes.CONTENT_TYPE));
+            put(attributes, MessageAttributes.CONTENT_ENCODING,
+                    message.getAttribute(MessageAttributes.CONTENT_ENCODING));
+            put(attributes, BODY_OMITTED_ATTRIBUTE, omitted);
+            return attributes;
+        }
+
+        private static void put(Map<String, MessageAttributeValue> attributes, String name, String value) {
+            // SQS refuses empty attribute values
+            if (value != null && !value.isEmpty()) {
+                attributes.put(name, new MessageAttributeValue().withDataType("String").withStringValue(value));
+            }
+        }
+    }
+}
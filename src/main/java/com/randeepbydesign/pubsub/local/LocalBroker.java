@@ -0,0 +1,261 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.producer.IKinesisProducer;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process stand-in for SQS, SNS and Kinesis, so that publishers and consumers can be run and load tested without
+ * an AWS account. The clients it hands out are used exactly as the AWS ones are:
+ * <pre>
+ * LocalBroker broker = new LocalBroker();
+ * broker.createQueue("orders-dlq");
+ * broker.createQueue("orders");
+ * broker.setRedrivePolicy("orders", "orders-dlq", 3);
+ * broker.createTopic("order-events");
+ * broker.subscribe("order-events", "orders", false);
+ * new SnsPublisher(broker.getSns(), "order-events");
+ * new SqsConsumer(broker.getSqs(), "orders", processor);
+ * </pre>
+ * Queues honour visibility timeouts and redrive policies, topics fan out to their subscribed queues, and streams are
+ * split into shards that a {@link LocalKinesisWorker} reads in parallel. Nothing is persisted; everything is lost
+ * with the broker.
+ */
+public class LocalBroker {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalBroker.class);
+
+    /**
+     * Region and account the queue urls and arns are made out in
+     */
+    public static final String REGION = "us-east-1";
+
+    public static final String ACCOUNT_ID = "000000000000";
+
+    /**
+     * Default visibility timeout of SQS queues, in seconds
+     */
+    public static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+
+    /**
+     * Default number of records each shard retains before dropping the oldest
+     */
+    public static final int DEFAULT_STREAM_RETENTION = 100000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Map<String, LocalQueue> queues = new ConcurrentHashMap<>();
+
+    private final Map<String, LocalTopic> topics = new ConcurrentHashMap<>();
+
+    private final Map<String, LocalStream> streams = new ConcurrentHashMap<>();
+
+    private final LocalSqs sqs = new LocalSqs(this);
+
+    private final LocalSns sns = new LocalSns(this);
+
+    private final LocalKinesis kinesis = new LocalKinesis(this);
+
+    public AmazonSQS getSqs() {
+        return sqs;
+    }
+
+    public AmazonSNS getSns() {
+        return sns;
+    }
+
+    public AmazonKinesis getKinesis() {
+        return kinesis;
+    }
+
+    /**
+     * Like SQS, creating a queue that already exists returns the existing one
+     *
+     * @return the queue url
+     */
+    public String createQueue(String name) {
+        return createQueue(name, DEFAULT_VISIBILITY_TIMEOUT);
+    }
+
+    /**
+     * @param visibilityTimeout in seconds; ignored if the queue already exists
+     * @return the queue url
+     */
+    public String createQueue(String name, int visibilityTimeout) {
+        return queues.computeIfAbsent(name, queueName -> new LocalQueue(queueName,
+                "https://sqs." + REGION + ".amazonaws.com/" + ACCOUNT_ID + "/" + queueName,
+                "arn:aws:sqs:" + REGION + ":" + ACCOUNT_ID + ":" + queueName,
+                TimeUnit.SECONDS.toMillis(visibilityTimeout))).getUrl();
+    }
+
+    /**
+     * Messages of the queue that have been received maxReceiveCount times without being deleted are moved to the
+     * dead-letter queue
+     */
+    public void setRedrivePolicy(String queueName, String deadLetterQueueName, int maxReceiveCount) {
+        getQueue(queueName).setRedrivePolicy(getQueue(deadLetterQueueName), maxReceiveCount);
+    }
+
+    /**
+     * @return the topic arn
+     */
+    public String createTopic(String name) {
+        return topics.computeIfAbsent(name, topicName -> new LocalTopic(topicName,
+                "arn:aws:sns:" + REGION + ":" + ACCOUNT_ID + ":" + topicName)).getArn();
+    }
+
+    /**
+     * @param rawMessageDelivery true to deliver bare messages rather than SNS notification envelopes
+     * @return the subscription arn
+     */
+    public String subscribe(String topicName, String queueName, boolean rawMessageDelivery) {
+        LocalTopic topic = topics.get(topicName);
+        if (topic == null) {
+            throw new NotFoundException("Topic does not exist: " + topicName);
+        }
+        String subscriptionArn = topic.subscribe(getQueue(queueName));
+        topic.setRawMessageDelivery(subscriptionArn, rawMessageDelivery);
+        return subscriptionArn;
+    }
+
+    public void createStream(String name, int shardCount) {
+        createStream(name, shardCount, DEFAULT_STREAM_RETENTION);
+    }
+
+    /**
+     * @param retention number of records each shard keeps before dropping the oldest
+     */
+    public void createStream(String name, int shardCount, int retention) {
+        if (shardCount < 1 || retention < 1) {
+            throw new IllegalArgumentException("Invalid stream configuration: shards=" + shardCount + ", retention="
+                    + retention);
+        }
+        streams.computeIfAbsent(name, streamName -> new LocalStream(streamName,
+                "arn:aws:kinesis:" + REGION + ":" + ACCOUNT_ID + ":stream/" + streamName, shardCount, retention));
+    }
+
+    /**
+     * @return a producer that puts records into this broker's streams, for use in place of a KinesisProducer
+     */
+    public IKinesisProducer newKinesisProducer() {
+        return new LocalKinesisProducer(this);
+    }
+
+    /**
+     * @param applicationName checkpoints are kept per application, as the KCL does with its lease table
+     * @return a consumer that reads every shard of the stream, for use in place of a KCL Worker
+     */
+    public LocalKinesisWorker newKinesisWorker(String applicationName, String streamName,
+            IRecordProcessorFactory recordProcessorFactory) {
+        return new LocalKinesisWorker(applicationName, getStream(streamName), recordProcessorFactory);
+    }
+
+    Collection<LocalQueue> getQueues() {
+        return new ArrayList<>(queues.values());
+    }
+
+    LocalQueue getQueue(String name) {
+        LocalQueue queue = queues.get(name);
+        if (queue == null) {
+            throw new QueueDoesNotExistException("The specified queue does not exist: " + name);
+        }
+        return queue;
+    }
+
+    LocalQueue getQueueByUrl(String url) {
+        for (LocalQueue queue : queues.values()) {
+            if (queue.getUrl().equals(url)) {
+                return queue;
+            }
+        }
+        throw new QueueDoesNotExistException("The specified queue does not exist: " + url);
+    }
+
+    LocalQueue getQueueByArn(String arn) {
+        for (LocalQueue queue : queues.values()) {
+            if (queue.getArn().equals(arn)) {
+                return queue;
+            }
+        }
+        throw new QueueDoesNotExistException("The specified queue does not exist: " + arn);
+    }
+
+    /**
+     * Applies the VisibilityTimeout and RedrivePolicy attributes; other attributes are ignored
+     */
+    void setQueueAttributes(LocalQueue queue, Map<String, String> attributes) {
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            switch (attribute.getKey()) {
+                case "VisibilityTimeout":
+                    queue.setVisibilityTimeout(TimeUnit.SECONDS.toMillis(Integer.parseInt(attribute.getValue())));
+                    break;
+                case "RedrivePolicy":
+                    setRedrivePolicy(queue, attribute.getValue());
+                    break;
+                default:
+                    log.debug("Ignoring attribute " + attribute.getKey() + " of queue " + queue.getName());
+            }
+        }
+    }
+
+    /**
+     * @param redrivePolicy e.g. {"deadLetterTargetArn":"arn:aws:sqs:...","maxReceiveCount":"5"}; empty removes it
+     */
+    private void setRedrivePolicy(LocalQueue queue, String redrivePolicy) {
+        if (redrivePolicy == null || redrivePolicy.isEmpty()) {
+            queue.setRedrivePolicy(null, 0);
+            return;
+        }
+        JsonNode policy;
+        try {
+            policy = objectMapper.readTree(redrivePolicy);
+        } catch (IOException e) {
+            throw new RuntimeException("Invalid RedrivePolicy for " + queue.getName() + ": " + redrivePolicy, e);
+        }
+        queue.setRedrivePolicy(getQueueByArn(policy.path("deadLetterTargetArn").asText()),
+                policy.path("maxReceiveCount").asInt());
+    }
+
+    Collection<LocalTopic> getTopics() {
+        return new ArrayList<>(topics.values());
+    }
+
+    LocalTopic getTopicByArn(String arn) {
+        for (LocalTopic topic : topics.values()) {
+            if (topic.getArn().equals(arn)) {
+                return topic;
+            }
+        }
+        throw new NotFoundException("Topic does not exist: " + arn);
+    }
+
+    LocalStream getStream(String name) {
+        LocalStream stream = streams.get(name);
+        if (stream == null) {
+            throw new ResourceNotFoundException("Stream " + name + " under account " + ACCOUNT_ID + " not found.");
+        }
+        return stream;
+    }
+
+    /**
+     * @return null if there is no such stream
+     */
+    LocalStream findStream(String name) {
+        return streams.get(name);
+    }
+}
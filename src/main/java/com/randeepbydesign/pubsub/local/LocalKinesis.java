@@ -0,0 +1,60 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.kinesis.AbstractAmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+import com.amazonaws.services.kinesis.model.StreamStatus;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Kinesis client of a {@link LocalBroker}, for the shard lookups HotShardBalancer makes. Records are written with a
+ * {@link LocalKinesisProducer} and read with a {@link LocalKinesisWorker}; every other call throws
+ * UnsupportedOperationException.
+ */
+public class LocalKinesis extends AbstractAmazonKinesis {
+
+    /**
+     * Number of shards Kinesis describes per call unless asked for fewer
+     */
+    private static final int DESCRIBE_LIMIT = 100;
+
+    private final LocalBroker broker;
+
+    LocalKinesis(LocalBroker broker) {
+        this.broker = broker;
+    }
+
+    @Override
+    public DescribeStreamResult describeStream(String streamName) {
+        return describeStream(new DescribeStreamRequest().withStreamName(streamName));
+    }
+
+    @Override
+    public DescribeStreamResult describeStream(DescribeStreamRequest request) {
+        LocalStream stream = broker.getStream(request.getStreamName());
+        int limit = request.getLimit() == null ? DESCRIBE_LIMIT : request.getLimit();
+        List<Shard> shards = new ArrayList<>();
+        boolean started = request.getExclusiveStartShardId() == null;
+        boolean hasMore = false;
+        for (LocalStream.LocalShard shard : stream.getShards()) {
+            if (!started) {
+                started = shard.getShardId().equals(request.getExclusiveStartShardId());
+                continue;
+            }
+            if (shards.size() == limit) {
+                hasMore = true;
+                break;
+            }
+            shards.add(shard.toShard());
+        }
+        return new DescribeStreamResult().withStreamDescription(new StreamDescription()
+                .withStreamName(stream.getName())
+                .withStreamARN(stream.getArn())
+                .withStreamStatus(StreamStatus.ACTIVE)
+                .withShards(shards)
+                .withHasMoreShards(hasMore));
+    }
+}
@@ -0,0 +1,95 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.producer.Attempt;
+import com.amazonaws.services.kinesis.producer.IKinesisProducer;
+import com.amazonaws.services.kinesis.producer.Metric;
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stands in for the KPL, putting every record into a {@link LocalBroker} stream as soon as it is added. Records are
+ * neither aggregated nor retried, so each result has a single attempt, and the returned futures are already complete.
+ */
+public class LocalKinesisProducer implements IKinesisProducer {
+
+    private final LocalBroker broker;
+
+    LocalKinesisProducer(LocalBroker broker) {
+        this.broker = broker;
+    }
+
+    @Override
+    public ListenableFuture<UserRecordResult> addUserRecord(String stream, String partitionKey, ByteBuffer data) {
+        return addUserRecord(stream, partitionKey, null, data);
+    }
+
+    @Override
+    public ListenableFuture<UserRecordResult> addUserRecord(UserRecord userRecord) {
+        return addUserRecord(userRecord.getStreamName(), userRecord.getPartitionKey(),
+                userRecord.getExplicitHashKey(), userRecord.getData());
+    }
+
+    @Override
+    public ListenableFuture<UserRecordResult> addUserRecord(String stream, String partitionKey,
+            String explicitHashKey, ByteBuffer data) {
+        LocalStream localStream = broker.findStream(stream);
+        if (localStream == null) {
+            Attempt attempt = new Attempt(0, 0, "Stream " + stream + " not found", "ResourceNotFoundException", false);
+            return Futures.immediateFailedFuture(new UserRecordFailedException(new UserRecordResult(
+                    Collections.singletonList(attempt), null, null, false)));
+        }
+        LocalStream.LocalShard shard = localStream.shardFor(partitionKey, explicitHashKey);
+        Record record = localStream.put(shard, partitionKey, data);
+        Attempt attempt = new Attempt(0, 0, null, null, true);
+        return Futures.immediateFuture(new UserRecordResult(Collections.singletonList(attempt),
+                record.getSequenceNumber(), shard.getShardId(), true));
+    }
+
+    @Override
+    public int getOutstandingRecordsCount() {
+        return 0;
+    }
+
+    @Override
+    public List<Metric> getMetrics(String metricName, int windowSeconds) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Metric> getMetrics(String metricName) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Metric> getMetrics() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Metric> getMetrics(int windowSeconds) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void flush(String stream) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void flushSync() {
+    }
+}
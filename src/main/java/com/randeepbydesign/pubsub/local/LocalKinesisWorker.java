@@ -0,0 +1,190 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
+import com.amazonaws.services.kinesis.clientlibrary.types.ExtendedSequenceNumber;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
+import com.amazonaws.services.kinesis.model.Record;
+import com.randeepbydesign.pubsub.MessageConsumer;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a {@link LocalBroker} stream the way a KCL Worker reads a Kinesis stream: one record processor per shard, each
+ * driven by its own thread, initialized from the application's last checkpoint for the shard, or the oldest record
+ * retained if there is none, and handed batches of records in order. Every shard is read by this worker; there is no
+ * lease balancing between workers.
+ * <p>
+ * As with the KCL, exceptions thrown from processRecords are logged and the records are not read again.
+ */
+public class LocalKinesisWorker implements MessageConsumer {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalKinesisWorker.class);
+
+    /**
+     * KCL default for the number of records handed to processRecords at once
+     */
+    private static final int MAX_RECORDS = 10000;
+
+    /**
+     * KCL default for the time in millis a shard is left before reading it again after finding no records
+     */
+    private static final long IDLE_TIME_BETWEEN_READS = 1000l;
+
+    private final String applicationName;
+
+    private final LocalStream stream;
+
+    private final IRecordProcessorFactory recordProcessorFactory;
+
+    private final List<Thread> shardThreads = new ArrayList<>();
+
+    private volatile boolean stopRunning;
+
+    /**
+     * Shard threads wait on this while idle, so that stopPolling can wake them
+     */
+    private final Object idle = new Object();
+
+    LocalKinesisWorker(String applicationName, LocalStream stream, IRecordProcessorFactory recordProcessorFactory) {
+        this.applicationName = applicationName;
+        this.stream = stream;
+        this.recordProcessorFactory = recordProcessorFactory;
+    }
+
+    /**
+     * Starts a thread per shard and returns; unlike a KCL Worker this does not block
+     */
+    @Override
+    public synchronized void startPolling() {
+        if (!shardThreads.isEmpty()) {
+            return;
+        }
+        stopRunning = false;
+        for (LocalStream.LocalShard shard : stream.getShards()) {
+            Thread t = new Thread(() -> consume(shard), "local-kinesis-" + stream.getName() + "-"
+                    + shard.getShardId());
+            t.setDaemon(true);
+            shardThreads.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Shuts every record processor down with {@link ShutdownReason#REQUESTED}, so they may checkpoint what they have
+     * processed, and waits for them to finish
+     */
+    @Override
+    public synchronized void stopPolling() {
+        stopRunning = true;
+        synchronized (idle) {
+            idle.notifyAll();
+        }
+        try {
+            for (Thread t : shardThreads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shardThreads.clear();
+    }
+
+    private void consume(LocalStream.LocalShard shard) {
+        String shardId = shard.getShardId();
+        String checkpoint = stream.getCheckpoint(applicationName, shardId);
+        ShardCheckpointer checkpointer = new ShardCheckpointer(shardId);
+        long position = checkpoint == null ? 0 : shard.positionAfter(checkpoint);
+        IRecordProcessor processor = recordProcessorFactory.createProcessor();
+        processor.initialize(new InitializationInput()
+                .withShardId(shardId)
+                .withExtendedSequenceNumber(checkpoint == null ? ExtendedSequenceNumber.TRIM_HORIZON
+                        : new ExtendedSequenceNumber(checkpoint)));
+        while (!stopRunning) {
+            List<Record> records = shard.read(position, MAX_RECORDS);
+            if (records.isEmpty()) {
+                try {
+                    synchronized (idle) {
+                        if (!stopRunning) {
+                            idle.wait(IDLE_TIME_BETWEEN_READS);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+            Record last = records.get(records.size() - 1);
+            position = shard.positionAfter(last.getSequenceNumber());
+            checkpointer.largestSequenceNumber = last.getSequenceNumber();
+            long millisBehindLatest = position >= shard.getEndPosition() ? 0
+                    : System.currentTimeMillis() - last.getApproximateArrivalTimestamp().getTime();
+            try {
+                processor.processRecords(new ProcessRecordsInput()
+                        .withRecords(records)
+                        .withCheckpointer(checkpointer)
+                        .withMillisBehindLatest(millisBehindLatest));
+            } catch (RuntimeException e) {
+                log.error("Record processor of " + shardId + " threw processing " + records.size() + " records", e);
+            }
+        }
+        processor.shutdown(new ShutdownInput()
+                .withShutdownReason(ShutdownReason.REQUESTED)
+                .withCheckpointer(checkpointer));
+        log.info("Stopped reading " + shardId + " of " + stream.getName());
+    }
+
+    /**
+     * Records checkpoints in the stream under the worker's application name
+     */
+    private class ShardCheckpointer implements IRecordProcessorCheckpointer {
+
+        private final String shardId;
+
+        /**
+         * Sequence number of the last record handed to the processor; checkpoints may not go beyond it
+         */
+        private volatile String largestSequenceNumber;
+
+        ShardCheckpointer(String shardId) {
+            this.shardId = shardId;
+        }
+
+        @Override
+        public void checkpoint() {
+            if (largestSequenceNumber != null) {
+                stream.checkpoint(applicationName, shardId, largestSequenceNumber);
+            }
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+            checkpoint(record.getSequenceNumber());
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+            String largest = largestSequenceNumber;
+            if (largest == null || sequenceNumber.compareTo(largest) > 0) {
+                throw new IllegalArgumentException("Sequence number " + sequenceNumber + " of " + shardId
+                        + " has not been read yet");
+            }
+            stream.checkpoint(applicationName, shardId, sequenceNumber);
+        }
+
+        /**
+         * Records are never aggregated here, so the sub-sequence number is ignored
+         */
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+            checkpoint(sequenceNumber);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A standard SQS queue held in memory.
+ * <p>
+ * A received message stays invisible for the visibility timeout and becomes receivable again unless it is deleted
+ * first. Every receive hands out a new receipt handle; only the latest one can delete the message or change its
+ * visibility. With a redrive policy, a message that has already been received maxReceiveCount times is moved to the
+ * dead-letter queue instead of being received again.
+ */
+class LocalQueue {
+
+    private final String name;
+
+    private final String url;
+
+    private final String arn;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private final ArrayDeque<QueuedMessage> visible = new ArrayDeque<>();
+
+    /**
+     * Messages that are invisible, because they were received or sent with a delay, ordered by when that ends. Leases
+     * that were since replaced or ended early are skipped when they come up.
+     */
+    private final PriorityQueue<Lease> leases = new PriorityQueue<>((a, b) -> Long.compare(a.visibleAt, b.visibleAt));
+
+    private final Map<String, Lease> inFlight = new HashMap<>();
+
+    /**
+     * In millis
+     */
+    private volatile long visibilityTimeout;
+
+    private volatile LocalQueue deadLetterQueue;
+
+    private volatile int maxReceiveCount;
+
+    LocalQueue(String name, String url, String arn, long visibilityTimeout) {
+        this.name = name;
+        this.url = url;
+        this.arn = arn;
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getArn() {
+        return arn;
+    }
+
+    /**
+     * @param visibilityTimeout in millis
+     */
+    void setVisibilityTimeout(long visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    /**
+     * @param deadLetterQueue null removes the redrive policy
+     */
+    void setRedrivePolicy(LocalQueue deadLetterQueue, int maxReceiveCount) {
+        this.deadLetterQueue = deadLetterQueue;
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    /**
+     * @param delay in millis
+     * @return the id of the new message
+     */
+    String send(String body, Map<String, MessageAttributeValue> messageAttributes, long delay) {
+        QueuedMessage message = new QueuedMessage(UUID.randomUUID().toString(), body,
+                messageAttributes == null ? Collections.emptyMap() : new HashMap<>(messageAttributes));
+        lock.lock();
+        try {
+            if (delay > 0) {
+                lease(message, null, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+            } else {
+                visible.addLast(message);
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return message.messageId;
+    }
+
+    /**
+     * Take in a message redriven from another queue; like SQS it keeps its id and starts over with no receives
+     */
+    private void redrive(QueuedMessage message) {
+        lock.lock();
+        try {
+            message.receiveCount = 0;
+            visible.addLast(message);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Long-polls like SQS: returns as soon as any message can be received, or empty once the wait time has passed
+     *
+     * @param visibilityTimeout in millis, or negative for the queue's own
+     * @param wait in millis
+     */
+    List<Message> receive(int max, long visibilityTimeout, long wait) throws InterruptedException {
+        long timeout = visibilityTimeout < 0 ? this.visibilityTimeout : visibilityTimeout;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+        List<Message> ret = new ArrayList<>(max);
+        List<QueuedMessage> deadLetters = new ArrayList<>();
+        LocalQueue dlq = deadLetterQueue;
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                expireLeases(now);
+                QueuedMessage message;
+                while (ret.size() < max && (message = visible.pollFirst()) != null) {
+                    if (dlq != null && message.receiveCount >= maxReceiveCount) {
+                        deadLetters.add(message);
+                        continue;
+                    }
+                    message.receiveCount++;
+                    String receiptHandle = UUID.randomUUID().toString();
+                    lease(message, receiptHandle, now + TimeUnit.MILLISECONDS.toNanos(timeout));
+                    ret.add(message.toSqsMessage(receiptHandle));
+                }
+                long remaining = deadline - now;
+                if (!ret.isEmpty() || remaining <= 0) {
+                    break;
+                }
+                Lease next = leases.peek();
+                available.awaitNanos(next == null ? remaining : Math.min(remaining, next.visibleAt - now));
+            }
+        } finally {
+            lock.unlock();
+            // Outside of this queue's lock, so that queues redriving into each other cannot deadlock
+            for (QueuedMessage message : deadLetters) {
+                dlq.redrive(message);
+            }
+        }
+        return ret;
+    }
+
+    void delete(String receiptHandle) {
+        lock.lock();
+        try {
+            Lease lease = inFlight.remove(receiptHandle);
+            if (lease == null) {
+                throw new ReceiptHandleIsInvalidException("The receipt handle \"" + receiptHandle
+                        + "\" is not valid for " + name);
+            }
+            lease.message.lease = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param visibilityTimeout in millis from now; 0 makes the message receivable right away
+     */
+    void changeVisibility(String receiptHandle, long visibilityTimeout) {
+        lock.lock();
+        try {
+            Lease lease = inFlight.get(receiptHandle);
+            if (lease == null) {
+                throw new ReceiptHandleIsInvalidException("The receipt handle \"" + receiptHandle
+                        + "\" is not valid for " + name);
+            }
+            if (visibilityTimeout <= 0) {
+                inFlight.remove(receiptHandle);
+                lease.message.lease = null;
+                visible.addFirst(lease.message);
+                available.signal();
+            } else {
+                lease(lease.message, receiptHandle,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(visibilityTimeout));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of messages that can be received now
+     */
+    int getVisibleCount() {
+        lock.lock();
+        try {
+            expireLeases(System.nanoTime());
+            return visible.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of messages that have been received but neither deleted nor made visible again
+     */
+    int getInFlightCount() {
+        lock.lock();
+        try {
+            expireLeases(System.nanoTime());
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lease(QueuedMessage message, String receiptHandle, long visibleAt) {
+        Lease lease = new Lease(message, receiptHandle, visibleAt);
+        message.lease = lease;
+        leases.add(lease);
+        if (receiptHandle != null) {
+            inFlight.put(receiptHandle, lease);
+        }
+    }
+
+    private void expireLeases(long now) {
+        Lease lease;
+        while ((lease = leases.peek()) != null && lease.visibleAt - now <= 0) {
+            leases.poll();
+            if (lease.message.lease != lease) {
+                continue;
+            }
+            lease.message.lease = null;
+            if (lease.receiptHandle != null) {
+                inFlight.remove(lease.receiptHandle);
+            }
+            visible.addLast(lease.message);
+        }
+    }
+
+    private static class QueuedMessage {
+
+        private final String messageId;
+
+        private final String body;
+
+        private final Map<String, MessageAttributeValue> messageAttributes;
+
+        private final long sentTimestamp = System.currentTimeMillis();
+
+        private int receiveCount;
+
+        /**
+         * The lease keeping the message invisible, or null while it can be received
+         */
+        private Lease lease;
+
+        QueuedMessage(String messageId, String body, Map<String, MessageAttributeValue> messageAttributes) {
+            this.messageId = messageId;
+            this.body = body;
+            this.messageAttributes = messageAttributes;
+        }
+
+        Message toSqsMessage(String receiptHandle) {
+            Map<String, String> attributes = new HashMap<>(4);
+            attributes.put("ApproximateReceiveCount", Integer.toString(receiveCount));
+            attributes.put("SentTimestamp", Long.toString(sentTimestamp));
+            return new Message()
+                    .withMessageId(messageId)
+                    .withReceiptHandle(receiptHandle)
+                    .withBody(body)
+                    .withAttributes(attributes)
+                    .withMessageAttributes(new HashMap<>(messageAttributes));
+        }
+    }
+
+    private static class Lease {
+
+        private final QueuedMessage message;
+
+        /**
+         * Null while a message sent with a delay waits to become visible
+         */
+        private final String receiptHandle;
+
+        /**
+         * In System.nanoTime terms
+         */
+        private final long visibleAt;
+
+        Lease(QueuedMessage message, String receiptHandle, long visibleAt) {
+            this.message = message;
+            this.receiptHandle = receiptHandle;
+            this.visibleAt = visibleAt;
+        }
+    }
+}
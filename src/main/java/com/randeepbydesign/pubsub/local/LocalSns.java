@@ -0,0 +1,99 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.sns.AbstractAmazonSNS;
+import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
+import com.amazonaws.services.sns.model.ListTopicsResult;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.SetSubscriptionAttributesResult;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.Topic;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SNS client of a {@link LocalBroker}. Supports the calls this library makes, plus creating topics, subscribing
+ * queues by their arn and switching on raw message delivery; everything else throws UnsupportedOperationException.
+ */
+public class LocalSns extends AbstractAmazonSNS {
+
+    private final LocalBroker broker;
+
+    LocalSns(LocalBroker broker) {
+        this.broker = broker;
+    }
+
+    @Override
+    public CreateTopicResult createTopic(String name) {
+        return new CreateTopicResult().withTopicArn(broker.createTopic(name));
+    }
+
+    @Override
+    public ListTopicsResult listTopics() {
+        List<Topic> topics = new ArrayList<>();
+        for (LocalTopic topic : broker.getTopics()) {
+            topics.add(new Topic().withTopicArn(topic.getArn()));
+        }
+        return new ListTopicsResult().withTopics(topics);
+    }
+
+    @Override
+    public ListSubscriptionsByTopicResult listSubscriptionsByTopic(String topicArn) {
+        return new ListSubscriptionsByTopicResult().withSubscriptions(broker.getTopicByArn(topicArn)
+                .getSubscriptions());
+    }
+
+    /**
+     * @param protocol only "sqs" is supported
+     * @param endpoint the arn of the queue
+     */
+    @Override
+    public SubscribeResult subscribe(String topicArn, String protocol, String endpoint) {
+        if (!"sqs".equals(protocol)) {
+            throw new UnsupportedOperationException("Only sqs subscriptions are supported, not " + protocol);
+        }
+        return new SubscribeResult().withSubscriptionArn(broker.getTopicByArn(topicArn)
+                .subscribe(broker.getQueueByArn(endpoint)));
+    }
+
+    /**
+     * @param attributeName only RawMessageDelivery is supported
+     */
+    @Override
+    public SetSubscriptionAttributesResult setSubscriptionAttributes(String subscriptionArn, String attributeName,
+            String attributeValue) {
+        if (!"RawMessageDelivery".equals(attributeName)) {
+            throw new UnsupportedOperationException("Unsupported subscription attribute " + attributeName);
+        }
+        for (LocalTopic topic : broker.getTopics()) {
+            if (topic.setRawMessageDelivery(subscriptionArn, Boolean.parseBoolean(attributeValue))) {
+                return new SetSubscriptionAttributesResult();
+            }
+        }
+        throw new NotFoundException("Subscription does not exist: " + subscriptionArn);
+    }
+
+    @Override
+    public PublishResult publish(PublishRequest request) {
+        LocalTopic topic = broker.getTopicByArn(request.getTopicArn());
+        return new PublishResult().withMessageId(topic.publish(request.getSubject(), request.getMessage(),
+                request.getMessageAttributes()));
+    }
+
+    @Override
+    public PublishBatchResult publishBatch(PublishBatchRequest request) {
+        LocalTopic topic = broker.getTopicByArn(request.getTopicArn());
+        List<PublishBatchResultEntry> successful = new ArrayList<>();
+        for (PublishBatchRequestEntry entry : request.getPublishBatchRequestEntries()) {
+            String messageId = topic.publish(entry.getSubject(), entry.getMessage(), entry.getMessageAttributes());
+            successful.add(new PublishBatchResultEntry().withId(entry.getId()).withMessageId(messageId));
+        }
+        return new PublishBatchResult().withSuccessful(successful).withFailed(new ArrayList<>());
+    }
+}
@@ -0,0 +1,217 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityResult;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesResult;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SQS client of a {@link LocalBroker}. Supports the calls this library makes, plus creating queues and setting the
+ * VisibilityTimeout and RedrivePolicy attributes; everything else throws UnsupportedOperationException.
+ */
+public class LocalSqs extends AbstractAmazonSQS {
+
+    /**
+     * Upper limit SQS places on the number of messages returned by a single receive call
+     */
+    private static final int MAX_RECEIVE_BATCH = 10;
+
+    private final LocalBroker broker;
+
+    LocalSqs(LocalBroker broker) {
+        this.broker = broker;
+    }
+
+    @Override
+    public ListQueuesResult listQueues() {
+        return listQueues("");
+    }
+
+    @Override
+    public ListQueuesResult listQueues(String queueNamePrefix) {
+        List<String> urls = new ArrayList<>();
+        for (LocalQueue queue : broker.getQueues()) {
+            if (queueNamePrefix == null || queue.getName().startsWith(queueNamePrefix)) {
+                urls.add(queue.getUrl());
+            }
+        }
+        return new ListQueuesResult().withQueueUrls(urls);
+    }
+
+    @Override
+    public CreateQueueResult createQueue(String queueName) {
+        return new CreateQueueResult().withQueueUrl(broker.createQueue(queueName));
+    }
+
+    @Override
+    public CreateQueueResult createQueue(CreateQueueRequest request) {
+        String url = broker.createQueue(request.getQueueName());
+        if (request.getAttributes() != null) {
+            broker.setQueueAttributes(broker.getQueueByUrl(url), request.getAttributes());
+        }
+        return new CreateQueueResult().withQueueUrl(url);
+    }
+
+    @Override
+    public GetQueueUrlResult getQueueUrl(String queueName) {
+        return new GetQueueUrlResult().withQueueUrl(broker.getQueue(queueName).getUrl());
+    }
+
+    @Override
+    public SetQueueAttributesResult setQueueAttributes(SetQueueAttributesRequest request) {
+        broker.setQueueAttributes(broker.getQueueByUrl(request.getQueueUrl()), request.getAttributes());
+        return new SetQueueAttributesResult();
+    }
+
+    @Override
+    public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+        LocalQueue queue = broker.getQueueByUrl(request.getQueueUrl());
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("QueueArn", queue.getArn());
+        attributes.put("ApproximateNumberOfMessages", Integer.toString(queue.getVisibleCount()));
+        attributes.put("ApproximateNumberOfMessagesNotVisible", Integer.toString(queue.getInFlightCount()));
+        return new GetQueueAttributesResult().withAttributes(attributes);
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(String queueUrl) {
+        return receiveMessage(new ReceiveMessageRequest().withQueueUrl(queueUrl));
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        LocalQueue queue = broker.getQueueByUrl(request.getQueueUrl());
+        int max = request.getMaxNumberOfMessages() == null ? 1
+                : Math.max(1, Math.min(MAX_RECEIVE_BATCH, request.getMaxNumberOfMessages()));
+        long visibilityTimeout = request.getVisibilityTimeout() == null ? -1
+                : TimeUnit.SECONDS.toMillis(request.getVisibilityTimeout());
+        long wait = request.getWaitTimeSeconds() == null ? 0 : TimeUnit.SECONDS.toMillis(request.getWaitTimeSeconds());
+        try {
+            return new ReceiveMessageResult().withMessages(queue.receive(max, visibilityTimeout, wait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted receiving from " + queue.getName(), e);
+        }
+    }
+
+    @Override
+    public SendMessageResult sendMessage(String queueUrl, String messageBody) {
+        return sendMessage(new SendMessageRequest().withQueueUrl(queueUrl).withMessageBody(messageBody));
+    }
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        LocalQueue queue = broker.getQueueByUrl(request.getQueueUrl());
+        String messageId = queue.send(request.getMessageBody(), request.getMessageAttributes(),
+                delay(request.getDelaySeconds()));
+        return new SendMessageResult().withMessageId(messageId);
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        LocalQueue queue = broker.getQueueByUrl(request.getQueueUrl());
+        List<SendMessageBatchResultEntry> successful = new ArrayList<>();
+        for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+            String messageId = queue.send(entry.getMessageBody(), entry.getMessageAttributes(),
+                    delay(entry.getDelaySeconds()));
+            successful.add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(messageId));
+        }
+        return new SendMessageBatchResult().withSuccessful(successful).withFailed(new ArrayList<>());
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(String queueUrl, String receiptHandle) {
+        return deleteMessage(new DeleteMessageRequest().withQueueUrl(queueUrl).withReceiptHandle(receiptHandle));
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+        broker.getQueueByUrl(request.getQueueUrl()).delete(request.getReceiptHandle());
+        return new DeleteMessageResult();
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        LocalQueue queue = broker.getQueueByUrl(request.getQueueUrl());
+        List<DeleteMessageBatchResultEntry> successful = new ArrayList<>();
+        List<BatchResultErrorEntry> failed = new ArrayList<>();
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            try {
+                queue.delete(entry.getReceiptHandle());
+                successful.add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+            } catch (ReceiptHandleIsInvalidException e) {
+                failed.add(invalidReceipt(entry.getId(), e));
+            }
+        }
+        return new DeleteMessageBatchResult().withSuccessful(successful).withFailed(failed);
+    }
+
+    @Override
+    public ChangeMessageVisibilityResult changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+        broker.getQueueByUrl(request.getQueueUrl()).changeVisibility(request.getReceiptHandle(),
+                TimeUnit.SECONDS.toMillis(request.getVisibilityTimeout()));
+        return new ChangeMessageVisibilityResult();
+    }
+
+    @Override
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+            ChangeMessageVisibilityBatchRequest request) {
+        LocalQueue queue = broker.getQueueByUrl(request.getQueueUrl());
+        List<ChangeMessageVisibilityBatchResultEntry> successful = new ArrayList<>();
+        List<BatchResultErrorEntry> failed = new ArrayList<>();
+        for (ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+            try {
+                queue.changeVisibility(entry.getReceiptHandle(),
+                        TimeUnit.SECONDS.toMillis(entry.getVisibilityTimeout()));
+                successful.add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+            } catch (ReceiptHandleIsInvalidException e) {
+                failed.add(invalidReceipt(entry.getId(), e));
+            }
+        }
+        return new ChangeMessageVisibilityBatchResult().withSuccessful(successful).withFailed(failed);
+    }
+
+    private static BatchResultErrorEntry invalidReceipt(String id, ReceiptHandleIsInvalidException e) {
+        return new BatchResultErrorEntry()
+                .withId(id)
+                .withSenderFault(true)
+                .withCode("ReceiptHandleIsInvalid")
+                .withMessage(e.getErrorMessage());
+    }
+
+    private static long delay(Integer delaySeconds) {
+        return delaySeconds == null ? 0 : TimeUnit.SECONDS.toMillis(delaySeconds);
+    }
+}
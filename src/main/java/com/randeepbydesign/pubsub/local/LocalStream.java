@@ -0,0 +1,231 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Kinesis stream held in memory. The hash key space is split evenly over a fixed number of shards, and records are
+ * placed by the MD5 of their partition key, or their explicit hash key, as Kinesis does. Each shard keeps at most
+ * retention records, dropping the oldest beyond that, so long load tests do not run out of memory.
+ * <p>
+ * Checkpoints are kept per application name, so a worker started again under the same name resumes where the last
+ * one checkpointed.
+ */
+class LocalStream {
+
+    private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final String name;
+
+    private final String arn;
+
+    private final LocalShard[] shards;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Map<String, Map<String, String>> checkpoints = new ConcurrentHashMap<>();
+
+    LocalStream(String name, String arn, int shardCount, int retention) {
+        this.name = name;
+        this.arn = arn;
+        this.shards = new LocalShard[shardCount];
+        BigInteger width = HASH_KEY_SPACE.divide(BigInteger.valueOf(shardCount));
+        for (int i = 0; i < shardCount; i++) {
+            BigInteger start = width.multiply(BigInteger.valueOf(i));
+            BigInteger end = i == shardCount - 1 ? HASH_KEY_SPACE.subtract(BigInteger.ONE)
+                    : start.add(width).subtract(BigInteger.ONE);
+            shards[i] = new LocalShard(String.format("shardId-%012d", i), start, end, retention);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getArn() {
+        return arn;
+    }
+
+    List<LocalShard> getShards() {
+        List<LocalShard> ret = new ArrayList<>(shards.length);
+        Collections.addAll(ret, shards);
+        return ret;
+    }
+
+    LocalShard getShard(String shardId) {
+        for (LocalShard shard : shards) {
+            if (shard.shardId.equals(shardId)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param explicitHashKey decimal position in the hash key space, or null to hash the partition key
+     * @return the shard a record with these keys is put into
+     */
+    LocalShard shardFor(String partitionKey, String explicitHashKey) {
+        BigInteger hash = explicitHashKey != null ? new BigInteger(explicitHashKey) : hash(partitionKey);
+        for (LocalShard shard : shards) {
+            if (hash.compareTo(shard.end) <= 0) {
+                return shard;
+            }
+        }
+        return shards[shards.length - 1];
+    }
+
+    /**
+     * @return the record as stored, with its sequence number
+     */
+    Record put(LocalShard shard, String partitionKey, ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        return shard.append(partitionKey, copy, sequence);
+    }
+
+    void checkpoint(String applicationName, String shardId, String sequenceNumber) {
+        checkpoints.computeIfAbsent(applicationName, application -> new ConcurrentHashMap<>())
+                .put(shardId, sequenceNumber);
+    }
+
+    /**
+     * @return the last sequence number checkpointed, or null to read from the oldest record retained
+     */
+    String getCheckpoint(String applicationName, String shardId) {
+        Map<String, String> application = checkpoints.get(applicationName);
+        return application == null ? null : application.get(shardId);
+    }
+
+    private static BigInteger hash(String partitionKey) {
+        MessageDigest md5 = MD5.get();
+        md5.reset();
+        return new BigInteger(1, md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static class LocalShard {
+
+        private final String shardId;
+
+        private final BigInteger start;
+
+        private final BigInteger end;
+
+        private final int retention;
+
+        private final List<Record> records = new ArrayList<>();
+
+        /**
+         * Position in the shard of records.get(0), counting the records already dropped
+         */
+        private long firstPosition;
+
+        LocalShard(String shardId, BigInteger start, BigInteger end, int retention) {
+            this.shardId = shardId;
+            this.start = start;
+            this.end = end;
+            this.retention = retention;
+        }
+
+        String getShardId() {
+            return shardId;
+        }
+
+        Shard toShard() {
+            return new Shard()
+                    .withShardId(shardId)
+                    .withHashKeyRange(new HashKeyRange()
+                            .withStartingHashKey(start.toString())
+                            .withEndingHashKey(end.toString()))
+                    .withSequenceNumberRange(new SequenceNumberRange()
+                            .withStartingSequenceNumber(sequenceNumber(0)));
+        }
+
+        synchronized Record append(String partitionKey, ByteBuffer data, AtomicLong sequence) {
+            Record record = new Record()
+                    .withSequenceNumber(sequenceNumber(sequence.incrementAndGet()))
+                    .withPartitionKey(partitionKey)
+                    .withData(data)
+                    .withApproximateArrivalTimestamp(new Date());
+            records.add(record);
+            if (records.size() >= retention * 2) {
+                // Dropped in bulk so that appends stay cheap on average
+                int dropped = records.size() - retention;
+                records.subList(0, dropped).clear();
+                firstPosition += dropped;
+            }
+            return record;
+        }
+
+        /**
+         * @param position of the first record wanted; positions that were dropped are skipped
+         */
+        synchronized List<Record> read(long position, int max) {
+            int from = (int) Math.max(0, position - firstPosition);
+            if (from >= records.size()) {
+                return Collections.emptyList();
+            }
+            List<Record> ret = new ArrayList<>(Math.min(max, records.size() - from));
+            for (int i = from; i < records.size() && ret.size() < max; i++) {
+                // Every reader gets its own view of the data, like records fetched separately from Kinesis
+                Record record = records.get(i);
+                ret.add(record.clone().withData(record.getData().duplicate()));
+            }
+            return ret;
+        }
+
+        /**
+         * @return position of the next record to append
+         */
+        synchronized long getEndPosition() {
+            return firstPosition + records.size();
+        }
+
+        /**
+         * @return position of the record after the one with the given sequence number
+         */
+        synchronized long positionAfter(String sequenceNumber) {
+            int low = 0;
+            int high = records.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = records.get(mid).getSequenceNumber().compareTo(sequenceNumber);
+                if (cmp <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return firstPosition + low;
+        }
+
+        /**
+         * Zero padded so that sequence numbers sort the same as strings as they do as numbers
+         */
+        private static String sequenceNumber(long sequence) {
+            return String.format("%021d", sequence);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.randeepbydesign.pubsub.local;
+
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.Subscription;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * An SNS topic held in memory that fans every message out to the SQS queues subscribed to it. Like SNS, queues receive
+ * the message wrapped in a notification envelope unless the subscription uses raw message delivery, in which case they
+ * receive the bare message with the message attributes as SQS message attributes.
+ */
+class LocalTopic {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    });
+
+    private final String name;
+
+    private final String arn;
+
+    private final List<LocalSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    LocalTopic(String name, String arn) {
+        this.name = name;
+        this.arn = arn;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getArn() {
+        return arn;
+    }
+
+    /**
+     * @return the subscription arn
+     */
+    String subscribe(LocalQueue queue) {
+        for (LocalSubscription subscription : subscriptions) {
+            if (subscription.queue == queue) {
+                return subscription.arn;
+            }
+        }
+        LocalSubscription subscription = new LocalSubscription(arn + ":" + UUID.randomUUID(), queue);
+        subscriptions.add(subscription);
+        return subscription.arn;
+    }
+
+    /**
+     * @return false if the topic has no such subscription
+     */
+    boolean setRawMessageDelivery(String subscriptionArn, boolean raw) {
+        for (LocalSubscription subscription : subscriptions) {
+            if (subscription.arn.equals(subscriptionArn)) {
+                subscription.raw = raw;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    List<Subscription> getSubscriptions() {
+        return subscriptions.stream()
+                .map(subscription -> new Subscription()
+                        .withSubscriptionArn(subscription.arn)
+                        .withTopicArn(arn)
+                        .withProtocol("sqs")
+                        .withEndpoint(subscription.queue.getArn()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the id of the published message
+     */
+    String publish(String subject, String message, Map<String, MessageAttributeValue> messageAttributes) {
+        String messageId = UUID.randomUUID().toString();
+        String envelope = null;
+        for (LocalSubscription subscription : subscriptions) {
+            if (subscription.raw) {
+                subscription.queue.send(message, toSqsAttributes(messageAttributes), 0);
+            } else {
+                if (envelope == null) {
+                    envelope = envelope(messageId, subject, message, messageAttributes);
+                }
+                subscription.queue.send(envelope, null, 0);
+            }
+        }
+        return messageId;
+    }
+
+    /**
+     * The notification SNS delivers to SQS subscriptions. Signature fields are present but not real.
+     */
+    private String envelope(String messageId, String subject, String message,
+            Map<String, MessageAttributeValue> messageAttributes) {
+        StringWriter writer = new StringWriter(message.length() + 512);
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(writer)) {
+            json.writeStartObject();
+            json.writeStringField("Type", "Notification");
+            json.writeStringField("MessageId", messageId);
+            json.writeStringField("TopicArn", arn);
+            if (subject != null) {
+                json.writeStringField("Subject", subject);
+            }
+            json.writeStringField("Message", message);
+            json.writeStringField("Timestamp", TIMESTAMP_FORMAT.get().format(new Date()));
+            json.writeStringField("SignatureVersion", "1");
+            json.writeStringField("Signature", "LOCAL");
+            json.writeStringField("SigningCertURL", "http://localhost/SimpleNotificationService.pem");
+            json.writeStringField("UnsubscribeURL", "http://localhost/?Action=Unsubscribe&TopicArn=" + arn);
+            if (messageAttributes != null && !messageAttributes.isEmpty()) {
+                json.writeObjectFieldStart("MessageAttributes");
+                for (Map.Entry<String, MessageAttributeValue> attribute : messageAttributes.entrySet()) {
+                    json.writeObjectFieldStart(attribute.getKey());
+                    json.writeStringField("Type", attribute.getValue().getDataType());
+                    json.writeStringField("Value", attribute.getValue().getStringValue());
+                    json.writeEndObject();
+                }
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write notification for topic " + name, e);
+        }
+        return writer.toString();
+    }
+
+    private static Map<String, com.amazonaws.services.sqs.model.MessageAttributeValue> toSqsAttributes(
+            Map<String, MessageAttributeValue> messageAttributes) {
+        if (messageAttributes == null) {
+            return null;
+        }
+        Map<String, com.amazonaws.services.sqs.model.MessageAttributeValue> ret = new HashMap<>();
+        for (Map.Entry<String, MessageAttributeValue> attribute : messageAttributes.entrySet()) {
+            ret.put(attribute.getKey(), new com.amazonaws.services.sqs.model.MessageAttributeValue()
+                    .withDataType(attribute.getValue().getDataType())
+                    .withStringValue(attribute.getValue().getStringValue())
+                    .withBinaryValue(attribute.getValue().getBinaryValue()));
+        }
+        return ret;
+    }
+
+    private static class LocalSubscription {
+
+        private final String arn;
+
+        private final LocalQueue queue;
+
+        private volatile boolean raw;
+
+        LocalSubscription(String arn, LocalQueue queue) {
+            this.arn = arn;
+            this.queue = queue;
+        }
+    }
+}
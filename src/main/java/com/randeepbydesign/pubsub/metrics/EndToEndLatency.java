@@ -0,0 +1,87 @@
+package com.randeepbydesign.pubsub.metrics;
+
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records, per subject and messageType, how long messages took from being published to being received by a consumer
+ * and to being processed and handed over for acknowledgement. Both are measured in millis from the
+ * {@link MessageAttributes#PUBLISHED_AT} stamp, so they include any clock difference between publisher and consumer.
+ * Messages without the stamp are ignored.
+ * <p>
+ * Histograms are registered as {@code <prefix><subject>.<messageType>.publishToReceive} and
+ * {@code ...publishToAck}, with "none" standing in for a missing subject or messageType.
+ */
+public class EndToEndLatency {
+
+    private static final String NONE = "none";
+
+    private final MetricRegistry registry;
+
+    private final String prefix;
+
+    private final Map<String, Map<String, Latencies>> bySubject = new ConcurrentHashMap<>();
+
+    public EndToEndLatency(MetricRegistry registry, String prefix) {
+        this.registry = registry;
+        this.prefix = prefix;
+    }
+
+    public void received(Message message) {
+        long publishedAt = publishedAt(message);
+        if (publishedAt > 0) {
+            latencies(message).publishToReceive.record(System.currentTimeMillis() - publishedAt);
+        }
+    }
+
+    public void acknowledged(Message message) {
+        long publishedAt = publishedAt(message);
+        if (publishedAt > 0) {
+            latencies(message).publishToAck.record(System.currentTimeMillis() - publishedAt);
+        }
+    }
+
+    private Latencies latencies(Message message) {
+        String subject = message.getSubject() == null ? NONE : message.getSubject();
+        String messageType = message.getMessageType() == null ? NONE : message.getMessageType();
+        Map<String, Latencies> byType = bySubject.get(subject);
+        if (byType == null) {
+            byType = bySubject.computeIfAbsent(subject, s -> new ConcurrentHashMap<>());
+        }
+        Latencies latencies = byType.get(messageType);
+        if (latencies == null) {
+            // Only the first message of a subject and type gets here, so the capturing lambda is not on the hot path
+            latencies = byType.computeIfAbsent(messageType, type -> new Latencies(prefix + subject + "." + type + "."));
+        }
+        return latencies;
+    }
+
+    /**
+     * @return the stamp, or 0 if there is none
+     */
+    private static long publishedAt(Message message) {
+        String stamp = message.getAttribute(MessageAttributes.PUBLISHED_AT);
+        if (stamp == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(stamp);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private class Latencies {
+
+        private final Histogram publishToReceive;
+
+        private final Histogram publishToAck;
+
+        Latencies(String name) {
+            publishToReceive = registry.histogram(name + "publishToReceive");
+            publishToAck = registry.histogram(name + "publishToAck");
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.randeepbydesign.pubsub.metrics;
+
+/**
+ * A value read on demand, e.g. the number of records waiting in the KPL
+ */
+@FunctionalInterface
+public interface Gauge extends Metric {
+
+    double getValue();
+}
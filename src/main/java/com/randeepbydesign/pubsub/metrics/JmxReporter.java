@@ -0,0 +1,187 @@
+package com.randeepbydesign.pubsub.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes every metric of a registry as an MBean under the {@value #DOMAIN} domain, keeping up as metrics are added and
+ * removed. Values are read from the metrics when JMX asks for them.
+ */
+public class JmxReporter implements MetricRegistry.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(JmxReporter.class);
+
+    public static final String DOMAIN = "com.randeepbydesign.pubsub";
+
+    private final MetricRegistry registry;
+
+    private final MBeanServer server;
+
+    private final Map<String, ObjectName> registered = new ConcurrentHashMap<>();
+
+    public JmxReporter(MetricRegistry registry) {
+        this(registry, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxReporter(MetricRegistry registry, MBeanServer server) {
+        this.registry = registry;
+        this.server = server;
+    }
+
+    public void start() {
+        registry.addListener(this);
+    }
+
+    public void stop() {
+        registry.removeListener(this);
+        registered.keySet().forEach(this::unregister);
+    }
+
+    @Override
+    public void onAdded(String name, Metric metric) {
+        Object mbean;
+        String type;
+        if (metric instanceof Counter) {
+            mbean = new JmxCounter((Counter) metric);
+            type = "Counter";
+        } else if (metric instanceof Histogram) {
+            mbean = new JmxHistogram((Histogram) metric);
+            type = "Histogram";
+        } else if (metric instanceof Gauge) {
+            mbean = new JmxGauge((Gauge) metric);
+            type = "Gauge";
+        } else {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            unregister(name);
+            server.registerMBean(mbean, objectName);
+            registered.put(name, objectName);
+        } catch (JMException e) {
+            log.warn("Unable to expose metric " + name + " over JMX: " + e.getLocalizedMessage());
+        }
+    }
+
+    @Override
+    public void onRemoved(String name, Metric metric) {
+        unregister(name);
+    }
+
+    private void unregister(String name) {
+        ObjectName objectName = registered.remove(name);
+        if (objectName == null) {
+            return;
+        }
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.debug("Unable to unregister " + objectName + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    public interface JmxCounterMBean {
+
+        long getCount();
+    }
+
+    public interface JmxGaugeMBean {
+
+        double getValue();
+    }
+
+    public interface JmxHistogramMBean {
+
+        long getCount();
+
+        double getMean();
+
+        long getMax();
+
+        long get50thPercentile();
+
+        long get95thPercentile();
+
+        long get99thPercentile();
+
+        long get999thPercentile();
+    }
+
+    public static class JmxCounter implements JmxCounterMBean {
+
+        private final Counter counter;
+
+        JmxCounter(Counter counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public long getCount() {
+            return counter.getCount();
+        }
+    }
+
+    public static class JmxGauge implements JmxGaugeMBean {
+
+        private final Gauge gauge;
+
+        JmxGauge(Gauge gauge) {
+            this.gauge = gauge;
+        }
+
+        @Override
+        public double getValue() {
+            return gauge.getValue();
+        }
+    }
+
+    public static class JmxHistogram implements JmxHistogramMBean {
+
+        private final Histogram histogram;
+
+        JmxHistogram(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getMean();
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getMax();
+        }
+
+        @Override
+        public long get50thPercentile() {
+            return histogram.getPercentile(50);
+        }
+
+        @Override
+        public long get95thPercentile() {
+            return histogram.getPercentile(95);
+        }
+
+        @Override
+        public long get99thPercentile() {
+            return histogram.getPercentile(99);
+        }
+
+        @Override
+        public long get999thPercentile() {
+            return histogram.getPercentile(99.9);
+        }
+    }
+}
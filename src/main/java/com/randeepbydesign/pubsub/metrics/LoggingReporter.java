@@ -0,0 +1,31 @@
+package com.randeepbydesign.pubsub.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes one line per metric to the log
+ */
+public class LoggingReporter implements MetricsReporter {
+
+    private static final Logger log = LoggerFactory.getLogger(LoggingReporter.class);
+
+    @Override
+    public void report(SortedMap<String, Metric> metrics) {
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            Metric metric = entry.getValue();
+            if (metric instanceof Counter) {
+                log.info(entry.getKey() + " count=" + ((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                log.info(entry.getKey() + " value=" + ((Gauge) metric).getValue());
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                log.info(String.format("%s count=%d mean=%.1f p50=%d p99=%d max=%d", entry.getKey(),
+                        histogram.getCount(), histogram.getMean(), histogram.getPercentile(50),
+                        histogram.getPercentile(99), histogram.getMax()));
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.randeepbydesign.pubsub.metrics;
+
+/**
+ * Something a {@link MetricRegistry} can hold: a {@link Counter}, {@link Histogram} or {@link Gauge}
+ */
+public interface Metric {
+}
@@ -0,0 +1,103 @@
+package com.randeepbydesign.pubsub.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Named metrics of a process. Consumers and publishers register theirs with {@link #getDefault()} under names of the
+ * form {@code <service>.<queue, topic, stream or shard>.<metric>}, look them up once, and update them directly from then
+ * on.
+ */
+public class MetricRegistry {
+
+    private static final MetricRegistry DEFAULT = new MetricRegistry();
+
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Told about metrics as they are added and removed, e.g. to export them
+     */
+    public interface Listener {
+
+        void onAdded(String name, Metric metric);
+
+        void onRemoved(String name, Metric metric);
+    }
+
+    public static MetricRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the counter registered under the name, registering a new one if there is none
+     */
+    public Counter counter(String name) {
+        return getOrAdd(name, Counter.class, new Counter());
+    }
+
+    /**
+     * @return the histogram registered under the name, registering a new one if there is none
+     */
+    public Histogram histogram(String name) {
+        return getOrAdd(name, Histogram.class, new Histogram());
+    }
+
+    /**
+     * Register a gauge, replacing any registered under the same name, e.g. by an earlier owner of a Kinesis shard
+     */
+    public Gauge gauge(String name, Gauge gauge) {
+        Metric previous = metrics.put(name, gauge);
+        if (previous != null) {
+            listeners.forEach(listener -> listener.onRemoved(name, previous));
+        }
+        listeners.forEach(listener -> listener.onAdded(name, gauge));
+        return gauge;
+    }
+
+    /**
+     * Remove the metric registered under the name only if it is still the given one
+     */
+    public void remove(String name, Metric metric) {
+        if (metrics.remove(name, metric)) {
+            listeners.forEach(listener -> listener.onRemoved(name, metric));
+        }
+    }
+
+    /**
+     * @return the metrics currently registered, by name
+     */
+    public SortedMap<String, Metric> getMetrics() {
+        return new TreeMap<>(metrics);
+    }
+
+    /**
+     * Add a listener and tell it about the metrics already registered
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        metrics.forEach(listener::onAdded);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private <T extends Metric> T getOrAdd(String name, Class<T> type, T metric) {
+        Metric existing = metrics.putIfAbsent(name, metric);
+        if (existing == null) {
+            listeners.forEach(listener -> listener.onAdded(name, metric));
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + existing.getClass()
+                    .getSimpleName());
+        }
+        return type.cast(existing);
+    }
+}
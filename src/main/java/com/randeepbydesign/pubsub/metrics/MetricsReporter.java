@@ -0,0 +1,16 @@
+package com.randeepbydesign.pubsub.metrics;
+
+import java.util.SortedMap;
+
+/**
+ * Sends a snapshot of the metrics somewhere, e.g. a log or a monitoring service. Run on a schedule by a
+ * {@link PeriodicReporter}.
+ */
+@FunctionalInterface
+public interface MetricsReporter {
+
+    /**
+     * @param metrics every metric registered at the time, by name
+     */
+    void report(SortedMap<String, Metric> metrics);
+}
@@ -0,0 +1,52 @@
+package com.randeepbydesign.pubsub.metrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the metrics of a registry to a {@link MetricsReporter} at a fixed interval on a background thread
+ */
+public class PeriodicReporter {
+
+    private static final Logger log = LoggerFactory.getLogger(PeriodicReporter.class);
+
+    private final MetricRegistry registry;
+
+    private final MetricsReporter reporter;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param interval in millis
+     */
+    public PeriodicReporter(MetricRegistry registry, MetricsReporter reporter, long interval) {
+        this.registry = registry;
+        this.reporter = reporter;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::report, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop reporting after a final report
+     */
+    public void close() {
+        scheduler.shutdown();
+        report();
+    }
+
+    private void report() {
+        try {
+            reporter.report(registry.getMetrics());
+        } catch (Exception e) {
+            // Keep the schedule going; a failing reporter must not stop later reports
+            log.warn("Unable to report metrics: " + e.getLocalizedMessage());
+        }
+    }
+}
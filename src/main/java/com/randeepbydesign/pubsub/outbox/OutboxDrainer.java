@@ -0,0 +1,219 @@
+package com.randeepbydesign.pubsub.outbox;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.randeepbydesign.pubsub.JsonPublisher;
+import com.randeepbydesign.pubsub.TraceContext;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread replaying the committed entries of an {@link OutboxJournal} to a publisher, a batch at a time.
+ * Each batch is published asynchronously at no more than the given rate; entries that fail are retried with an
+ * exponential backoff until they succeed, and only then is the batch acknowledged in the journal. Entries are
+ * therefore published at least once: a batch cut short by a stop or a crash is published again on the next start.
+ */
+class OutboxDrainer {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxDrainer.class);
+
+    /**
+     * Time in millis to wait for new entries before reading the journal again
+     */
+    private static final long IDLE_WAIT = 1000l;
+
+    private static final long MIN_RETRY_BACKOFF = 100l;
+
+    private static final long MAX_RETRY_BACKOFF = 30000l;
+
+    private final OutboxJournal journal;
+
+    private final JsonPublisher delegate;
+
+    private final RateLimiter rateLimiter;
+
+    private final int batchSize;
+
+    private final Thread thread;
+
+    private volatile boolean stopping;
+
+    private final Counter drained;
+
+    private final Counter publishFailed;
+
+    private final Counter corrupt;
+
+    /**
+     * @param rate most entries to publish per second
+     */
+    OutboxDrainer(OutboxJournal journal, JsonPublisher delegate, double rate, int batchSize) {
+        if (rate <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid outbox drain configuration: rate=" + rate + ", batchSize="
+                    + batchSize);
+        }
+        this.journal = journal;
+        this.delegate = delegate;
+        this.rateLimiter = RateLimiter.create(rate);
+        this.batchSize = batchSize;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "outbox." + journal.getDirectory().getFileName() + ".";
+        this.drained = metrics.counter(prefix + "drained");
+        this.publishFailed = metrics.counter(prefix + "publishFailed");
+        this.corrupt = metrics.counter(prefix + "corrupt");
+        this.thread = new Thread(this::drain, "outbox-drain-" + journal.getDirectory().getFileName());
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Drain what has been committed, giving up once the timeout has passed; whatever is left is published on the next
+     * start
+     */
+    void stop(long timeout, TimeUnit unit) {
+        stopping = true;
+        try {
+            thread.join(unit.toMillis(timeout));
+            if (thread.isAlive()) {
+                thread.interrupt();
+                thread.join();
+                log.warn((journal.getCommittedOffset() - journal.getAcknowledgedOffset())
+                        + " bytes of outbox entries left in " + journal.getDirectory() + " for the next start");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        long offset = journal.getAcknowledgedOffset();
+        long backoff = MIN_RETRY_BACKOFF;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<OutboxJournal.Entry> entries = journal.read(offset, batchSize);
+                if (entries.isEmpty()) {
+                    if (stopping) {
+                        return;
+                    }
+                    journal.awaitCommitted(offset, IDLE_WAIT);
+                    continue;
+                }
+                if (!publish(entries)) {
+                    return;
+                }
+                drained.add(entries.size());
+                offset = entries.get(entries.size() - 1).getNextOffset();
+                journal.acknowledge(offset);
+                backoff = MIN_RETRY_BACKOFF;
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.error("Unable to drain outbox journal in " + journal.getDirectory() + ", retrying in " + backoff
+                        + "ms", e);
+                if (!sleep(backoff)) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF);
+            }
+        }
+    }
+
+    /**
+     * Publish the entries, retrying the ones that fail until they all succeed
+     *
+     * @return false if interrupted first
+     */
+    private boolean publish(List<OutboxJournal.Entry> entries) throws InterruptedException {
+        List<OutboxJournal.Entry> remaining = entries;
+        long backoff = MIN_RETRY_BACKOFF;
+        while (true) {
+            List<CompletableFuture<String>> results = new ArrayList<>(remaining.size());
+            for (OutboxJournal.Entry entry : remaining) {
+                rateLimiter.acquire();
+                results.add(replay(entry));
+            }
+            List<OutboxJournal.Entry> failed = new ArrayList<>();
+            Throwable cause = null;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    failed.add(remaining.get(i));
+                    cause = e.getCause();
+                }
+            }
+            if (failed.isEmpty()) {
+                return true;
+            }
+            publishFailed.add(failed.size());
+            log.warn("Unable to publish " + failed.size() + " outbox entries from offset " + failed.get(0).getOffset()
+                    + ", retrying in " + backoff + "ms: " + cause);
+            if (!sleep(backoff)) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF);
+            remaining = failed;
+        }
+    }
+
+    /**
+     * Publish the entry with the trace id and publish time it was journalled with
+     */
+    private CompletableFuture<String> replay(OutboxJournal.Entry entry) {
+        if (entry.isCorrupt()) {
+            // Like an entry that cannot be decoded, it can never be published
+            corrupt.increment();
+            log.error("Skipping corrupt outbox entry at offset " + entry.getOffset() + ", up to offset "
+                    + entry.getNextOffset());
+            return CompletableFuture.completedFuture(null);
+        }
+        OutboxEntry message;
+        try {
+            message = OutboxEntry.decode(entry.getData());
+        } catch (IOException e) {
+            // It can never be published, so holding up the rest of the journal for it would not help
+            corrupt.increment();
+            log.error("Skipping unreadable outbox entry at offset " + entry.getOffset(), e);
+            return CompletableFuture.completedFuture(null);
+        }
+        TraceContext.setTraceId(message.getTraceId());
+        TraceContext.setPublishedAt(message.getPublishedAt());
+        try {
+            if (message.getContentType() == null) {
+                return delegate.publishAsync(message.getSubject(),
+                        new String(message.getBody(), StandardCharsets.UTF_8));
+            }
+            return delegate.publishEncodedAsync(message.getSubject(), message.getBody(), message.getContentType());
+        } catch (RuntimeException e) {
+            CompletableFuture<String> ret = new CompletableFuture<>();
+            ret.completeExceptionally(e);
+            return ret;
+        } finally {
+            TraceContext.clear();
+        }
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.randeepbydesign.pubsub.outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A message waiting in the {@link OutboxJournal}, written as
+ * <pre>
+ * byte    version
+ * UTF     subject, empty for none
+ * UTF     content type of a body written by a codec, empty for a body published as a string
+ * UTF     trace id of the publishing thread, empty for none
+ * long    publish time in epoch millis
+ * ...     body
+ * </pre>
+ * Entries of version 1, journalled before the publish time was, are read with a publish time of 0, for unknown.
+ */
+final class OutboxEntry {
+
+    private static final int VERSION = 2;
+
+    private final String subject;
+
+    private final String contentType;
+
+    private final String traceId;
+
+    private final long publishedAt;
+
+    private final byte[] body;
+
+    /**
+     * @param contentType null for a body published as a string
+     * @param publishedAt in epoch millis
+     */
+    OutboxEntry(String subject, String contentType, String traceId, long publishedAt, byte[] body) {
+        this.subject = subject;
+        this.contentType = contentType;
+        this.traceId = traceId;
+        this.publishedAt = publishedAt;
+        this.body = body;
+    }
+
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeUTF(subject == null ? "" : subject);
+            out.writeUTF(contentType == null ? "" : contentType);
+            out.writeUTF(traceId == null ? "" : traceId);
+            out.writeLong(publishedAt);
+            out.write(body);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to encode outbox entry", e);
+        }
+    }
+
+    static OutboxEntry decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported outbox entry version " + version);
+        }
+        String subject = in.readUTF();
+        String contentType = in.readUTF();
+        String traceId = in.readUTF();
+        long publishedAt = version >= 2 ? in.readLong() : 0;
+        byte[] body = new byte[in.available()];
+        in.readFully(body);
+        return new OutboxEntry(subject.isEmpty() ? null : subject, contentType.isEmpty() ? null : contentType,
+                traceId.isEmpty() ? null : traceId, publishedAt, body);
+    }
+
+    String getSubject() {
+        return subject;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return in epoch millis, or 0 if unknown
+     */
+    long getPublishedAt() {
+        return publishedAt;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+}
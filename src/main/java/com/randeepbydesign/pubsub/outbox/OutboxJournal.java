@@ -0,0 +1,609 @@
+package com.randeepbydesign.pubsub.outbox;
+
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of opaque entries, kept in memory-mapped segment files in one directory. Each entry is written
+ * as
+ * <pre>
+ * int     length of the data
+ * int     CRC32 of the data
+ * ...     data
+ * </pre>
+ * and is addressed by its offset: the offset of its segment, which is also the segment's file name, plus its
+ * position in the segment. Entries never span segments; one that does not fit in the rest of a segment starts the next.
+ * <p>
+ * Appends are made durable by group commit: a single commit thread forces the segments written since its last pass to
+ * disk and then completes the futures of every append in that pass, so one fsync covers whatever was appended while
+ * the previous one ran. Only committed entries are read back. If forcing fails the journal fails too: the appends of
+ * that pass and every append after it fail, and nothing is committed past the last successful pass.
+ * <p>
+ * The reader acknowledges the offset it has processed up to, which is persisted so that a reopened journal resumes
+ * from there; segments wholly below it are deleted. On opening, the entries from the acknowledged offset on are
+ * scanned across every segment, so an entry torn by a crash is discarded along with anything after it, including
+ * later segments, e.g. one started just before the crash whose pages reached the disk when the earlier one's did not.
+ */
+public class OutboxJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxJournal.class);
+
+    /**
+     * Default size of each segment file in bytes
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Bytes in front of the data of each entry: its length and checksum
+     */
+    static final int ENTRY_HEADER = 8;
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+
+    private static final String ACKNOWLEDGED_FILE = "acknowledged";
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    /**
+     * Segments by their offset
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Guarded by this, as is everything below up to the committed offset
+     */
+    private Segment writeSegment;
+
+    private int writePosition;
+
+    private List<PendingAppend> pending = new ArrayList<>();
+
+    /**
+     * Segments written to since the last commit
+     */
+    private Set<Segment> dirty = new LinkedHashSet<>();
+
+    private boolean closed;
+
+    /**
+     * Why the journal failed, or null while it has not
+     */
+    private RuntimeException failure;
+
+    /**
+     * End of the entries forced to disk
+     */
+    private volatile long committedOffset;
+
+    private volatile long acknowledgedOffset;
+
+    private final Thread committer;
+
+    /**
+     * In micros, per fsync pass
+     */
+    private final Histogram commitLatency;
+
+    /**
+     * Appends made durable by each fsync pass
+     */
+    private final Histogram commitBatchSize;
+
+    public OutboxJournal(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory created if it does not exist; the journal in it, if any, is reopened
+     * @param segmentSize size in bytes of new segment files, which also bounds the size of an entry
+     */
+    public OutboxJournal(Path directory, int segmentSize) {
+        if (segmentSize <= ENTRY_HEADER) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.directory = directory.toAbsolutePath().normalize();
+        this.segmentSize = segmentSize;
+        try {
+            open();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open outbox journal in " + this.directory, e);
+        }
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "outbox." + this.directory.getFileName() + ".";
+        this.commitLatency = metrics.histogram(prefix + "commitLatency");
+        this.commitBatchSize = metrics.histogram(prefix + "commitBatchSize");
+        metrics.gauge(prefix + "backlogBytes", () -> committedOffset - acknowledgedOffset);
+        this.committer = new Thread(this::commit, "outbox-commit-" + this.directory.getFileName());
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Write the entry to the journal without waiting for the disk
+     *
+     * @param data at least one byte, and no more than the segment size less {@value #ENTRY_HEADER}
+     * @return a future completed with the entry's offset once it has been forced to disk
+     */
+    public CompletableFuture<Long> append(byte[] data) {
+        CompletableFuture<Long> ret = new CompletableFuture<>();
+        if (data.length == 0 || data.length > segmentSize - ENTRY_HEADER) {
+            ret.completeExceptionally(new IllegalArgumentException("Outbox entries must be from 1 to "
+                    + (segmentSize - ENTRY_HEADER) + " bytes, not " + data.length));
+            return ret;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        synchronized (this) {
+            if (closed) {
+                ret.completeExceptionally(new IllegalStateException("Outbox journal is closed: " + directory));
+                return ret;
+            }
+            if (failure != null) {
+                ret.completeExceptionally(new IllegalStateException("Outbox journal has failed: " + directory,
+                        failure));
+                return ret;
+            }
+            if (writePosition + ENTRY_HEADER + data.length > writeSegment.size()) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    ret.completeExceptionally(new RuntimeException("Unable to start outbox segment", e));
+                    return ret;
+                }
+            }
+            ByteBuffer buffer = writeSegment.buffer.duplicate();
+            buffer.position(writePosition);
+            buffer.putInt(data.length).putInt((int) crc.getValue()).put(data);
+            pending.add(new PendingAppend(writeSegment.offset + writePosition, ret));
+            dirty.add(writeSegment);
+            writePosition = buffer.position();
+            notifyAll();
+        }
+        return ret;
+    }
+
+    /**
+     * @param offset of the first entry to read, e.g. the acknowledged offset or the next offset of an entry
+     * @return up to maxEntries committed entries from the offset on, in order; empty if there are none yet. Entries
+     * that fail their checksum are returned as {@link Entry#isCorrupt corrupt}, so that readers can skip past them.
+     */
+    public List<Entry> read(long offset, int maxEntries) {
+        List<Entry> ret = new ArrayList<>();
+        long committed = committedOffset;
+        while (ret.size() < maxEntries && offset < committed) {
+            Map.Entry<Long, Segment> floor = segments.floorEntry(offset);
+            if (floor == null) {
+                throw new IllegalArgumentException("Offset " + offset + " is not in the outbox journal any more");
+            }
+            Segment segment = floor.getValue();
+            int position = (int) (offset - segment.offset);
+            int length = position + ENTRY_HEADER > segment.size() ? 0 : segment.buffer.getInt(position);
+            if (length == 0) {
+                // The rest of the segment was left empty; carry on in the next one
+                offset = segment.offset + segment.size();
+                continue;
+            }
+            // Appends are contiguous, so the committed offset, if in this segment, is where an entry starts
+            long end = Math.min(segment.offset + segment.size(), committed);
+            if (length < 0 || offset + ENTRY_HEADER + length > end) {
+                // The length itself is corrupt, so where the next entry starts is unknown; skip to where one is known to
+                ret.add(new Entry(offset, end, null));
+                offset = end;
+                continue;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(position + ENTRY_HEADER);
+            buffer.get(data);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            long nextOffset = offset + ENTRY_HEADER + length;
+            if ((int) crc.getValue() != segment.buffer.getInt(position + 4)) {
+                data = null;
+            }
+            ret.add(new Entry(offset, nextOffset, data));
+            offset = nextOffset;
+        }
+        return ret;
+    }
+
+    /**
+     * Wait until entries beyond the offset are committed
+     *
+     * @param timeout in millis
+     * @return true if there are committed entries beyond the offset
+     */
+    public synchronized boolean awaitCommitted(long offset, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long remaining = timeout;
+        while (committedOffset <= offset && !closed && failure == null && remaining > 0) {
+            wait(remaining);
+            remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+        return committedOffset > offset;
+    }
+
+    /**
+     * Record that every entry before the offset has been processed, so that they are not read again once the journal
+     * is reopened, and delete the segments that holds nothing else
+     */
+    public synchronized void acknowledge(long offset) throws IOException {
+        if (offset <= acknowledgedOffset) {
+            return;
+        }
+        if (offset > committedOffset) {
+            throw new IllegalArgumentException("Offset " + offset + " is beyond the committed offset "
+                    + committedOffset);
+        }
+        Path tmp = directory.resolve(ACKNOWLEDGED_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(offset).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(ACKNOWLEDGED_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        acknowledgedOffset = offset;
+        deleteSegmentsBefore(offset);
+    }
+
+    public long getAcknowledgedOffset() {
+        return acknowledgedOffset;
+    }
+
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return true once forcing entries to disk has failed, after which appends fail
+     */
+    public synchronized boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Commit whatever has been appended and stop; appends made after this fail
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of the commit thread
+     */
+    private void commit() {
+        while (true) {
+            List<PendingAppend> batch;
+            Set<Segment> toForce;
+            long end;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                toForce = dirty;
+                dirty = new LinkedHashSet<>();
+                end = writeSegment.offset + writePosition;
+            }
+            long start = System.nanoTime();
+            try {
+                for (Segment segment : toForce) {
+                    segment.buffer.force();
+                }
+            } catch (Throwable e) {
+                // On Java 8 force throws the IOException of the native call as it is
+                commitLatency.recordSince(start);
+                fail(batch, e);
+                return;
+            }
+            commitLatency.recordSince(start);
+            commitBatchSize.record(batch.size());
+            synchronized (this) {
+                committedOffset = end;
+                notifyAll();
+            }
+            batch.forEach(append -> append.result.complete(append.offset));
+        }
+    }
+
+    /**
+     * Fail the appends of the pass that could not be forced and every append after them, and stop committing: what
+     * was written past the committed offset cannot be trusted to reach the disk, so it is also cleared, as far as
+     * that is still possible, rather than replayed after a restart
+     */
+    private void fail(List<PendingAppend> batch, Throwable e) {
+        List<PendingAppend> failed = new ArrayList<>(batch);
+        RuntimeException cause = new RuntimeException("Unable to commit outbox entry in " + directory, e);
+        synchronized (this) {
+            failure = cause;
+            failed.addAll(pending);
+            pending = new ArrayList<>();
+            dirty = new LinkedHashSet<>();
+            clearAfter(committedOffset);
+            notifyAll();
+        }
+        log.error("Unable to commit " + failed.size() + " outbox entries in " + directory
+                + "; the journal accepts no more", e);
+        failed.forEach(append -> append.result.completeExceptionally(cause));
+    }
+
+    /**
+     * Zero whatever was written from the offset on. Guarded by this
+     */
+    private void clearAfter(long offset) {
+        for (Segment segment : segments.tailMap(segments.floorKey(offset)).values()) {
+            int from = (int) Math.max(0, offset - segment.offset);
+            int to = segment == writeSegment ? writePosition : segment.size();
+            try {
+                for (int i = from; i < to; i++) {
+                    segment.buffer.put(i, (byte) 0);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Unable to clear uncommitted outbox entries in " + segment.file + ": " + e
+                        .getLocalizedMessage());
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        Path acknowledged = directory.resolve(ACKNOWLEDGED_FILE);
+        if (Files.exists(acknowledged)) {
+            acknowledgedOffset = Long.parseLong(new String(Files.readAllBytes(acknowledged),
+                    StandardCharsets.US_ASCII).trim());
+        }
+        List<Long> offsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                offsets.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(offsets);
+        for (long offset : offsets) {
+            Path file = segmentFile(offset);
+            segments.put(offset, new Segment(file, offset, (int) Files.size(file)));
+        }
+        // A crash between persisting an acknowledgement and deleting segments leaves some behind
+        deleteSegmentsBefore(acknowledgedOffset);
+        if (segments.isEmpty()) {
+            writeSegment = new Segment(segmentFile(acknowledgedOffset), acknowledgedOffset, segmentSize);
+            segments.put(acknowledgedOffset, writeSegment);
+            writePosition = 0;
+        } else {
+            recover();
+        }
+        committedOffset = writeSegment.offset + writePosition;
+        if (committedOffset > acknowledgedOffset) {
+            log.info("Reopened outbox journal in " + directory + " with " + (committedOffset - acknowledgedOffset)
+                    + " bytes of unacknowledged entries");
+        }
+    }
+
+    /**
+     * Find the end of the valid entries from the acknowledged offset on and make it the write position. A segment's
+     * entries may only be followed by zeros, which is how a segment is left when the next entry does not fit; anything
+     * else is a torn entry, after which the segment is cleared and later segments are deleted.
+     */
+    private void recover() throws IOException {
+        Iterator<Segment> it = segments.values().iterator();
+        boolean torn = false;
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (torn) {
+                log.warn("Discarding outbox segment " + segment.file + " written after a torn entry");
+                it.remove();
+                Files.deleteIfExists(segment.file);
+                continue;
+            }
+            int position = scan(segment, (int) Math.max(0, acknowledgedOffset - segment.offset));
+            torn = !clear(segment, position);
+            if (torn) {
+                log.warn("Discarding torn outbox entry at offset " + (segment.offset + position));
+            }
+            writeSegment = segment;
+            writePosition = position;
+        }
+    }
+
+    /**
+     * @param position of the first entry to check
+     * @return the position after the last valid entry from there on
+     */
+    private static int scan(Segment segment, int position) {
+        MappedByteBuffer buffer = segment.buffer;
+        while (position + ENTRY_HEADER <= segment.size()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > segment.size() - position - ENTRY_HEADER) {
+                break;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer entry = buffer.duplicate();
+            entry.position(position + ENTRY_HEADER);
+            entry.get(data);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            position += ENTRY_HEADER + length;
+        }
+        return position;
+    }
+
+    /**
+     * Zero the segment from the position on, writing only the bytes that are not zero already
+     *
+     * @return true if they all were
+     */
+    private static boolean clear(Segment segment, int position) {
+        MappedByteBuffer buffer = segment.buffer;
+        boolean clean = true;
+        for (int i = position; i < segment.size(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                clean = false;
+            }
+        }
+        if (!clean) {
+            buffer.force();
+        }
+        return clean;
+    }
+
+    /**
+     * Guarded by this
+     */
+    private void roll() throws IOException {
+        long offset = writeSegment.offset + writeSegment.size();
+        writeSegment = new Segment(segmentFile(offset), offset, segmentSize);
+        segments.put(offset, writeSegment);
+        writePosition = 0;
+    }
+
+    /**
+     * Delete the segments that end at or before the offset, apart from the one being written to
+     */
+    private void deleteSegmentsBefore(long offset) throws IOException {
+        Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == writeSegment || segment.offset + segment.size() > offset) {
+                break;
+            }
+            it.remove();
+            // The mapping itself goes once the buffer is garbage collected
+            Files.deleteIfExists(segment.file);
+        }
+    }
+
+    private Path segmentFile(long offset) {
+        return directory.resolve(String.format("%020d", offset) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * An entry read back from the journal
+     */
+    public static final class Entry {
+
+        private final long offset;
+
+        private final long nextOffset;
+
+        private final byte[] data;
+
+        Entry(long offset, long nextOffset, byte[] data) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.data = data;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the offset to acknowledge once this entry, and every one before it, has been processed
+         */
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+        /**
+         * @return null if the entry is corrupt
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return true if the entry failed its checksum; it has no data, and its next offset is where the next entry
+         * is known to start, which may be further on if its length was corrupt too
+         */
+        public boolean isCorrupt() {
+            return data == null;
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path file;
+
+        private final long offset;
+
+        private final MappedByteBuffer buffer;
+
+        Segment(Path file, long offset, int size) throws IOException {
+            this.file = file;
+            this.offset = offset;
+            // The mapping stays valid once the channel is closed
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        int size() {
+            return buffer.capacity();
+        }
+    }
+
+    private static final class PendingAppend {
+
+        private final long offset;
+
+        private final CompletableFuture<Long> result;
+
+        PendingAppend(long offset, CompletableFuture<Long> result) {
+            this.offset = offset;
+            this.result = result;
+        }
+    }
+}
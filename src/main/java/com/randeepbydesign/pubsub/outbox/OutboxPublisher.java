@@ -0,0 +1,123 @@
+package com.randeepbydesign.pubsub.outbox;
+
+import com.randeepbydesign.pubsub.JsonPublisher;
+import com.randeepbydesign.pubsub.TraceContext;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publisher that writes messages to a local {@link OutboxJournal} rather than to the broker, and publishes them to the
+ * broker from a background thread. Publishing succeeds as soon as the message is on disk, so producers neither wait
+ * on AWS nor lose messages while SNS or Kinesis is unavailable; the journal holds them until the broker comes back,
+ * including across restarts.
+ * <p>
+ * Messages are encoded with the delegate's codec and replayed through it, so they reach the broker as they would have
+ * if published to the delegate directly, with the trace id of the thread that published them and the time they were
+ * journalled as their publish time, so that end-to-end latency includes the time spent in the journal. They are
+ * published at least once and, as batches are published concurrently, not necessarily in order.
+ * <pre>
+ * OutboxPublisher publisher = new OutboxPublisher(new SnsPublisher(sns, "orders"),
+ *         new OutboxJournal(Paths.get("/var/lib/orders/outbox")), 500d);
+ * </pre>
+ */
+public class OutboxPublisher extends JsonPublisher {
+
+    /**
+     * Default number of entries published at a time before they are acknowledged in the journal
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final OutboxJournal journal;
+
+    private final OutboxDrainer drainer;
+
+    private final Counter appended;
+
+    private final Counter appendFailed;
+
+    /**
+     * @param rate most messages per second to publish to the delegate, e.g. to stay within its throttling limits
+     */
+    public OutboxPublisher(JsonPublisher delegate, OutboxJournal journal, double rate) {
+        this(delegate, journal, rate, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize messages published at a time, and so how many may be published again after a restart
+     */
+    public OutboxPublisher(JsonPublisher delegate, OutboxJournal journal, double rate, int batchSize) {
+        super(delegate.getCodec());
+        this.journal = journal;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "outbox." + journal.getDirectory().getFileName() + ".";
+        this.appended = metrics.counter(prefix + "appended");
+        this.appendFailed = metrics.counter(prefix + "appendFailed");
+        this.drainer = new OutboxDrainer(journal, delegate, rate, batchSize);
+        drainer.start();
+    }
+
+    /**
+     * Blocks until the message is on disk, not until it is published
+     *
+     * @return the offset of the message in the journal
+     */
+    @Override
+    public String publish(String subject, String messageBody) {
+        return await(publishAsync(subject, messageBody));
+    }
+
+    /**
+     * @return a future completed with the offset of the message in the journal once it is on disk
+     */
+    @Override
+    public CompletableFuture<String> publishAsync(String subject, String messageBody) {
+        return append(subject, null, messageBody.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String publishEncoded(String subject, byte[] messageBody, String contentType) {
+        return await(publishEncodedAsync(subject, messageBody, contentType));
+    }
+
+    @Override
+    public CompletableFuture<String> publishEncodedAsync(String subject, byte[] messageBody, String contentType) {
+        return append(subject, contentType, messageBody);
+    }
+
+    /**
+     * Stop taking messages and publish those already journalled, for up to the timeout; the rest are published once
+     * the journal is opened again
+     */
+    public void close(long timeout, TimeUnit unit) {
+        journal.close();
+        drainer.stop(timeout, unit);
+    }
+
+    public OutboxJournal getJournal() {
+        return journal;
+    }
+
+    private CompletableFuture<String> append(String subject, String contentType, byte[] messageBody) {
+        byte[] entry;
+        try {
+            entry = new OutboxEntry(subject, contentType, TraceContext.getTraceId(), TraceContext.getPublishedAt(),
+                    messageBody).encode();
+        } catch (RuntimeException e) {
+            appendFailed.increment();
+            CompletableFuture<String> ret = new CompletableFuture<>();
+            ret.completeExceptionally(e);
+            return ret;
+        }
+        return journal.append(entry).handle((offset, e) -> {
+            if (e != null) {
+                appendFailed.increment();
+                throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+            }
+            appended.increment();
+            return Long.toString(offset);
+        });
+    }
+}
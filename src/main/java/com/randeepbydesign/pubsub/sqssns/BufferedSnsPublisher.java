@@ -0,0 +1,375 @@
+package com.randeepbydesign.pubsub.sqssns;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import com.randeepbydesign.pubsub.claimcheck.ClaimCheck;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.codec.MessageCodec;
+import com.randeepbydesign.pubsub.codec.PayloadCompressor;
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SNS publisher that groups messages into PublishBatch calls instead of making one request per message. A batch is
+ * sent once it holds {@value #MAX_BATCH_SIZE} messages, once adding another message would take it over the
+ * {@value #MAX_BATCH_BYTES} byte request limit, or once the oldest message in it has waited for the linger time.
+ * <p>
+ * Every publish returns a future that is completed with the SNS message id, or exceptionally with the error SNS
+ * reported for that entry.
+ * <p>
+ * {@link #close} sends whatever is still buffered and waits for the batches being sent, so that messages published
+ * before shutdown are not lost.
+ */
+public class BufferedSnsPublisher extends SnsPublisher {
+
+    private static final Logger log = LoggerFactory.getLogger(BufferedSnsPublisher.class);
+
+    /**
+     * Upper limit SNS places on the number of entries in a single PublishBatch call
+     */
+    static final int MAX_BATCH_SIZE = 10;
+
+    /**
+     * Upper limit SNS places on the combined size of the messages in a single PublishBatch call
+     */
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final long linger;
+
+    private final Semaphore pending;
+
+    private final ScheduledExecutorService lingerTimer;
+
+    private final ExecutorService sender;
+
+    private final Histogram batchSize;
+
+    private List<Entry> buffer = new ArrayList<>(MAX_BATCH_SIZE);
+
+    private int bufferBytes;
+
+    /**
+     * Guarded by this, so that no message is buffered once the buffer has been flushed for the last time
+     */
+    private boolean closed;
+
+    /**
+     * @param linger in millis; the longest a message waits for its batch to fill up
+     * @param maxPending the number of messages that may be buffered or being sent; once reached publishing blocks
+     * @param senderThreads number of batches that may be sent at the same time
+     */
+    public BufferedSnsPublisher(AmazonSNS publisher, String topicName, long linger, int maxPending,
+            int senderThreads) {
+        this(publisher, topicName, linger, maxPending, senderThreads, new JsonCodec());
+    }
+
+    /**
+     * @param codec encodes the objects published with {@link #publishObject}
+     */
+    public BufferedSnsPublisher(AmazonSNS publisher, String topicName, long linger, int maxPending,
+            int senderThreads, MessageCodec codec) {
+        this(publisher, topicName, linger, maxPending, senderThreads, codec, null);
+    }
+
+    /**
+     * @param compressor compresses bodies from its threshold up, which also lets more of them into each batch; null to
+     * send them as they are
+     */
+    public BufferedSnsPublisher(AmazonSNS publisher, String topicName, long linger, int maxPending,
+            int senderThreads, MessageCodec codec, PayloadCompressor compressor) {
+        this(publisher, topicName, linger, maxPending, senderThreads, codec, compressor, null);
+    }
+
+    /**
+     * @param claimCheck stores bodies over its threshold and publishes a reference instead; null to publish every body
+     * as it is
+     */
+    public BufferedSnsPublisher(AmazonSNS publisher, String topicName, long linger, int maxPending,
+            int senderThreads, MessageCodec codec, PayloadCompressor compressor, ClaimCheck claimCheck) {
+        super(publisher, topicName, DEFAULT_MAX_IN_FLIGHT, codec, compressor, claimCheck);
+        this.linger = linger;
+        this.pending = new Semaphore(maxPending);
+        this.batchSize = MetricRegistry.getDefault().histogram("sns." + topicName + ".batchSize");
+        AtomicInteger threadId = new AtomicInteger();
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sns-linger-" + topicName);
+            t.setDaemon(true);
+            return t;
+        });
+        this.sender = Executors.newFixedThreadPool(senderThreads, r -> {
+            Thread t = new Thread(r, "sns-batch-" + topicName + "-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Blocks until the message's batch has been sent. Prefer {@link #publishAsync} so that callers are not held up by
+     * the linger time.
+     */
+    @Override
+    protected String publish(final String subject, final String messageBody,
+            final Map<String, MessageAttributeValue> attributes) {
+        return await(publishAsync(subject, messageBody, attributes));
+    }
+
+    /**
+     * @param attributes stamped when the message is buffered, so the linger time counts towards its end-to-end latency
+     */
+    @Override
+    protected CompletableFuture<String> publishAsync(final String subject, final String messageBody,
+            final Map<String, MessageAttributeValue> attributes) {
+        Entry entry = new Entry(subject, messageBody, attributes);
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            entry.result.completeExceptionally(new RuntimeException("Interrupted waiting to publish message", e));
+            return entry.result;
+        }
+        List<Entry> full = null;
+        synchronized (this) {
+            if (closed) {
+                pending.release();
+                entry.result.completeExceptionally(new RuntimeException("Publisher is closed"));
+                return entry.result;
+            }
+            if (!buffer.isEmpty() && bufferBytes + entry.bytes > MAX_BATCH_BYTES) {
+                full = drain();
+            }
+            buffer.add(entry);
+            bufferBytes += entry.bytes;
+            if (buffer.size() == 1) {
+                List<Entry> batch = buffer;
+                lingerTimer.schedule(() -> flush(batch), linger, TimeUnit.MILLISECONDS);
+            }
+            if (buffer.size() == MAX_BATCH_SIZE) {
+                send(drain());
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return entry.result;
+    }
+
+    /**
+     * Send whatever is buffered without waiting for the linger time
+     */
+    public void flush() {
+        List<Entry> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        send(batch);
+    }
+
+    /**
+     * Send whatever is buffered, stop taking messages and wait for the batches being sent. Blocks for at most the
+     * given time; messages whose batch has not been sent by then fail.
+     */
+    @Override
+    public void close(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Entry> batch;
+        synchronized (this) {
+            closed = true;
+            batch = drain();
+        }
+        lingerTimer.shutdownNow();
+        send(batch);
+        sender.shutdown();
+        try {
+            if (!sender.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                int unsent = 0;
+                for (Runnable task : sender.shutdownNow()) {
+                    unsent += ((BatchTask) task).fail();
+                }
+                log.warn(unsent + " buffered messages not sent before shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Send the batch the linger timer was started for, if it has not been sent already
+     */
+    private void flush(List<Entry> batch) {
+        synchronized (this) {
+            if (buffer != batch) {
+                return;
+            }
+            drain();
+        }
+        send(batch);
+    }
+
+    private List<Entry> drain() {
+        List<Entry> ret = buffer;
+        buffer = new ArrayList<>(MAX_BATCH_SIZE);
+        bufferBytes = 0;
+        return ret;
+    }
+
+    private void send(List<Entry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            sender.execute(new BatchTask(batch));
+        } catch (RejectedExecutionException e) {
+            // Only once closed and the deadline has passed
+            new BatchTask(batch).fail();
+        }
+    }
+
+    private void publishBatch(List<Entry> batch) {
+        List<PublishBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            PublishBatchRequestEntry requestEntry = new PublishBatchRequestEntry();
+            requestEntry.setId(Integer.toString(i));
+            requestEntry.setSubject(entry.subject);
+            requestEntry.setMessage(entry.messageBody);
+            requestEntry.setMessageAttributes(entry.attributes);
+            entries.add(requestEntry);
+        }
+        PublishBatchRequest request = new PublishBatchRequest();
+        request.setTopicArn(getTopicArn());
+        request.setPublishBatchRequestEntries(entries);
+        PublishBatchResult result;
+        batchSize.record(batch.size());
+        long start = System.nanoTime();
+        try {
+            result = getPublisher().publishBatch(request);
+            publishLatency.recordSince(start);
+        } catch (Exception e) {
+            publishLatency.recordSince(start);
+            publishFailed.add(batch.size());
+            log.warn("Unable to publish batch of " + batch.size() + " messages: " + e.getLocalizedMessage());
+            RuntimeException failure = new RuntimeException("Unable to publish message", e);
+            batch.forEach(entry -> entry.result.completeExceptionally(failure));
+            return;
+        }
+        for (PublishBatchResultEntry success : result.getSuccessful()) {
+            batch.get(Integer.parseInt(success.getId())).result.complete(success.getMessageId());
+        }
+        for (BatchResultErrorEntry failure : result.getFailed()) {
+            batch.get(Integer.parseInt(failure.getId())).result.completeExceptionally(new RuntimeException(
+                    "Unable to publish message (" + failure.getCode() + "): " + failure.getMessage()));
+        }
+        for (Entry entry : batch) {
+            if (!entry.result.isDone()) {
+                entry.result.completeExceptionally(new RuntimeException("No result reported for message"));
+            }
+        }
+        published.add(result.getSuccessful().size());
+        publishFailed.add(batch.size() - result.getSuccessful().size());
+        log.debug("Published " + result.getSuccessful().size() + " of " + batch.size() + " messages");
+    }
+
+    /**
+     * Sends one batch, or fails its messages if shut down before it could
+     */
+    private class BatchTask implements Runnable {
+
+        private final List<Entry> batch;
+
+        BatchTask(List<Entry> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                publishBatch(batch);
+            } finally {
+                pending.release(batch.size());
+            }
+        }
+
+        /**
+         * @return the number of messages failed
+         */
+        int fail() {
+            RuntimeException failure = new RuntimeException("Publisher closed before the message was sent");
+            batch.forEach(entry -> entry.result.completeExceptionally(failure));
+            pending.release(batch.size());
+            publishFailed.add(batch.size());
+            return batch.size();
+        }
+    }
+
+    private static class Entry {
+
+        private final String subject;
+
+        private final String messageBody;
+
+        private final Map<String, MessageAttributeValue> attributes;
+
+        private final int bytes;
+
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Entry(String subject, String messageBody, Map<String, MessageAttributeValue> attributes) {
+            this.subject = subject;
+            this.messageBody = messageBody;
+            this.attributes = attributes;
+            this.bytes = utf8Length(messageBody) + attributesLength(attributes);
+        }
+    }
+
+    /**
+     * Size SNS counts against the request limit for message attributes: the name, data type and value of each
+     */
+    static int attributesLength(Map<String, MessageAttributeValue> attributes) {
+        int bytes = 0;
+        for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+            bytes += utf8Length(attribute.getKey()) + utf8Length(attribute.getValue().getDataType())
+                    + utf8Length(attribute.getValue().getStringValue());
+        }
+        return bytes;
+    }
+
+    /**
+     * Size of the string once UTF-8 encoded, without encoding it
+     */
+    static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,54 @@
+package com.randeepbydesign.pubsub.sqssns;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The parts of the JSON envelope SNS wraps around a notification delivered to SQS that consumers care about
+ */
+public class SnsEnvelope {
+
+    private final String messageId;
+    private final String subject;
+    private final String message;
+    private final String timestamp;
+    private final Map<String, String> messageAttributes;
+
+    public SnsEnvelope(String messageId, String subject, String message, String timestamp,
+            Map<String, String> messageAttributes) {
+        this.messageId = messageId;
+        this.subject = subject;
+        this.message = message;
+        this.timestamp = timestamp;
+        this.messageAttributes = messageAttributes == null ? Collections.emptyMap() : messageAttributes;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the published message body, unescaped
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the ISO-8601 time SNS accepted the message
+     */
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the Value of each message attribute keyed by attribute name; binary values are left base64 encoded
+     */
+    public Map<String, String> getMessageAttributes() {
+        return messageAttributes;
+    }
+}
@@ -0,0 +1,127 @@
+package com.randeepbydesign.pubsub.sqssns;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts an {@link SnsEnvelope} from the body of an SQS message in a single pass over a streaming parser. Fields that
+ * are not needed (signatures, URLs, etc) are skipped without being decoded, and the Message field is fully unescaped
+ * so JSON payloads come through intact.
+ * <p>
+ * Instances are thread safe.
+ */
+public class SnsEnvelopeDecoder {
+
+    private static final Logger log = LoggerFactory.getLogger(SnsEnvelopeDecoder.class);
+
+    private final JsonFactory jsonFactory;
+
+    public SnsEnvelopeDecoder() {
+        this(new JsonFactory());
+    }
+
+    public SnsEnvelopeDecoder(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * @return the decoded envelope, or null if the body is not an SNS notification envelope
+     */
+    public SnsEnvelope decode(String body) {
+        if (!startsWithObject(body)) {
+            return null;
+        }
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            return decode(parser);
+        } catch (IOException e) {
+            log.debug("Message body is not valid JSON: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private SnsEnvelope decode(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        String type = null;
+        String messageId = null;
+        String subject = null;
+        String message = null;
+        String timestamp = null;
+        Map<String, String> messageAttributes = null;
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "Type":
+                    type = parser.getValueAsString();
+                    break;
+                case "MessageId":
+                    messageId = parser.getValueAsString();
+                    break;
+                case "Subject":
+                    subject = parser.getValueAsString();
+                    break;
+                case "Message":
+                    message = parser.getValueAsString();
+                    break;
+                case "Timestamp":
+                    timestamp = parser.getValueAsString();
+                    break;
+                case "MessageAttributes":
+                    if (value == JsonToken.START_OBJECT) {
+                        messageAttributes = decodeAttributes(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (message == null || (type != null && !"Notification".equals(type))) {
+            return null;
+        }
+        return new SnsEnvelope(messageId, subject, message, timestamp, messageAttributes);
+    }
+
+    /**
+     * SNS delivers each attribute as {"Type": "...", "Value": "..."}; only the value is kept
+     */
+    private Map<String, String> decodeAttributes(JsonParser parser) throws IOException {
+        Map<String, String> attributes = new HashMap<>();
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                parser.nextToken();
+                if ("Value".equals(field)) {
+                    attributes.put(name, parser.getValueAsString());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return attributes;
+    }
+
+    private static boolean startsWithObject(String body) {
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+}
@@ -1,56 +1,323 @@
 package com.randeepbydesign.pubsub.sqssns;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
 import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
 import com.amazonaws.services.sns.model.ListTopicsResult;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
 import com.amazonaws.services.sns.model.Topic;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.randeepbydesign.pubsub.JsonPublisher;
-import com.randeepbydesign.pubsub.Publisher;
+import com.randeepbydesign.pubsub.MessageAttributes;
+import com.randeepbydesign.pubsub.TraceContext;
+import com.randeepbydesign.pubsub.claimcheck.ClaimCheck;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import com.randeepbydesign.pubsub.codec.MessageCodec;
+import com.randeepbydesign.pubsub.codec.PayloadCompressor;
 import com.randeepbydesign.pubsub.domain.Bottle;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static java.util.stream.Collectors.toList;
 
+/**
+ * Every message is published with the {@link MessageAttributes#PUBLISHED_AT} attribute, and the
+ * {@link MessageAttributes#TRACE_ID} attribute if the publishing thread has a trace id. Objects are also published with
+ * the {@link MessageAttributes#CONTENT_TYPE} of the codec; binary codecs are base64 encoded, since SNS messages are
+ * strings.
+ * <p>
+ * Given a {@link PayloadCompressor}, bodies from its threshold up are compressed and sent base64 encoded with the
+ * {@link MessageAttributes#CONTENT_ENCODING} attribute, as long as that comes out smaller than sending them as they
+ * are. {@link SqsConsumer} decompresses them again before they reach the message processor.
+ * <p>
+ * Given a {@link ClaimCheck}, bodies still over its threshold once compressed are stored in its blob store before
+ * publishing, also by {@link #publishAsync}, and the reference is published in their place with the
+ * {@link MessageAttributes#CLAIM_CHECK} attribute. Should the publish fail, the blob is deleted again, see
+ * {@link ClaimCheck#discard}, unless the failure was on the client's side and SNS may have taken the message after all.
+ */
 public class SnsPublisher extends JsonPublisher {
 
     private static final Logger log = LoggerFactory.getLogger(SnsPublisher.class);
 
+    /**
+     * Default number of asynchronous publishes that may be outstanding; matches the SNS client's default connection
+     * pool size
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 50;
+
     final private AmazonSNS publisher;
     final private String topicName;
 
-    private Topic topic = null;
+    private volatile Topic topic = null;
+
+    private final Semaphore inFlight;
+
+    private final ExecutorService asyncExecutor;
+
+    /**
+     * Null unless bodies are to be compressed
+     */
+    private final PayloadCompressor compressor;
+
+    /**
+     * Null unless oversized bodies are to be stored rather than published
+     */
+    private final ClaimCheck claimCheck;
+
+    final Counter published;
+
+    final Counter publishFailed;
+
+    /**
+     * In micros, per call to SNS
+     */
+    final Histogram publishLatency;
+
+    private final Counter compressed;
+
+    /**
+     * Bytes compression took off the bodies sent, counted as UTF-8 as SNS does
+     */
+    private final Counter bytesSaved;
+
+    private final Counter claimChecked;
 
     public SnsPublisher(AmazonSNS publisher, String topicName) {
-        super(new ObjectMapper());
+        this(publisher, topicName, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxInFlight the number of asynchronous publishes that may be outstanding; once reached
+     * {@link #publishAsync} blocks until one completes
+     */
+    public SnsPublisher(AmazonSNS publisher, String topicName, int maxInFlight) {
+        this(publisher, topicName, maxInFlight, new JsonCodec());
+    }
+
+    /**
+     * @param codec encodes the objects published with {@link #publishObject}
+     */
+    public SnsPublisher(AmazonSNS publisher, String topicName, int maxInFlight, MessageCodec codec) {
+        this(publisher, topicName, maxInFlight, codec, null);
+    }
+
+    /**
+     * @param compressor compresses bodies from its threshold up; null to send them as they are
+     */
+    public SnsPublisher(AmazonSNS publisher, String topicName, int maxInFlight, MessageCodec codec,
+            PayloadCompressor compressor) {
+        this(publisher, topicName, maxInFlight, codec, compressor, null);
+    }
+
+    /**
+     * @param claimCheck stores bodies over its threshold and publishes a reference instead; null to publish every body
+     * as it is
+     */
+    public SnsPublisher(AmazonSNS publisher, String topicName, int maxInFlight, MessageCodec codec,
+            PayloadCompressor compressor, ClaimCheck claimCheck) {
+        super(codec);
+        this.compressor = compressor;
+        this.claimCheck = claimCheck;
         this.publisher = publisher;
         this.topicName = topicName;
+        this.inFlight = new Semaphore(maxInFlight);
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "sns." + topicName + ".";
+        this.published = metrics.counter(prefix + "published");
+        this.publishFailed = metrics.counter(prefix + "publishFailed");
+        this.publishLatency = metrics.histogram(prefix + "publishLatency");
+        this.compressed = metrics.counter(prefix + "compressed");
+        this.bytesSaved = metrics.counter(prefix + "bytesSaved");
+        this.claimChecked = metrics.counter(prefix + "claimChecked");
+        metrics.gauge(prefix + "inFlight", () -> maxInFlight - inFlight.availablePermits());
+        // Threads are only created up to the in-flight limit, since every task holds a permit
+        this.asyncExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "sns-publish-" + topicName);
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
     public String publish(final String subject, final String messageBody) {
+        Map<String, MessageAttributeValue> attributes = stampAttributes();
+        return publishText(subject, toText(messageBody, attributes), attributes);
+    }
+
+    @Override
+    public String publishEncoded(final String subject, final byte[] messageBody, final String contentType) {
+        Map<String, MessageAttributeValue> attributes = withContentType(stampAttributes(), contentType);
+        return publishText(subject, toText(messageBody, attributes), attributes);
+    }
+
+    /**
+     * Publish on the calling thread with the given message attributes
+     */
+    protected String publish(final String subject, final String messageBody,
+            final Map<String, MessageAttributeValue> attributes) {
         PublishRequest publishRequest = new PublishRequest();
         publishRequest.setMessage(messageBody);
         publishRequest.setSubject(subject);
-        publishRequest.setTopicArn(getTopic().getTopicArn());
+        publishRequest.setTopicArn(getTopicArn());
+        publishRequest.setMessageAttributes(attributes);
 
         /*
         If the connection to the Topic or SNS becomes invalid this becomes a point of failure. Publishing would not
-        work and a backup would be needed. For example, storing the messageBody to a datastore for resending when
-        the connection does become available.
+        work and a backup would be needed; wrapping this publisher in an OutboxPublisher journals messages to local
+        disk first and resends them when the connection does become available.
          */
-        System.out.println("Publishing message " + publishRequest.getMessage());
-        PublishResult publishResult = publisher.publish(publishRequest);
-        System.out.println("Published with id: " + publishResult.getMessageId());
+        long start = System.nanoTime();
+        PublishResult publishResult;
+        try {
+            publishResult = publisher.publish(publishRequest);
+        } catch (RuntimeException e) {
+            publishFailed.increment();
+            throw e;
+        } finally {
+            publishLatency.recordSince(start);
+        }
+        published.increment();
+        log.debug("Published with id: " + publishResult.getMessageId());
         return publishResult.getMessageId();
     }
 
+    /**
+     * Publishes on a background thread. The publish time and trace id are taken from the calling thread.
+     */
+    @Override
+    public CompletableFuture<String> publishAsync(final String subject, final String messageBody) {
+        Map<String, MessageAttributeValue> attributes = stampAttributes();
+        final String text;
+        try {
+            text = toText(messageBody, attributes);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        return publishTextAsync(subject, text, attributes);
+    }
+
+    @Override
+    public CompletableFuture<String> publishEncodedAsync(final String subject, final byte[] messageBody,
+            final String contentType) {
+        Map<String, MessageAttributeValue> attributes = withContentType(stampAttributes(), contentType);
+        final String text;
+        try {
+            text = toText(messageBody, attributes);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        return publishTextAsync(subject, text, attributes);
+    }
+
+    /**
+     * Publish on a background thread with the given message attributes
+     */
+    protected CompletableFuture<String> publishAsync(final String subject, final String messageBody,
+            final Map<String, MessageAttributeValue> attributes) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(new RuntimeException("Interrupted waiting to publish message", e));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> publish(subject, messageBody, attributes), asyncExecutor)
+                    .whenComplete((messageId, e) -> inFlight.release());
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Publish the encoded body, cleaning up after it if it fails
+     */
+    private String publishText(String subject, String text, Map<String, MessageAttributeValue> attributes) {
+        try {
+            return publish(subject, text, attributes);
+        } catch (RuntimeException e) {
+            discardClaimCheck(text, attributes, e);
+            throw e;
+        }
+    }
+
+    private CompletableFuture<String> publishTextAsync(String subject, String text,
+            Map<String, MessageAttributeValue> attributes) {
+        CompletableFuture<String> ret;
+        try {
+            ret = publishAsync(subject, text, attributes);
+        } catch (RuntimeException e) {
+            discardClaimCheck(text, attributes, e);
+            throw e;
+        }
+        return ret.whenComplete((messageId, e) -> {
+            if (e != null) {
+                discardClaimCheck(text, attributes, e);
+            }
+        });
+    }
+
+    /**
+     * Delete the blob of a claim-checked message that failed to publish, unless SNS may have taken it after all
+     */
+    private void discardClaimCheck(String text, Map<String, MessageAttributeValue> attributes, Throwable e) {
+        if (claimCheck == null || !attributes.containsKey(MessageAttributes.CLAIM_CHECK)) {
+            return;
+        }
+        if (mayHaveBeenPublished(e)) {
+            claimCheck.orphan(text, e.getLocalizedMessage());
+        } else {
+            claimCheck.discard(text);
+        }
+    }
+
+    /**
+     * @return true for failures on the client's side, such as timeouts, which may come after SNS took the message; SNS
+     * reporting an error, and failures before the message was sent, mean it was not published
+     */
+    private static boolean mayHaveBeenPublished(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                return false;
+            }
+            if (cause instanceof SdkClientException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop taking asynchronous publishes and wait for those outstanding to complete. Blocks for at most the given time.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        asyncExecutor.shutdown();
+        try {
+            if (!asyncExecutor.awaitTermination(timeout, unit)) {
+                log.warn("Publishes to " + topicName + " still outstanding at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Ensure that the given SQS is subscribed to the Topic referred to by this instance
      * @param sqsName
@@ -58,7 +325,7 @@ public class SnsPublisher extends JsonPublisher {
      */
     public boolean verifySqsSubscriptionToTopic(final String sqsName) {
         ListSubscriptionsByTopicResult subscriptions = publisher
-                .listSubscriptionsByTopic(getTopic().getTopicArn());
+                .listSubscriptionsByTopic(getTopicArn());
         if (subscriptions.getSubscriptions().stream().noneMatch(
                 subscription -> subscription.getProtocol().equals("sqs") && subscription.getEndpoint()
                         .endsWith(sqsName))) {
@@ -67,6 +334,101 @@ public class SnsPublisher extends JsonPublisher {
         return true;
     }
 
+    /**
+     * @return the {@link MessageAttributes#PUBLISHED_AT} and {@link MessageAttributes#TRACE_ID} attributes for a
+     * message published now from the current thread
+     */
+    protected static Map<String, MessageAttributeValue> stampAttributes() {
+        Map<String, MessageAttributeValue> attributes = new HashMap<>(4);
+        attributes.put(MessageAttributes.PUBLISHED_AT, new MessageAttributeValue().withDataType("Number")
+                .withStringValue(Long.toString(TraceContext.getPublishedAt())));
+        String traceId = TraceContext.getTraceId();
+        if (traceId != null) {
+            attributes.put(MessageAttributes.TRACE_ID, new MessageAttributeValue().withDataType("String")
+                    .withStringValue(traceId));
+        }
+        return attributes;
+    }
+
+    /**
+     * @return the text to publish for the body
+     */
+    private String toText(String messageBody, Map<String, MessageAttributeValue> attributes) {
+        if (compressor == null && claimCheck == null) {
+            return messageBody;
+        }
+        String ret = encode(messageBody.getBytes(StandardCharsets.UTF_8), false, attributes);
+        return ret == null ? messageBody : ret;
+    }
+
+    /**
+     * @param messageBody as written by the codec
+     * @return the text to publish for the body
+     */
+    private String toText(byte[] messageBody, Map<String, MessageAttributeValue> attributes) {
+        MessageCodec codec = getCodec();
+        String ret = encode(messageBody, codec.isBinary(), attributes);
+        return ret == null ? codec.toText(messageBody) : ret;
+    }
+
+    /**
+     * Compress the body if it then comes out shorter than the text it would otherwise be sent as, and store it if it
+     * is still over the claim check's threshold, adding the matching attributes
+     *
+     * @param binary true if the body has to be base64 encoded to be sent as text
+     * @return the text to publish in place of the body, or null to publish the body as it is
+     */
+    private String encode(byte[] messageBody, boolean binary, Map<String, MessageAttributeValue> attributes) {
+        byte[] data = messageBody;
+        int textLength = binary ? base64Length(messageBody.length) : messageBody.length;
+        if (compressor != null) {
+            // Compressed bodies are always base64 encoded, which turns every 3 bytes into 4 characters
+            byte[] compressedBody = compressor.compress(messageBody, textLength / 4 * 3);
+            if (compressedBody != null) {
+                attributes.put(MessageAttributes.CONTENT_ENCODING, new MessageAttributeValue()
+                        .withDataType("String").withStringValue(compressor.getContentEncoding()));
+                compressed.increment();
+                bytesSaved.add(textLength - base64Length(compressedBody.length));
+                data = compressedBody;
+                textLength = base64Length(compressedBody.length);
+            }
+        }
+        if (claimCheck != null && textLength > claimCheck.getThreshold()) {
+            // The blob holds the bytes themselves; only message bodies need to be text
+            String reference = claimCheck.store(data);
+            attributes.put(MessageAttributes.CLAIM_CHECK, new MessageAttributeValue().withDataType("Number")
+                    .withStringValue(Integer.toString(data.length)));
+            claimChecked.increment();
+            return reference;
+        }
+        return data == messageBody ? null : Base64.getEncoder().encodeToString(data);
+    }
+
+    private static int base64Length(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    private static CompletableFuture<String> failed(Throwable e) {
+        CompletableFuture<String> ret = new CompletableFuture<>();
+        ret.completeExceptionally(e);
+        return ret;
+    }
+
+    private static Map<String, MessageAttributeValue> withContentType(Map<String, MessageAttributeValue> attributes,
+            String contentType) {
+        attributes.put(MessageAttributes.CONTENT_TYPE, new MessageAttributeValue().withDataType("String")
+                .withStringValue(contentType));
+        return attributes;
+    }
+
+    protected AmazonSNS getPublisher() {
+        return publisher;
+    }
+
+    protected String getTopicArn() {
+        return getTopic().getTopicArn();
+    }
+
     private Topic getTopic() {
         if(topic==null) {
             ListTopicsResult res = publisher.listTopics();
@@ -0,0 +1,238 @@
+package com.randeepbydesign.pubsub.sqssns;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects receipt handles of processed messages from any number of threads and removes them from the queue in
+ * batches on a background thread. A batch is sent as soon as {@value #MAX_BATCH_SIZE} receipts are waiting, otherwise
+ * whatever has accumulated is sent once the flush interval passes. Entries that SQS reports as failed are retried on
+ * their own; the rest of the batch is not resent.
+ */
+public class SqsAcknowledger {
+
+    private static final Logger log = LoggerFactory.getLogger(SqsAcknowledger.class);
+
+    /**
+     * Upper limit SQS places on the number of entries in a single batch delete
+     */
+    static final int MAX_BATCH_SIZE = 10;
+
+    private final AmazonSQS sqs;
+
+    private final String sqsUrl;
+
+    private final int maxAttempts;
+
+    private final Queue<Receipt> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final ScheduledExecutorService sender;
+
+    private volatile boolean closed;
+
+    private final Counter deleted;
+
+    private final Counter deleteFailed;
+
+    /**
+     * In micros, per batch delete call
+     */
+    private final Histogram deleteLatency;
+
+    private final Histogram deleteBatchSize;
+
+    /**
+     * @param flushInterval in millis; the longest a receipt waits for a batch to fill before it is sent anyway
+     * @param maxAttempts number of times a receipt is sent before it is given up on and left to the visibility timeout
+     */
+    public SqsAcknowledger(AmazonSQS sqs, String sqsUrl, long flushInterval, int maxAttempts) {
+        this.sqs = sqs;
+        this.sqsUrl = sqsUrl;
+        this.maxAttempts = maxAttempts;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "sqs." + sqsUrl.substring(sqsUrl.lastIndexOf('/') + 1) + ".";
+        this.deleted = metrics.counter(prefix + "deleted");
+        this.deleteFailed = metrics.counter(prefix + "deleteFailed");
+        this.deleteLatency = metrics.histogram(prefix + "deleteLatency");
+        this.deleteBatchSize = metrics.histogram(prefix + "deleteBatchSize");
+        this.sender = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sqs-ack-" + sqsUrl.substring(sqsUrl.lastIndexOf('/') + 1));
+            t.setDaemon(true);
+            return t;
+        });
+        sender.scheduleWithFixedDelay(() -> send(false), flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue the receipt handle of a successfully processed message for removal. Does not block on the delete call.
+     */
+    public void acknowledge(String receiptHandle) {
+        add(new Receipt(receiptHandle, null));
+    }
+
+    /**
+     * @param onDeleted run on the acknowledger's thread once SQS confirms the message is deleted, and not at all if it
+     * never does
+     */
+    public void acknowledge(String receiptHandle, Runnable onDeleted) {
+        add(new Receipt(receiptHandle, onDeleted));
+    }
+
+    /**
+     * Send everything currently pending, then stop the background thread. Blocks for at most the given time.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        closed = true;
+        try {
+            sender.execute(() -> send(false));
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        sender.shutdown();
+        try {
+            if (!sender.awaitTermination(timeout, unit)) {
+                log.warn(pendingCount.get() + " acknowledgements not sent before shutdown of " + sqsUrl);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of receipts waiting to be sent
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    private void add(Receipt receipt) {
+        pending.add(receipt);
+        if (pendingCount.incrementAndGet() % MAX_BATCH_SIZE == 0) {
+            try {
+                sender.execute(() -> send(true));
+            } catch (RejectedExecutionException e) {
+                // Closed underneath us; deliver on the caller rather than lose the acknowledgement
+                send(false);
+            }
+        } else if (closed) {
+            send(false);
+        }
+    }
+
+    /**
+     * @param fullBatchesOnly when true, leaves a trailing partial batch for the timed flush to pick up
+     */
+    private void send(boolean fullBatchesOnly) {
+        int threshold = fullBatchesOnly ? MAX_BATCH_SIZE : 1;
+        List<Receipt> retries = new ArrayList<>();
+        while (pendingCount.get() >= threshold) {
+            List<Receipt> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            Receipt receipt;
+            while (batch.size() < MAX_BATCH_SIZE && (receipt = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                batch.add(receipt);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            deleteBatch(batch, retries);
+        }
+        // Failed entries go back only after this pass so that they wait for the next flush
+        for (Receipt receipt : retries) {
+            pending.add(receipt);
+            pendingCount.incrementAndGet();
+        }
+    }
+
+    private void deleteBatch(List<Receipt> batch, List<Receipt> retries) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            DeleteMessageBatchRequestEntry entry = new DeleteMessageBatchRequestEntry();
+            entry.setId(Integer.toString(i));
+            entry.setReceiptHandle(batch.get(i).receiptHandle);
+            entries.add(entry);
+        }
+        DeleteMessageBatchRequest request = new DeleteMessageBatchRequest();
+        request.setQueueUrl(sqsUrl);
+        request.setEntries(entries);
+        DeleteMessageBatchResult result;
+        long start = System.nanoTime();
+        deleteBatchSize.record(batch.size());
+        try {
+            result = sqs.deleteMessageBatch(request);
+            deleteLatency.recordSince(start);
+        } catch (Exception e) {
+            deleteLatency.recordSince(start);
+            deleteFailed.add(batch.size());
+            log.warn("Unable to acknowledge " + batch.size() + " messages on " + sqsUrl + ": " + e
+                    .getLocalizedMessage());
+            batch.forEach(receipt -> retry(receipt, retries));
+            return;
+        }
+        log.debug("Acknowledged " + result.getSuccessful().size() + " of " + batch.size() + " messages");
+        deleted.add(result.getSuccessful().size());
+        deleteFailed.add(result.getFailed().size());
+        for (DeleteMessageBatchResultEntry success : result.getSuccessful()) {
+            Runnable onDeleted = batch.get(Integer.parseInt(success.getId())).onDeleted;
+            if (onDeleted != null) {
+                try {
+                    onDeleted.run();
+                } catch (RuntimeException e) {
+                    log.warn("Unable to complete acknowledgement: " + e.getLocalizedMessage());
+                }
+            }
+        }
+        for (BatchResultErrorEntry failure : result.getFailed()) {
+            Receipt failed = batch.get(Integer.parseInt(failure.getId()));
+            if (Boolean.TRUE.equals(failure.getSenderFault())) {
+                // e.g. a receipt handle that expired; sending it again will not help
+                log.warn("Acknowledgement rejected (" + failure.getCode() + "): " + failure.getMessage());
+            } else {
+                retry(failed, retries);
+            }
+        }
+    }
+
+    private void retry(Receipt receipt, List<Receipt> retries) {
+        if (++receipt.attempts >= maxAttempts) {
+            log.error("Giving up acknowledging message after " + receipt.attempts + " attempts; it will be "
+                    + "redelivered once its visibility timeout expires");
+            return;
+        }
+        retries.add(receipt);
+    }
+
+    private static class Receipt {
+
+        private final String receiptHandle;
+
+        private final Runnable onDeleted;
+
+        private int attempts;
+
+        Receipt(String receiptHandle, Runnable onDeleted) {
+            this.receiptHandle = receiptHandle;
+            this.onDeleted = onDeleted;
+        }
+    }
+}
@@ -2,97 +2,434 @@ package com.randeepbydesign.pubsub.sqssns;
 
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
-import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.randeepbydesign.pubsub.BatchMessageProcessor;
+import com.randeepbydesign.pubsub.MessageAttributes;
 import com.randeepbydesign.pubsub.MessageConsumer;
 import com.randeepbydesign.pubsub.MessageProcessor;
+import com.randeepbydesign.pubsub.ProcessingResult;
+import com.randeepbydesign.pubsub.ShutdownReport;
+import com.randeepbydesign.pubsub.TraceContext;
+import com.randeepbydesign.pubsub.claimcheck.ClaimCheck;
+import com.randeepbydesign.pubsub.claimcheck.ClaimCheckMessage;
+import com.randeepbydesign.pubsub.codec.PayloadCompressor;
 import com.randeepbydesign.pubsub.domain.Bottle;
 import com.randeepbydesign.pubsub.impl.JsonMapperProcessor;
 import com.randeepbydesign.pubsub.impl.PoisonPillMessageProcessor;
 import com.randeepbydesign.pubsub.impl.PrintlnProcessor;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.EndToEndLatency;
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.JmxReporter;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import org.slf4j.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.slf4j.LoggerFactory;
 
-import static java.util.stream.Collectors.toList;
-
 /**
- * Setup a polling consumer that can run in a separate thread
+ * Setup a polling consumer that can run in a separate thread.
+ * <p>
+ * By default a single thread polls for one message at a time and processes it inline. In concurrent mode a number of
+ * long-poll threads each fetch up to {@value #MAX_RECEIVE_BATCH} messages and hand them to a bounded worker pool.
+ * Pollers only ask SQS for as many messages as the pool has room for, so polling stops while the pool is saturated.
+ * <p>
+ * A {@link BatchMessageProcessor} is handed everything a receive returns in one call, and receives ask for up to
+ * {@value #MAX_RECEIVE_BATCH} messages even when processing inline.
+ * <p>
+ * Given a {@link ClaimCheck}, messages published with one are handed to the processor as a {@link ClaimCheckMessage}
+ * that fetches the body from the blob store when it is read, and the blob is deleted once the message is acknowledged.
+ * <p>
+ * {@link #shutdown} stops the consumer without leaving messages stranded: pollers finish their current receive and
+ * stop, messages already received are given until the deadline to be processed, the acknowledgements of processed
+ * messages are sent, and whatever was received but not processed is made visible again at once rather than after its
+ * visibility timeout.
  */
 public class SqsConsumer implements MessageConsumer {
 
     private static final Logger log = LoggerFactory.getLogger(SqsConsumer.class);
 
+    /**
+     * Upper limit SQS places on the number of messages returned by a single receive call
+     */
+    static final int MAX_RECEIVE_BATCH = 10;
+
+    /**
+     * Time in millis a poller waits before trying again after a failed receive
+     */
+    private static final long POLL_ERROR_BACKOFF = 1000l;
+
+    /**
+     * Longest time in millis a poller sleeps at once when the processor asks for a pause before checking again
+     */
+    private static final long MAX_PAUSE = 5000l;
+
+    /**
+     * Time in millis {@link #stopPolling} gives messages in flight to finish
+     */
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 30000l;
+
+    /**
+     * Time in millis between checks for a shutdown while a poller waits for room in the worker pool
+     */
+    private static final long STOP_CHECK_INTERVAL = 200l;
+
+    /**
+     * Time in millis a processed message waits for its delete batch to fill before it is sent anyway
+     */
+    private static final long ACK_FLUSH_INTERVAL = 200l;
+
+    private static final int ACK_MAX_ATTEMPTS = 5;
+
     private final MessageProcessor messageProcessor;
 
-    private boolean stopRunning;
+    /**
+     * The messageProcessor when it can take whole batches, otherwise null
+     */
+    private final BatchMessageProcessor batchProcessor;
+
+    private volatile boolean stopRunning;
 
     private final AmazonSQS consumer;
 
     private final String sqsName;
 
-    Thread t;
+    private final int pollerCount;
+
+    private final int workerCount;
 
-    private String sqsUrl;
+    private final int queueDepth;
+
+    private final List<Thread> pollers = new ArrayList<>();
+
+    private ThreadPoolExecutor workers;
 
     /**
-     *
+     * Receipt handles of the messages received and not yet processed
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Pollers wait on this while pausing, so that a shutdown can wake them
+     */
+    private final Object idle = new Object();
+
+    /**
+     * Slots available in the worker pool (running plus queued). Pollers take a slot for every message they request and
+     * workers hand it back once the message has been processed.
+     */
+    private Semaphore capacity;
+
+    /**
+     * In seconds; 0 leaves the queue's own visibility timeout in place without extending it
+     */
+    private final int visibilityTimeout;
+
+    /**
+     * Null unless messages published with a claim check are to be resolved
+     */
+    private final ClaimCheck claimCheck;
+
+    private volatile SqsAcknowledger acknowledger;
+
+    private volatile SqsLeaseManager leaseManager;
+
+    private volatile String sqsUrl;
+
+    private final Counter polls;
+
+    private final Counter emptyPolls;
+
+    private final Counter received;
+
+    private final Counter processed;
+
+    private final Counter failed;
+
+    private final Counter acknowledged;
+
+    /**
+     * In micros
+     */
+    private final Histogram receiveLatency;
+
+    /**
+     * In micros, per call to the message processor
+     */
+    private final Histogram processLatency;
+
+    private final Histogram receiveBatchSize;
+
+    private final EndToEndLatency endToEndLatency;
+
+    /**
+     * Single poller that processes each message inline on the polling thread
      */
     public SqsConsumer(AmazonSQS consumer, String sqsName, MessageProcessor messageProcessor) {
+        this(consumer, sqsName, messageProcessor, 1, 0, 0, 0);
+    }
+
+    /**
+     * @param pollerCount number of threads long-polling the queue
+     * @param workerCount number of threads running the messageProcessor; 0 processes messages inline on the polling
+     * thread, one message per receive
+     * @param queueDepth number of received messages that may wait for a free worker before pollers stop receiving
+     * @param visibilityTimeout in seconds; when set, messages are received with this (short) visibility timeout, which
+     * is extended for as long as they are being processed and reset to 0 when processing fails so they can be retried
+     * right away; at least 2 seconds. 0 leaves the queue's visibility timeout in charge
+     * @see SqsLeaseManager
+     */
+    public SqsConsumer(AmazonSQS consumer, String sqsName, MessageProcessor messageProcessor, int pollerCount,
+            int workerCount, int queueDepth, int visibilityTimeout) {
+        this(consumer, sqsName, messageProcessor, pollerCount, workerCount, queueDepth, visibilityTimeout, null);
+    }
+
+    /**
+     * @param claimCheck resolves messages published with a claim check; null to process them as they are
+     */
+    public SqsConsumer(AmazonSQS consumer, String sqsName, MessageProcessor messageProcessor, int pollerCount,
+            int workerCount, int queueDepth, int visibilityTimeout, ClaimCheck claimCheck) {
+        if (pollerCount < 1 || workerCount < 0 || queueDepth < 0 || visibilityTimeout < 0) {
+            throw new IllegalArgumentException("Invalid consumer configuration: pollers=" + pollerCount + ", workers="
+                    + workerCount + ", queueDepth=" + queueDepth);
+        }
+        if (visibilityTimeout > 0 && visibilityTimeout < SqsLeaseManager.MIN_VISIBILITY_TIMEOUT) {
+            throw new IllegalArgumentException("Visibility timeout must be 0 or at least "
+                    + SqsLeaseManager.MIN_VISIBILITY_TIMEOUT + " seconds: " + visibilityTimeout);
+        }
         this.consumer = consumer;
         this.sqsName = sqsName;
         this.messageProcessor = messageProcessor;
+        this.batchProcessor = messageProcessor instanceof BatchMessageProcessor
+                ? (BatchMessageProcessor) messageProcessor : null;
+        this.pollerCount = pollerCount;
+        this.workerCount = workerCount;
+        this.queueDepth = queueDepth;
+        this.visibilityTimeout = visibilityTimeout;
+        this.claimCheck = claimCheck;
         this.sqsUrl = null;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "sqs." + sqsName + ".";
+        this.polls = metrics.counter(prefix + "polls");
+        this.emptyPolls = metrics.counter(prefix + "emptyPolls");
+        this.received = metrics.counter(prefix + "received");
+        this.processed = metrics.counter(prefix + "processed");
+        this.failed = metrics.counter(prefix + "failed");
+        this.acknowledged = metrics.counter(prefix + "acknowledged");
+        this.receiveLatency = metrics.histogram(prefix + "receiveLatency");
+        this.processLatency = metrics.histogram(prefix + "processLatency");
+        this.receiveBatchSize = metrics.histogram(prefix + "receiveBatchSize");
+        this.endToEndLatency = new EndToEndLatency(metrics, prefix);
+        metrics.gauge(prefix + "emptyPollRatio", () -> {
+            long total = polls.getCount();
+            return total == 0 ? 0 : (double) emptyPolls.getCount() / total;
+        });
     }
 
     /**
-     * Kicks off a thread to begin listening for messages from the configured queue which will be processed according to
-     * the input messageProcessor
+     * Kicks off the polling thread(s) to begin listening for messages from the configured queue which will be processed
+     * according to the input messageProcessor
      */
     @Override
-    public void startPolling() {
-        if (t != null && t.isAlive()) {
+    public synchronized void startPolling() {
+        if (pollers.stream().anyMatch(Thread::isAlive)) {
             log.info("Consumer appears to already be running");
             return;
         }
+        pollers.clear();
+        acknowledger = null;
+        leaseManager = null;
+        inFlight.clear();
         stopRunning = false;
-        t = new Thread(() -> {
-            while (!stopRunning) {
-                pollAndConsume(this.getSqsUrl(), this.getReceiveMessageRequest(), messageProcessor);
-            }
-            log.info("Terminating execution");
-        });
-        t.start();
+        if (isConcurrent()) {
+            capacity = new Semaphore(workerCount + queueDepth);
+            AtomicInteger workerId = new AtomicInteger();
+            workers = new ThreadPoolExecutor(workerCount, workerCount, 0l, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueDepth)),
+                    r -> new Thread(r, "sqs-worker-" + sqsName + "-" + workerId.incrementAndGet()),
+                    // A worker hands back its slot just before it finishes, so a poller can occasionally get ahead
+                    // of the pool; run the overflow on the poller, which also holds off the next receive
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        for (int i = 0; i < pollerCount; i++) {
+            Thread t = new Thread(() -> {
+                while (!stopRunning) {
+                    try {
+                        long pause = messageProcessor.pauseMillis();
+                        if (pause > 0) {
+                            // The processor cannot succeed right now; leave the messages on the queue
+                            pause(Math.min(pause, MAX_PAUSE));
+                            continue;
+                        }
+                        prepare();
+                        if (isConcurrent()) {
+                            pollAndDispatch(this.getSqsUrl());
+                        } else {
+                            pollAndConsume(this.getSqsUrl(), this.getReceiveMessageRequest(
+                                    batchProcessor == null ? 1 : MAX_RECEIVE_BATCH), messageProcessor);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (Exception e) {
+                        if (!stopRunning) {
+                            log.error("Unable to poll " + sqsName + " for messages: ", e);
+                            pauseAfterError();
+                        }
+                    }
+                }
+                log.info("Terminating execution");
+            }, "sqs-poller-" + sqsName + "-" + i);
+            pollers.add(t);
+            t.start();
+        }
     }
 
     /**
-     * If the queue thread is running, notifies it to terminate
+     * Shuts the consumer down, giving messages in flight up to {@value #DEFAULT_SHUTDOWN_TIMEOUT}ms to finish
+     *
+     * @see #shutdown
      */
     @Override
     public void stopPolling() {
         log.warn("Stopping poll of server for messages to consume");
-        if (t == null) {
+        ShutdownReport report = shutdown(DEFAULT_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        log.info("Stopped consuming " + sqsName + ": " + report);
+    }
+
+    /**
+     * Stop receiving and let pollers finish the receive they are in, so that no message is received only to be
+     * abandoned. Messages already received are processed until the deadline; those still unprocessed then, whether
+     * waiting for a worker or still running, are made visible again right away. The acknowledgements of processed
+     * messages are sent before returning.
+     */
+    @Override
+    public ShutdownReport shutdown(long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        List<Thread> stopping;
+        synchronized (this) {
+            if (pollers.isEmpty() || stopRunning) {
+                return ShutdownReport.of(true, 0l);
+            }
+            stopRunning = true;
+            stopping = new ArrayList<>(pollers);
+        }
+        synchronized (idle) {
+            idle.notifyAll();
+        }
+        try {
+            // Inline, pollers process what they received before they stop
+            for (Thread t : stopping) {
+                t.join(Math.max(1l, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+            int received = inFlight.size();
+            boolean drained = stopping.stream().noneMatch(Thread::isAlive);
+            if (workers != null) {
+                workers.shutdown();
+                drained &= workers.awaitTermination(Math.max(0l, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+            }
+            if (!drained) {
+                // Messages still queued for a worker are dropped here and released below
+                stopping.forEach(Thread::interrupt);
+                if (workers != null) {
+                    workers.shutdownNow();
+                }
+            }
+            int abandoned = inFlight.size();
+            int unacknowledged = 0;
+            if (acknowledger != null) {
+                // Workers still finishing up deliver their acknowledgements directly once this is closed
+                acknowledger.close(Math.max(ACK_FLUSH_INTERVAL * 10,
+                        TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), TimeUnit.MILLISECONDS);
+                unacknowledged = acknowledger.getPendingCount();
+            }
+            if (leaseManager != null) {
+                leaseManager.close();
+            }
+            int released = inFlight.isEmpty() ? 0 : SqsLeaseManager.releaseAll(consumer, getSqsUrl(), inFlight);
+            inFlight.clear();
+            return new ShutdownReport(drained, received, abandoned, unacknowledged, released,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopping.forEach(Thread::interrupt);
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            return new ShutdownReport(false, inFlight.size(), inFlight.size(), 0, 0,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Set up the helpers that need the queue URL, which is looked up on first use
+     */
+    private void prepare() {
+        if (acknowledger != null) {
             return;
         }
-        this.stopRunning = true;
-        t.interrupt();
+        synchronized (this) {
+            if (acknowledger == null) {
+                if (visibilityTimeout > 0) {
+                    leaseManager = new SqsLeaseManager(consumer, getSqsUrl(), visibilityTimeout);
+                }
+                acknowledger = new SqsAcknowledger(consumer, getSqsUrl(), ACK_FLUSH_INTERVAL, ACK_MAX_ATTEMPTS);
+            }
+        }
+    }
+
+    private void pauseAfterError() {
+        try {
+            pause(POLL_ERROR_BACKOFF);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private ReceiveMessageRequest getReceiveMessageRequest() {
+    /**
+     * Sleep unless shutting down, waking early if a shutdown starts
+     */
+    private void pause(long millis) throws InterruptedException {
+        synchronized (idle) {
+            if (!stopRunning) {
+                idle.wait(millis);
+            }
+        }
+    }
+
+    private boolean isConcurrent() {
+        return workerCount > 0;
+    }
+
+    private ReceiveMessageRequest getReceiveMessageRequest(int maxNumberOfMessages) {
         ReceiveMessageRequest ret = new ReceiveMessageRequest();
         //If no messages are found, the process will hang out for the specified amount of time for messages to arrive.
         ret.setWaitTimeSeconds(8);
         ret.setQueueUrl(this.getSqsUrl());
-        ret.setMaxNumberOfMessages(1);
+        ret.setMaxNumberOfMessages(maxNumberOfMessages);
+        // Only present on the SQS message itself when the subscription uses raw message delivery
+        ret.setMessageAttributeNames(RECEIVED_ATTRIBUTES);
+        if (visibilityTimeout > 0) {
+            ret.setVisibilityTimeout(visibilityTimeout);
+        }
         return ret;
     }
 
@@ -111,7 +448,6 @@ public class SqsConsumer implements MessageConsumer {
      */
     private void pollAndConsume(final String sqsUrl, ReceiveMessageRequest request,
             MessageProcessor messageProcessor) {
-        final List<String> successfullyProcessedReceipts = new ArrayList<>();
         /**
          * Making this call will set the flag, so-to-speak, on the messages that are returned so that
          * AWS does not deliver them to another consumer. This lock will be valid for the duration of
@@ -119,55 +455,265 @@ public class SqsConsumer implements MessageConsumer {
          * a reattempt cannot happen until the time expires.
          *
          * Setting it too low, however, means that if the process of consuming the message takes longer than expected
-         * it may be processed multiple times.
+         * it may be processed multiple times. With a visibilityTimeout configured the lease manager resolves this by
+         * extending the lock while processing is underway and releasing it as soon as processing fails.
          */
+        List<Message> messages = receive(request);
+        log.info("Received " + messages.size() + " for processing from " + sqsUrl);
+        track(messages);
+        if (stopRunning) {
+            // Received while shutting down; released by the shutdown
+            return;
+        }
+        if (batchProcessor != null) {
+            processBatch(messages);
+            return;
+        }
+        for (Message message : messages) {
+            process(message, messageProcessor);
+        }
+    }
+
+    private List<Message> receive(ReceiveMessageRequest request) {
+        long start = System.nanoTime();
         ReceiveMessageResult res = consumer.receiveMessage(request);
-        log.info("Received " + res.getMessages().size() + " for processing from " + sqsUrl);
-        for (Message message : res.getMessages()) {
-            try {
-                final String receipt = messageProcessor.processMessage(convertMessage(message));
-                if (receipt != null) {
-                    successfullyProcessedReceipts.add(receipt);
-                }
-            } catch (Exception e) {
-                log.error("Unable to process message: ", e);
+        receiveLatency.recordSince(start);
+        List<Message> messages = res.getMessages();
+        polls.increment();
+        if (messages.isEmpty()) {
+            emptyPolls.increment();
+        }
+        received.add(messages.size());
+        receiveBatchSize.record(messages.size());
+        return messages;
+    }
+
+    /**
+     * Concurrent counterpart of {@link #pollAndConsume}: waits for room in the worker pool, receives at most that many
+     * messages and hands each one to a worker
+     */
+    private void pollAndDispatch(final String sqsUrl) throws InterruptedException {
+        int slots = reserveCapacity();
+        if (slots == 0) {
+            return;
+        }
+        try {
+            List<Message> messages = receive(getReceiveMessageRequest(slots));
+            log.debug("Received " + messages.size() + " for processing from " + sqsUrl);
+            track(messages);
+            if (stopRunning) {
+                // Received while shutting down; released by the shutdown
+                return;
             }
+            capacity.release(slots - messages.size());
+            slots = 0;
+            if (messages.isEmpty()) {
+                return;
+            }
+            if (batchProcessor != null) {
+                workers.execute(() -> {
+                    try {
+                        processBatch(messages);
+                    } finally {
+                        capacity.release(messages.size());
+                    }
+                });
+                return;
+            }
+            for (Message message : messages) {
+                workers.execute(() -> {
+                    try {
+                        process(message, messageProcessor);
+                    } finally {
+                        capacity.release();
+                    }
+                });
+            }
+        } finally {
+            capacity.release(slots);
         }
+    }
 
-        /*
-        Point of failure: if the program unexpectedly terminates here, the messages would have been processed but not
-        removed and thus, would be processed again. Some Transactional magic could be used to mitigate this, but its
-        best to try and make processing idempotent.
-         */
-        if (successfullyProcessedReceipts.size() > 0) {
-            log.info("Acknowledging " + successfullyProcessedReceipts.size() + " for removal");
-            DeleteMessageBatchRequest deleteMessageBatchRequest = new DeleteMessageBatchRequest();
-            deleteMessageBatchRequest.setQueueUrl(sqsUrl);
-            deleteMessageBatchRequest.setEntries(successfullyProcessedReceipts.stream()
-                    .map(receipt -> {
-                        DeleteMessageBatchRequestEntry req = new DeleteMessageBatchRequestEntry();
-                        req.setReceiptHandle(receipt);
-                        req.setId(UUID.randomUUID().toString());
-                        return req;
-                    }).collect(toList()));
-            consumer.deleteMessageBatch(deleteMessageBatchRequest);
+    /**
+     * Blocks until the worker pool has room for at least one message, then takes as many further slots as are free up
+     * to the SQS receive limit
+     *
+     * @return the number of slots reserved; 0 if the consumer is shutting down
+     */
+    private int reserveCapacity() throws InterruptedException {
+        while (!capacity.tryAcquire(STOP_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (stopRunning) {
+                return 0;
+            }
+        }
+        int slots = 1;
+        while (slots < MAX_RECEIVE_BATCH && capacity.tryAcquire()) {
+            slots++;
+        }
+        return slots;
+    }
+
+    /**
+     * Hand the receipt of a processed message to the acknowledger, which removes it from the queue in the background.
+     * <p>
+     * Point of failure: if the program unexpectedly terminates before the acknowledger sends the delete, the message
+     * would have been processed but not removed and thus, would be processed again. Some Transactional magic could be
+     * used to mitigate this, but its best to try and make processing idempotent.
+     * <p>
+     * The blob of a claim-checked message is released once SQS confirms the delete.
+     */
+    private void acknowledge(String receipt, com.randeepbydesign.pubsub.Message message) {
+        if (receipt == null) {
+            return;
+        }
+        acknowledged.increment();
+        if (message instanceof ClaimCheckMessage) {
+            ClaimCheckMessage claimed = (ClaimCheckMessage) message;
+            acknowledger.acknowledge(receipt, () -> claimCheck.release(claimed));
+        } else {
+            acknowledger.acknowledge(receipt);
+        }
+    }
+
+    private void track(List<Message> messages) {
+        messages.forEach(message -> inFlight.add(message.getReceiptHandle()));
+        if (leaseManager != null) {
+            messages.forEach(message -> leaseManager.track(message.getReceiptHandle()));
+        }
+    }
+
+    /**
+     * Process the message and acknowledge it if that succeeds
+     */
+    private void process(Message message, MessageProcessor messageProcessor) {
+        com.randeepbydesign.pubsub.Message converted = toMessage(message);
+        endToEndLatency.received(converted);
+        TraceContext.setTraceId(converted.getAttribute(MessageAttributes.TRACE_ID));
+        long start = System.nanoTime();
+        String receipt;
+        try {
+            receipt = messageProcessor.processMessage(converted);
+            processLatency.recordSince(start);
+            processed.increment();
+            endToEndLatency.acknowledged(converted);
+            if (leaseManager != null) {
+                leaseManager.complete(message.getReceiptHandle());
+            }
+        } catch (Exception e) {
+            processLatency.recordSince(start);
+            failed.increment();
+            log.error("Unable to process message: ", e);
+            if (leaseManager != null) {
+                leaseManager.release(message.getReceiptHandle());
+            }
+            return;
+        } finally {
+            TraceContext.clear();
+            inFlight.remove(message.getReceiptHandle());
+        }
+        acknowledge(receipt, converted);
+    }
+
+    /**
+     * Hand a whole receive to the batch processor and acknowledge the messages it reports as processed
+     */
+    private void processBatch(List<Message> messages) {
+        List<com.randeepbydesign.pubsub.Message> converted = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            com.randeepbydesign.pubsub.Message convertedMessage = toMessage(message);
+            endToEndLatency.received(convertedMessage);
+            converted.add(convertedMessage);
+        }
+        long start = System.nanoTime();
+        List<ProcessingResult> results = BatchMessageProcessor.processBatch(batchProcessor, converted);
+        processLatency.recordSince(start);
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            ProcessingResult result = results.get(i);
+            inFlight.remove(message.getReceiptHandle());
+            if (result.isSuccess()) {
+                processed.increment();
+                endToEndLatency.acknowledged(converted.get(i));
+                if (leaseManager != null) {
+                    leaseManager.complete(message.getReceiptHandle());
+                }
+                acknowledge(result.getReceipt(), converted.get(i));
+            } else {
+                failed.increment();
+                log.error("Unable to process message: ", result.getError());
+                if (leaseManager != null) {
+                    leaseManager.release(message.getReceiptHandle());
+                }
+            }
         }
     }
 
     /**
      * RAW Strings come in an envelope
      */
-    private static final Pattern ENVELOPE_DATA_EXTRACTOR = Pattern
-            .compile(".*\\\"Subject\\\"\\s*:\\s*\\\"([^\"]+)\\\".*\\\"Message\\\"\\s*:\\s*\\\"([^\"]+)\\\".+$",
-                    Pattern.DOTALL);
+    private static final SnsEnvelopeDecoder ENVELOPE_DECODER = new SnsEnvelopeDecoder();
+
+    /**
+     * Message attributes publishers set that are requested with every receive
+     */
+    private static final List<String> RECEIVED_ATTRIBUTES = Arrays.asList(MessageAttributes.PUBLISHED_AT,
+            MessageAttributes.TRACE_ID, MessageAttributes.CONTENT_TYPE, MessageAttributes.CONTENT_ENCODING,
+            MessageAttributes.CLAIM_CHECK);
+
+    /**
+     * Convert the message, resolving it if it was published with a claim check
+     */
+    private com.randeepbydesign.pubsub.Message toMessage(Message message) {
+        com.randeepbydesign.pubsub.Message ret = convertMessage(message);
+        return claimCheck != null && ClaimCheck.isClaimCheck(ret) ? claimCheck.resolve(ret) : ret;
+    }
 
-    private com.randeepbydesign.pubsub.Message convertMessage(Message message) {
-        Matcher m = ENVELOPE_DATA_EXTRACTOR.matcher(message.getBody());
-        if (!m.matches()) {
+    /**
+     * Unwrap the SNS notification envelope, if the message is in one, into the Generic Message format. The receipt
+     * handle becomes the messageId. Compressed bodies are decompressed, unless they are held by a claim check.
+     */
+    public static com.randeepbydesign.pubsub.Message convertMessage(Message message) {
+        SnsEnvelope envelope = ENVELOPE_DECODER.decode(message.getBody());
+        if (envelope == null) {
             log.debug("Message does not match Envelope pattern; treating as raw string");
-            return new com.randeepbydesign.pubsub.Message(message.getReceiptHandle(), message.getBody());
+            Map<String, String> attributes = new HashMap<>();
+            if (message.getMessageAttributes() != null) {
+                for (Map.Entry<String, MessageAttributeValue> attribute : message.getMessageAttributes().entrySet()) {
+                    attributes.put(attribute.getKey(), attribute.getValue().getStringValue());
+                }
+            }
+            // Unlike the receipt handle, the SQS message id stays the same when the message is redelivered
+            attributes.put(com.randeepbydesign.pubsub.Message.SOURCE_ID_ATTRIBUTE, message.getMessageId());
+            return decompress(new com.randeepbydesign.pubsub.Message(message.getReceiptHandle(), null, null,
+                    message.getBody(), attributes));
+        }
+        Map<String, String> attributes = new HashMap<>(envelope.getMessageAttributes());
+        if (envelope.getMessageId() != null) {
+            attributes.put(com.randeepbydesign.pubsub.Message.SOURCE_ID_ATTRIBUTE, envelope.getMessageId());
+        }
+        if (envelope.getTimestamp() != null) {
+            attributes.put(com.randeepbydesign.pubsub.Message.SOURCE_TIMESTAMP_ATTRIBUTE, envelope.getTimestamp());
+        }
+        // The subject has always doubled as the message type for SNS notifications
+        return decompress(new com.randeepbydesign.pubsub.Message(message.getReceiptHandle(), envelope.getSubject(),
+                envelope.getSubject(), envelope.getMessage(), attributes));
+    }
+
+    /**
+     * A message that cannot be decompressed is passed on as it is, so that the processor fails it and it goes the way
+     * of other messages that cannot be processed
+     */
+    private static com.randeepbydesign.pubsub.Message decompress(com.randeepbydesign.pubsub.Message message) {
+        if (!PayloadCompressor.isCompressed(message) || ClaimCheck.isClaimCheck(message)) {
+            return message;
+        }
+        try {
+            return PayloadCompressor.decompress(message);
+        } catch (IOException e) {
+            log.warn("Unable to decompress message " + message.getAttribute(
+                    com.randeepbydesign.pubsub.Message.SOURCE_ID_ATTRIBUTE) + ": " + e.getLocalizedMessage());
+            return message;
         }
-        return new com.randeepbydesign.pubsub.Message(message.getReceiptHandle(), m.group(1), m.group(2));
     }
 
     public static void main(String[] args) throws InterruptedException {
@@ -205,7 +751,7 @@ public class SqsConsumer implements MessageConsumer {
                         }
                     };
                     break;
-                //Would be good to create a "copy" processor that can move messages from DeadLetter Queue to the normal queue
+                //Messages are moved from a DeadLetter Queue back to the normal queue with SqsRedriver
                 default:
                     throw new RuntimeException("Invalid processor requested");
             }
@@ -213,6 +759,7 @@ public class SqsConsumer implements MessageConsumer {
             processor = new PrintlnProcessor();
         }
 
+        new JmxReporter(MetricRegistry.getDefault()).start();
         SqsConsumer consumer = new SqsConsumer(AmazonSQSClientBuilder.defaultClient(), args[0], processor);
         consumer.startPolling();
         Thread.sleep(300000l);
@@ -0,0 +1,262 @@
+package com.randeepbydesign.pubsub.sqssns;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps messages that are still being processed invisible to other consumers.
+ * <p>
+ * Receiving a message hides it for the visibility timeout. Setting the timeout high means a failed message cannot be
+ * retried until it expires; setting it low means a slow message may be handed to a second consumer while the first is
+ * still working on it. The lease manager lets the timeout be short: every message is tracked from the moment it is
+ * received, and a heartbeat extends the visibility of those still in flight in batches before their lease runs out. A
+ * message that fails processing has its visibility reset to 0 so that it is redelivered right away.
+ */
+public class SqsLeaseManager {
+
+    private static final Logger log = LoggerFactory.getLogger(SqsLeaseManager.class);
+
+    /**
+     * Upper limit SQS places on the number of entries in a single batch visibility change
+     */
+    static final int MAX_BATCH_SIZE = 10;
+
+    /**
+     * Shortest visibility timeout in seconds that leaves room to extend a lease before it runs out
+     */
+    static final int MIN_VISIBILITY_TIMEOUT = 2;
+
+    /**
+     * SQS refuses to keep a message invisible for longer than 12 hours after it was received
+     */
+    private static final long MAX_LEASE_NANOS = TimeUnit.HOURS.toNanos(12);
+
+    private final AmazonSQS sqs;
+
+    private final String sqsUrl;
+
+    private final int visibilityTimeout;
+
+    private final long visibilityTimeoutNanos;
+
+    /**
+     * In-flight messages keyed by receipt handle
+     */
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private final Queue<String> released = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * @param visibilityTimeout in seconds; the visibility timeout messages are received with and the length of every
+     * extension
+     */
+    public SqsLeaseManager(AmazonSQS sqs, String sqsUrl, int visibilityTimeout) {
+        if (visibilityTimeout < MIN_VISIBILITY_TIMEOUT) {
+            throw new IllegalArgumentException("Visibility timeout must be at least " + MIN_VISIBILITY_TIMEOUT
+                    + " seconds to leave room to extend");
+        }
+        this.sqs = sqs;
+        this.sqsUrl = sqsUrl;
+        this.visibilityTimeout = visibilityTimeout;
+        this.visibilityTimeoutNanos = TimeUnit.SECONDS.toNanos(visibilityTimeout);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sqs-lease-" + sqsUrl.substring(sqsUrl.lastIndexOf('/') + 1));
+            t.setDaemon(true);
+            return t;
+        });
+        // Check three times per lease so that an extension is always sent with at least a third of the lease left
+        long period = Math.max(1l, TimeUnit.SECONDS.toMillis(visibilityTimeout) / 3);
+        heartbeat.scheduleWithFixedDelay(this::extendExpiring, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public int getVisibilityTimeout() {
+        return visibilityTimeout;
+    }
+
+    /**
+     * Start tracking a message; call as soon as it has been received
+     */
+    public void track(String receiptHandle) {
+        long now = System.nanoTime();
+        leases.put(receiptHandle, new Lease(receiptHandle, now, now + visibilityTimeoutNanos));
+    }
+
+    /**
+     * Stop extending a message whose processing completed; it is left to the acknowledger to remove
+     */
+    public void complete(String receiptHandle) {
+        leases.remove(receiptHandle);
+    }
+
+    /**
+     * Stop extending a message whose processing failed and make it visible again right away
+     */
+    public void release(String receiptHandle) {
+        if (leases.remove(receiptHandle) == null) {
+            return;
+        }
+        released.add(receiptHandle);
+        try {
+            heartbeat.execute(this::sendReleases);
+        } catch (RejectedExecutionException e) {
+            // Shut down; the message becomes visible again once its current lease runs out
+        }
+    }
+
+    /**
+     * @return the number of messages currently being kept invisible
+     */
+    public int getInFlightCount() {
+        return leases.size();
+    }
+
+    /**
+     * Stop the heartbeat. Messages still tracked become visible again once their current lease runs out.
+     */
+    public void close() {
+        heartbeat.shutdown();
+        sendReleases();
+    }
+
+    private void extendExpiring() {
+        long now = System.nanoTime();
+        long extendBefore = now + visibilityTimeoutNanos / 2;
+        List<Lease> expiring = new ArrayList<>();
+        for (Lease lease : leases.values()) {
+            if (lease.expiresAt - extendBefore > 0) {
+                continue;
+            }
+            if (now - lease.receivedAt + visibilityTimeoutNanos > MAX_LEASE_NANOS) {
+                log.warn("Message has been in flight for 12 hours and can no longer be extended");
+                leases.remove(lease.receiptHandle);
+                continue;
+            }
+            expiring.add(lease);
+        }
+        for (int from = 0; from < expiring.size(); from += MAX_BATCH_SIZE) {
+            List<Lease> batch = expiring.subList(from, Math.min(from + MAX_BATCH_SIZE, expiring.size()));
+            List<String> handles = new ArrayList<>(batch.size());
+            batch.forEach(lease -> handles.add(lease.receiptHandle));
+            List<String> failed = changeVisibility(handles, visibilityTimeout);
+            long expiresAt = now + visibilityTimeoutNanos;
+            for (Lease lease : batch) {
+                if (failed.contains(lease.receiptHandle)) {
+                    // Most likely already deleted or expired; there is nothing left to hold on to
+                    leases.remove(lease.receiptHandle);
+                } else {
+                    lease.expiresAt = expiresAt;
+                }
+            }
+        }
+        if (!expiring.isEmpty()) {
+            log.debug("Extended visibility of " + expiring.size() + " in-flight messages on " + sqsUrl);
+        }
+    }
+
+    private void sendReleases() {
+        List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        String handle;
+        while ((handle = released.poll()) != null) {
+            batch.add(handle);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                changeVisibility(batch, 0);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            changeVisibility(batch, 0);
+        }
+    }
+
+    /**
+     * @return the receipt handles whose visibility could not be changed
+     */
+    private List<String> changeVisibility(List<String> receiptHandles, int timeout) {
+        try {
+            return changeVisibility(sqs, sqsUrl, receiptHandles, timeout);
+        } catch (Exception e) {
+            // Leases are left as they are so that the next heartbeat tries again
+            log.warn("Unable to change visibility of " + receiptHandles.size() + " messages on " + sqsUrl + ": " + e
+                    .getLocalizedMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Make messages visible again right away, for messages that were received but will not be processed
+     *
+     * @return the number of messages released
+     */
+    static int releaseAll(AmazonSQS sqs, String sqsUrl, Collection<String> receiptHandles) {
+        List<String> handles = new ArrayList<>(receiptHandles);
+        int ret = 0;
+        for (int from = 0; from < handles.size(); from += MAX_BATCH_SIZE) {
+            List<String> batch = handles.subList(from, Math.min(from + MAX_BATCH_SIZE, handles.size()));
+            try {
+                ret += batch.size() - changeVisibility(sqs, sqsUrl, batch, 0).size();
+            } catch (Exception e) {
+                log.warn("Unable to release " + batch.size() + " messages on " + sqsUrl + ": " + e
+                        .getLocalizedMessage());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the receipt handles whose visibility could not be changed
+     */
+    private static List<String> changeVisibility(AmazonSQS sqs, String sqsUrl, List<String> receiptHandles,
+            int timeout) {
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(receiptHandles.size());
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            ChangeMessageVisibilityBatchRequestEntry entry = new ChangeMessageVisibilityBatchRequestEntry();
+            entry.setId(Integer.toString(i));
+            entry.setReceiptHandle(receiptHandles.get(i));
+            entry.setVisibilityTimeout(timeout);
+            entries.add(entry);
+        }
+        ChangeMessageVisibilityBatchRequest request = new ChangeMessageVisibilityBatchRequest();
+        request.setQueueUrl(sqsUrl);
+        request.setEntries(entries);
+        List<String> failed = new ArrayList<>();
+        ChangeMessageVisibilityBatchResult result = sqs.changeMessageVisibilityBatch(request);
+        for (BatchResultErrorEntry failure : result.getFailed()) {
+            log.info("Unable to change message visibility (" + failure.getCode() + "): " + failure.getMessage());
+            failed.add(receiptHandles.get(Integer.parseInt(failure.getId())));
+        }
+        return failed;
+    }
+
+    private static class Lease {
+
+        private final String receiptHandle;
+
+        private final long receivedAt;
+
+        private volatile long expiresAt;
+
+        Lease(String receiptHandle, long receivedAt, long expiresAt) {
+            this.receiptHandle = receiptHandle;
+            this.receivedAt = receivedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.randeepbydesign.pubsub.sqssns;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.google.common.util.concurrent.RateLimiter;
+import com.randeepbydesign.pubsub.metrics.Counter;
+import com.randeepbydesign.pubsub.metrics.Histogram;
+import com.randeepbydesign.pubsub.metrics.MetricRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves messages from one queue to another, typically from a dead-letter queue back to the queue its messages failed
+ * on once the cause has been fixed.
+ * <p>
+ * Several threads each receive up to {@value #MAX_BATCH_SIZE} messages at a time, send the ones the filter selects to
+ * the target queue as they are, attributes included, in batches, and delete from the source only the messages the
+ * target confirmed. A message that could not be sent stays in the source and becomes visible again once its visibility
+ * timeout runs out, so nothing is lost; if the delete fails after a send the message is redriven twice.
+ * <p>
+ * Messages the filter passes over, and every message in a dry run, are left in the source but stay hidden for the
+ * visibility timeout. Should the run outlast that timeout, the ids of those messages are remembered so that each is
+ * looked at only once per run, and the run still ends once the source holds nothing new. Counts are kept in the default
+ * {@link MetricRegistry} under "redrive." and the source queue name, and progress is logged as the redrive goes.
+ */
+public class SqsRedriver {
+
+    private static final Logger log = LoggerFactory.getLogger(SqsRedriver.class);
+
+    /**
+     * Upper limit SQS places on the number of entries in a single batch call
+     */
+    static final int MAX_BATCH_SIZE = 10;
+
+    /**
+     * Upper limit SQS places on the combined size of the messages in a single batch send
+     */
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    /**
+     * Default time in seconds messages received from the source stay hidden, which should cover the whole run when
+     * filtering or in a dry run
+     */
+    public static final int DEFAULT_VISIBILITY_TIMEOUT = 300;
+
+    /**
+     * Short long-poll, so that an empty source is noticed quickly
+     */
+    private static final int RECEIVE_WAIT_SECONDS = 2;
+
+    /**
+     * Consecutive empty receives after which a thread takes the source to be drained
+     */
+    private static final int MAX_EMPTY_RECEIVES = 3;
+
+    /**
+     * Time in millis between progress log lines
+     */
+    private static final long PROGRESS_INTERVAL = 10000l;
+
+    private final AmazonSQS sqs;
+
+    private final String sourceName;
+
+    private final String targetName;
+
+    private final int parallelism;
+
+    /**
+     * Null for no limit
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Null to redrive everything
+     */
+    private final Predicate<com.randeepbydesign.pubsub.Message> filter;
+
+    private final boolean dryRun;
+
+    private final int visibilityTimeout;
+
+    private volatile boolean stopRunning;
+
+    private final AtomicLong nextProgress = new AtomicLong();
+
+    /**
+     * Start of the current run and the counts when it started, as the counters are shared by every redrive of the
+     * source queue
+     */
+    private long runStart;
+
+    private long receivedBase;
+
+    private long movedBase;
+
+    private long skippedBase;
+
+    private long failedBase;
+
+    private final Counter received;
+
+    private final Counter selected;
+
+    private final Counter redriven;
+
+    private final Counter skipped;
+
+    private final Counter sendFailed;
+
+    private final Counter deleteFailed;
+
+    /**
+     * In micros, per send and delete of a batch
+     */
+    private final Histogram batchLatency;
+
+    /**
+     * Redrives every message as fast as the queues allow
+     */
+    public SqsRedriver(AmazonSQS sqs, String sourceName, String targetName, int parallelism) {
+        this(sqs, sourceName, targetName, parallelism, 0d, null, false, DEFAULT_VISIBILITY_TIMEOUT);
+    }
+
+    /**
+     * @param parallelism number of threads receiving and sending at once
+     * @param rate most messages per second to send to the target; 0 for no limit
+     * @param filter selects the messages to redrive, as the consumer would see them; null to redrive every message
+     * @param dryRun when true, only counts the messages that would be redriven
+     * @param visibilityTimeout in seconds; how long received messages stay hidden in the source
+     */
+    public SqsRedriver(AmazonSQS sqs, String sourceName, String targetName, int parallelism, double rate,
+            Predicate<com.randeepbydesign.pubsub.Message> filter, boolean dryRun, int visibilityTimeout) {
+        if (parallelism < 1 || rate < 0 || visibilityTimeout < 1) {
+            throw new IllegalArgumentException("Invalid redrive configuration: parallelism=" + parallelism + ", rate="
+                    + rate + ", visibilityTimeout=" + visibilityTimeout);
+        }
+        this.sqs = sqs;
+        this.sourceName = sourceName;
+        this.targetName = targetName;
+        this.parallelism = parallelism;
+        this.rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+        this.filter = filter;
+        this.dryRun = dryRun;
+        this.visibilityTimeout = visibilityTimeout;
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        String prefix = "redrive." + sourceName + ".";
+        this.received = metrics.counter(prefix + "received");
+        this.selected = metrics.counter(prefix + "selected");
+        this.redriven = metrics.counter(prefix + "redriven");
+        this.skipped = metrics.counter(prefix + "skipped");
+        this.sendFailed = metrics.counter(prefix + "sendFailed");
+        this.deleteFailed = metrics.counter(prefix + "deleteFailed");
+        this.batchLatency = metrics.histogram(prefix + "batchLatency");
+    }
+
+    /**
+     * Redrive until the source has no more visible messages, the limit is reached or {@link #stop} is called
+     *
+     * @param maxMessages most messages to receive from the source; 0 for no limit
+     * @return the number of messages redriven, or that would have been in a dry run
+     */
+    public long run(long maxMessages) throws InterruptedException {
+        String sourceUrl = queueUrl(sourceName);
+        String targetUrl = queueUrl(targetName);
+        AtomicLong budget = new AtomicLong(maxMessages > 0 ? maxMessages : Long.MAX_VALUE);
+        runStart = System.nanoTime();
+        receivedBase = received.getCount();
+        movedBase = moved();
+        skippedBase = skipped.getCount();
+        failedBase = failed();
+        // Only messages left in the source can come round again
+        Set<String> seen = filter != null || dryRun ? ConcurrentHashMap.newKeySet() : null;
+        nextProgress.set(runStart + TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL));
+        log.info((dryRun ? "Dry run of redrive" : "Redriving") + " from " + sourceName + " to " + targetName + " on "
+                + parallelism + " threads");
+        List<Thread> threads = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            Thread t = new Thread(() -> redrive(sourceUrl, targetUrl, budget, seen),
+                    "sqs-redrive-" + sourceName + "-" + i);
+            threads.add(t);
+            t.start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            stop();
+            throw e;
+        }
+        logProgress(dryRun ? "Dry run finished" : "Redrive finished");
+        return moved() - movedBase;
+    }
+
+    /**
+     * Let the threads finish the batch they are on and stop
+     */
+    public void stop() {
+        stopRunning = true;
+    }
+
+    public long getRedrivenCount() {
+        return redriven.getCount();
+    }
+
+    public long getSkippedCount() {
+        return skipped.getCount();
+    }
+
+    /**
+     * @return the number of messages that could not be sent to the target and were left in the source
+     */
+    public long getFailedCount() {
+        return sendFailed.getCount();
+    }
+
+    /**
+     * @param seen ids of the messages received so far this run; null to not skip redeliveries
+     */
+    private void redrive(String sourceUrl, String targetUrl, AtomicLong budget, Set<String> seen) {
+        int emptyReceives = 0;
+        while (!stopRunning && emptyReceives < MAX_EMPTY_RECEIVES) {
+            int max = (int) Math.min(MAX_BATCH_SIZE, budget.getAndAdd(-MAX_BATCH_SIZE));
+            if (max <= 0) {
+                return;
+            }
+            List<Message> messages;
+            try {
+                messages = receive(sourceUrl, max);
+            } catch (RuntimeException e) {
+                log.warn("Unable to receive from " + sourceName + ": " + e.getLocalizedMessage());
+                budget.addAndGet(MAX_BATCH_SIZE);
+                emptyReceives++;
+                continue;
+            }
+            if (seen != null) {
+                messages.removeIf(message -> !seen.add(message.getMessageId()));
+            }
+            // Hand back what this receive did not use
+            budget.addAndGet(MAX_BATCH_SIZE - messages.size());
+            if (messages.isEmpty()) {
+                emptyReceives++;
+                continue;
+            }
+            emptyReceives = 0;
+            received.add(messages.size());
+            List<Message> batch = select(messages);
+            if (!batch.isEmpty() && !dryRun) {
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(batch.size());
+                }
+                long batchStart = System.nanoTime();
+                delete(sourceUrl, send(targetUrl, batch));
+                batchLatency.recordSince(batchStart);
+            }
+            long progressAt = nextProgress.get();
+            if (System.nanoTime() - progressAt > 0 && nextProgress.compareAndSet(progressAt,
+                    progressAt + TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL))) {
+                logProgress("Redrive in progress");
+            }
+        }
+    }
+
+    private List<Message> receive(String sourceUrl, int max) {
+        ReceiveMessageRequest request = new ReceiveMessageRequest();
+        request.setQueueUrl(sourceUrl);
+        request.setMaxNumberOfMessages(max);
+        request.setWaitTimeSeconds(RECEIVE_WAIT_SECONDS);
+        request.setVisibilityTimeout(visibilityTimeout);
+        request.setMessageAttributeNames(Collections.singletonList("All"));
+        return new ArrayList<>(sqs.receiveMessage(request).getMessages());
+    }
+
+    private List<Message> select(List<Message> messages) {
+        List<Message> ret = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            boolean include;
+            try {
+                include = filter == null || filter.test(SqsConsumer.convertMessage(message));
+            } catch (RuntimeException e) {
+                log.warn("Filter failed on message " + message.getMessageId() + "; leaving it in " + sourceName + ": "
+                        + e.getLocalizedMessage());
+                include = false;
+            }
+            if (include) {
+                ret.add(message);
+            }
+        }
+        selected.add(ret.size());
+        skipped.add(messages.size() - ret.size());
+        return ret;
+    }
+
+    /**
+     * Send the messages in batches that fit the SQS size limit
+     *
+     * @return the messages the target confirmed
+     */
+    private List<Message> send(String targetUrl, List<Message> messages) {
+        List<Message> ret = new ArrayList<>(messages.size());
+        List<Message> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        int batchBytes = 0;
+        for (Message message : messages) {
+            int bytes = size(message);
+            if (!batch.isEmpty() && batchBytes + bytes > MAX_BATCH_BYTES) {
+                sendBatch(targetUrl, batch, ret);
+                batch = new ArrayList<>(MAX_BATCH_SIZE);
+                batchBytes = 0;
+            }
+            batch.add(message);
+            batchBytes += bytes;
+        }
+        if (!batch.isEmpty()) {
+            sendBatch(targetUrl, batch, ret);
+        }
+        return ret;
+    }
+
+    private void sendBatch(String targetUrl, List<Message> batch, List<Message> sent) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry();
+            entry.setId(Integer.toString(i));
+            entry.setMessageBody(batch.get(i).getBody());
+            Map<String, MessageAttributeValue> attributes = batch.get(i).getMessageAttributes();
+            if (attributes != null && !attributes.isEmpty()) {
+                entry.setMessageAttributes(attributes);
+            }
+            entries.add(entry);
+        }
+        SendMessageBatchRequest request = new SendMessageBatchRequest();
+        request.setQueueUrl(targetUrl);
+        request.setEntries(entries);
+        SendMessageBatchResult result;
+        try {
+            result = sqs.sendMessageBatch(request);
+        } catch (Exception e) {
+            sendFailed.add(batch.size());
+            log.warn("Unable to send " + batch.size() + " messages to " + targetName + "; leaving them in "
+                    + sourceName + ": " + e.getLocalizedMessage());
+            return;
+        }
+        for (SendMessageBatchResultEntry success : result.getSuccessful()) {
+            sent.add(batch.get(Integer.parseInt(success.getId())));
+        }
+        for (BatchResultErrorEntry error : result.getFailed()) {
+            sendFailed.increment();
+            log.warn("Unable to send message " + batch.get(Integer.parseInt(error.getId())).getMessageId() + " to "
+                    + targetName + " (" + error.getCode() + "): " + error.getMessage());
+        }
+    }
+
+    /**
+     * Delete the sent messages from the source
+     */
+    private void delete(String sourceUrl, List<Message> sent) {
+        for (int from = 0; from < sent.size(); from += MAX_BATCH_SIZE) {
+            List<Message> batch = sent.subList(from, Math.min(from + MAX_BATCH_SIZE, sent.size()));
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                DeleteMessageBatchRequestEntry entry = new DeleteMessageBatchRequestEntry();
+                entry.setId(Integer.toString(i));
+                entry.setReceiptHandle(batch.get(i).getReceiptHandle());
+                entries.add(entry);
+            }
+            DeleteMessageBatchRequest request = new DeleteMessageBatchRequest();
+            request.setQueueUrl(sourceUrl);
+            request.setEntries(entries);
+            try {
+                DeleteMessageBatchResult result = sqs.deleteMessageBatch(request);
+                redriven.add(result.getSuccessful().size());
+                for (BatchResultErrorEntry error : result.getFailed()) {
+                    deleteFailed.increment();
+                    log.warn("Redrove message " + batch.get(Integer.parseInt(error.getId())).getMessageId()
+                            + " but could not delete it from " + sourceName + " (" + error.getCode() + "): "
+                            + error.getMessage());
+                }
+            } catch (Exception e) {
+                deleteFailed.add(batch.size());
+                log.warn("Redrove " + batch.size() + " messages but could not delete them from " + sourceName + ": "
+                        + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Approximate size SQS counts against the batch limit: the body plus the attribute names, types and values
+     */
+    private static int size(Message message) {
+        int ret = message.getBody().getBytes(StandardCharsets.UTF_8).length;
+        if (message.getMessageAttributes() != null) {
+            for (Map.Entry<String, MessageAttributeValue> attribute : message.getMessageAttributes().entrySet()) {
+                MessageAttributeValue value = attribute.getValue();
+                ret += attribute.getKey().length() + (value.getDataType() == null ? 0 : value.getDataType().length());
+                if (value.getStringValue() != null) {
+                    ret += value.getStringValue().getBytes(StandardCharsets.UTF_8).length;
+                } else if (value.getBinaryValue() != null) {
+                    ret += value.getBinaryValue().remaining();
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the messages redriven, or selected in a dry run
+     */
+    private long moved() {
+        return dryRun ? selected.getCount() : redriven.getCount();
+    }
+
+    private long failed() {
+        return sendFailed.getCount() + deleteFailed.getCount();
+    }
+
+    private void logProgress(String state) {
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStart));
+        long moved = moved() - movedBase;
+        log.info(String.format("%s: %s to %s, %d received, %d %s, %d skipped, %d failed in %dms (%.1f/s)", state,
+                sourceName, targetName, received.getCount() - receivedBase, moved, dryRun ? "selected" : "redriven",
+                skipped.getCount() - skippedBase, failed() - failedBase, elapsed, moved * 1000d / elapsed));
+    }
+
+    private String queueUrl(String name) {
+        return sqs.listQueues().getQueueUrls().stream()
+                .filter(url -> url.endsWith(name)).findAny()
+                .orElseThrow(() -> new RuntimeException("Unable to locate SQS " + name));
+    }
+
+    /**
+     * @param args source queue, target queue, then optionally: threads, messages per second (0 for no limit), the
+     * subject to redrive (all for every message) and dry-run
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Source and target queue names required, optionally followed by threads, messages per "
+                    + "second, subject and dry-run");
+            System.exit(1);
+        }
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 0d;
+        String subject = args.length > 4 && !"all".equalsIgnoreCase(args[4]) ? args[4] : null;
+        boolean dryRun = args.length > 5 && "dry-run".equalsIgnoreCase(args[5]);
+        SqsRedriver redriver = new SqsRedriver(AmazonSQSClientBuilder.defaultClient(), args[0], args[1], parallelism,
+                rate, subject == null ? null : message -> subject.equals(message.getSubject()), dryRun,
+                DEFAULT_VISIBILITY_TIMEOUT);
+        redriver.run(0);
+    }
+}
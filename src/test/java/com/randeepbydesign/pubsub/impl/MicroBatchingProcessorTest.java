@@ -0,0 +1,72 @@
+package com.randeepbydesign.pubsub.impl;
+
+import com.randeepbydesign.pubsub.BatchMessageProcessor;
+import com.randeepbydesign.pubsub.Message;
+import com.randeepbydesign.pubsub.ProcessingResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class MicroBatchingProcessorTest extends TestCase {
+
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    private final BatchMessageProcessor recorder = messages -> {
+        batchSizes.add(messages.size());
+        List<ProcessingResult> ret = new ArrayList<>();
+        for (Message message : messages) {
+            ret.add(ProcessingResult.success("done-" + message.getMessageId()));
+        }
+        return ret;
+    };
+
+    public void testConcurrentCallersShareABatch() throws Exception {
+        MicroBatchingProcessor processor = new MicroBatchingProcessor(recorder, 4, 60000l);
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> receipts = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Message message = new Message(Integer.toString(i), "body");
+                receipts.add(workers.submit(() -> processor.processMessage(message)));
+            }
+            for (int i = 0; i < 4; i++) {
+                assertEquals("done-" + i, receipts.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(Collections.singletonList(4), batchSizes);
+        } finally {
+            workers.shutdownNow();
+            processor.close();
+        }
+    }
+
+    public void testLingerFlushesPartialBatch() {
+        MicroBatchingProcessor processor = new MicroBatchingProcessor(recorder, 10, 10l);
+        try {
+            assertEquals("done-a", processor.processMessage(new Message("a", "body")));
+            assertEquals(Collections.singletonList(1), batchSizes);
+        } finally {
+            processor.close();
+        }
+    }
+
+    public void testCloseProcessesGatheredBatch() throws Exception {
+        MicroBatchingProcessor processor = new MicroBatchingProcessor(recorder, 10, 60000l);
+        CompletableFuture<String> receipt = CompletableFuture.supplyAsync(
+                () -> processor.processMessage(new Message("a", "body")));
+        // Give the caller time to join the batch, which the linger time would otherwise hold for a minute
+        Thread.sleep(200l);
+        processor.close();
+        assertEquals("done-a", receipt.get(5, TimeUnit.SECONDS));
+        try {
+            processor.processMessage(new Message("b", "body"));
+            fail("Expected a closed processor to refuse messages");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
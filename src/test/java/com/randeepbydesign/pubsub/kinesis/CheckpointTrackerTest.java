@@ -0,0 +1,93 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.model.Record;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class CheckpointTrackerTest extends TestCase {
+
+    private final RecordingCheckpointer checkpointer = new RecordingCheckpointer();
+
+    public void testCheckpointsOnlyContiguouslyCompletedRecords() throws InterruptedException {
+        CheckpointTracker tracker = new CheckpointTracker("shard-1", 0l, 1);
+        tracker.setCheckpointer(checkpointer);
+        List<SequenceTracker.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            entries.add(tracker.register(SequenceTrackerTest.record(i)));
+        }
+        tracker.complete(entries.get(1), true);
+        tracker.complete(entries.get(3), true);
+        Thread.sleep(100l);
+        assertEquals(Collections.emptyList(), checkpointer.getCheckpoints());
+
+        tracker.complete(entries.get(0), true);
+        assertEquals("1", checkpointer.awaitCheckpoint());
+
+        tracker.complete(entries.get(2), false);
+        tracker.close(checkpointer, false, true);
+        // Held at the unresolved record, so the last record is not checkpointed even though it completed
+        assertEquals(Collections.singletonList("1"), checkpointer.getCheckpoints());
+    }
+
+    public void testCloseCheckpointsWhatCompletedSinceLastFlush() {
+        CheckpointTracker tracker = new CheckpointTracker("shard-1", 0l, 0);
+        tracker.setCheckpointer(checkpointer);
+        for (int i = 0; i < 3; i++) {
+            tracker.complete(tracker.register(SequenceTrackerTest.record(i)), true);
+        }
+        tracker.close(checkpointer, false, true);
+        assertEquals(Collections.singletonList("2"), checkpointer.getCheckpoints());
+    }
+
+    public void testNoCheckpointAfterLeaseLost() {
+        CheckpointTracker tracker = new CheckpointTracker("shard-1", 0l, 0);
+        tracker.complete(tracker.register(SequenceTrackerTest.record(0)), true);
+        tracker.close(checkpointer, false, false);
+        assertEquals(Collections.emptyList(), checkpointer.getCheckpoints());
+    }
+
+    private static class RecordingCheckpointer implements IRecordProcessorCheckpointer {
+
+        private final List<String> checkpoints = new ArrayList<>();
+
+        @Override
+        public synchronized void checkpoint() {
+            checkpoints.add("SHARD_END");
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void checkpoint(Record record) {
+            checkpoints.add(record.getSequenceNumber());
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void checkpoint(String sequenceNumber) {
+            checkpoints.add(sequenceNumber);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void checkpoint(String sequenceNumber, long subSequenceNumber) {
+            checkpoints.add(sequenceNumber + ":" + subSequenceNumber);
+            notifyAll();
+        }
+
+        synchronized List<String> getCheckpoints() {
+            return new ArrayList<>(checkpoints);
+        }
+
+        synchronized String awaitCheckpoint() throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (checkpoints.isEmpty() && System.nanoTime() < deadline) {
+                wait(100l);
+            }
+            return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+public class KeyOrderedExecutorTest extends TestCase {
+
+    public void testTasksWithSameKeyRunInSubmissionOrder() throws InterruptedException {
+        KeyOrderedExecutor executor = new KeyOrderedExecutor("test", 4, 64);
+        int keys = 20;
+        int tasksPerKey = 200;
+        List<List<Integer>> seen = new ArrayList<>();
+        for (int key = 0; key < keys; key++) {
+            seen.add(new ArrayList<>());
+        }
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int key = 0; key < keys; key++) {
+                List<Integer> keySeen = seen.get(key);
+                int sequence = i;
+                executor.execute("key-" + key, () -> {
+                    if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                        Thread.yield();
+                    }
+                    synchronized (keySeen) {
+                        keySeen.add(sequence);
+                    }
+                });
+            }
+        }
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        for (List<Integer> keySeen : seen) {
+            assertEquals(tasksPerKey, keySeen.size());
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals(i, keySeen.get(i).intValue());
+            }
+        }
+    }
+
+    public void testDifferentKeysRunInParallel() throws InterruptedException {
+        KeyOrderedExecutor executor = new KeyOrderedExecutor("test", 2, 10);
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        Runnable task = () -> {
+            bothRunning.countDown();
+            try {
+                bothRunning.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        executor.execute(0, 1, task);
+        executor.execute(1, 1, task);
+        assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    public void testSubmitBlocksOnceOutstandingBoundIsReached() throws InterruptedException {
+        KeyOrderedExecutor executor = new KeyOrderedExecutor("test", 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        Runnable task = () -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ran.incrementAndGet();
+        };
+        executor.execute("key", task);
+        executor.execute("key", task);
+        Thread submitter = new Thread(() -> {
+            try {
+                executor.execute("key", task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        submitter.join(200l);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000l);
+        assertFalse(submitter.isAlive());
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(3, ran.get());
+    }
+}
@@ -0,0 +1,72 @@
+package com.randeepbydesign.pubsub.kinesis;
+
+import com.amazonaws.services.kinesis.model.Record;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class SequenceTrackerTest extends TestCase {
+
+    private final SequenceTracker tracker = new SequenceTracker();
+
+    public void testCheckpointableIsHighestContiguousCompletedRecord() {
+        List<SequenceTracker.Entry> entries = registerAll(5);
+        tracker.complete(entries.get(2));
+        tracker.complete(entries.get(1));
+        assertNull(tracker.getCheckpointable());
+
+        tracker.complete(entries.get(0));
+        assertEquals("2", tracker.getCheckpointable().getSequenceNumber());
+        tracker.complete(entries.get(4));
+        assertEquals("2", tracker.getCheckpointable().getSequenceNumber());
+        assertEquals(2, tracker.getOutstandingCount());
+
+        tracker.complete(entries.get(3));
+        assertEquals("4", tracker.getCheckpointable().getSequenceNumber());
+        assertEquals(0, tracker.getOutstandingCount());
+    }
+
+    public void testUnresolvedRecordHoldsCheckpoints() {
+        List<SequenceTracker.Entry> entries = registerAll(3);
+        tracker.complete(entries.get(0), true);
+        tracker.complete(entries.get(2), true);
+        tracker.complete(entries.get(1), false);
+        assertEquals("0", tracker.getCheckpointable().getSequenceNumber());
+        assertEquals("1", tracker.getStalledAt().getSequenceNumber());
+
+        SequenceTracker.Entry later = tracker.register(record(3));
+        tracker.complete(later);
+        assertEquals("0", tracker.getCheckpointable().getSequenceNumber());
+    }
+
+    public void testConcurrentCompletionsReachLastRecord() throws InterruptedException {
+        List<SequenceTracker.Entry> entries = registerAll(10000);
+        List<SequenceTracker.Entry> shuffled = new ArrayList<>(entries);
+        Collections.shuffle(shuffled);
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        for (SequenceTracker.Entry entry : shuffled) {
+            workers.execute(() -> tracker.complete(entry));
+        }
+        workers.shutdown();
+        assertTrue(workers.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals("9999", tracker.getCheckpointable().getSequenceNumber());
+        assertEquals(0, tracker.getOutstandingCount());
+        assertNull(tracker.getStalledAt());
+    }
+
+    private List<SequenceTracker.Entry> registerAll(int count) {
+        List<SequenceTracker.Entry> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ret.add(tracker.register(record(i)));
+        }
+        return ret;
+    }
+
+    static Record record(int sequenceNumber) {
+        return new Record().withSequenceNumber(Integer.toString(sequenceNumber));
+    }
+}
@@ -0,0 +1,71 @@
+package com.randeepbydesign.pubsub.outbox;
+
+import com.randeepbydesign.pubsub.JsonPublisher;
+import com.randeepbydesign.pubsub.codec.JsonCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+
+public class OutboxDrainerTest extends TestCase {
+
+    private Path directory;
+
+    private final List<String> published = Collections.synchronizedList(new ArrayList<>());
+
+    private final JsonPublisher recorder = new JsonPublisher(new JsonCodec()) {
+        @Override
+        public String publish(String subject, String messageBody) {
+            published.add(messageBody);
+            return Integer.toString(published.size());
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("outbox-drainer-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    public void testCorruptEntryIsSkippedAndAcknowledged() throws Exception {
+        OutboxJournal journal = new OutboxJournal(directory, 4096);
+        List<Long> offsets = new ArrayList<>();
+        for (String body : Arrays.asList("first", "second", "third")) {
+            byte[] data = new OutboxEntry("subject", null, null, 1l, body.getBytes(StandardCharsets.UTF_8)).encode();
+            offsets.add(journal.append(data).join());
+        }
+        // Flip the last byte of the second entry's data, so that its checksum no longer matches
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d", 0) + ".segment"),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'#'}), offsets.get(2) - 1);
+        }
+
+        OutboxDrainer drainer = new OutboxDrainer(journal, recorder, 1000, 10);
+        drainer.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (journal.getAcknowledgedOffset() < journal.getCommittedOffset() && System.nanoTime() < deadline) {
+            Thread.sleep(10l);
+        }
+        drainer.stop(1, TimeUnit.SECONDS);
+        assertEquals(journal.getCommittedOffset(), journal.getAcknowledgedOffset());
+        assertEquals(Arrays.asList("first", "third"), published);
+        journal.close();
+    }
+}
@@ -0,0 +1,159 @@
+package com.randeepbydesign.pubsub.outbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+
+public class OutboxJournalTest extends TestCase {
+
+    /**
+     * Entries of 20 bytes take 28 with their header, so two fit in a segment
+     */
+    private static final int SEGMENT_SIZE = 64;
+
+    private static final int ENTRY_SIZE = OutboxJournal.ENTRY_HEADER + 20;
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("outbox-journal-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    public void testReopenResumesFromAcknowledgedOffset() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        List<Long> offsets = appendAll(journal, 6);
+        journal.acknowledge(journal.read(offsets.get(3), 1).get(0).getNextOffset());
+        journal.close();
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        List<OutboxJournal.Entry> entries = journal.read(journal.getAcknowledgedOffset(), 10);
+        assertEquals(2, entries.size());
+        assertEquals("entry-00000000000004", text(entries.get(0)));
+        assertEquals("entry-00000000000005", text(entries.get(1)));
+        journal.append(data(6)).join();
+        entries = journal.read(journal.getAcknowledgedOffset(), 10);
+        assertEquals(3, entries.size());
+        assertEquals("entry-00000000000006", text(entries.get(2)));
+        journal.close();
+    }
+
+    public void testTornEntryInEarlierSegmentDiscardsLaterSegments() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        List<Long> offsets = appendAll(journal, 6);
+        journal.close();
+        assertEquals(3, segmentCount());
+        // The second entry of the first segment did not reach the disk, while the later segments did
+        corrupt(offsets.get(1));
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(ENTRY_SIZE, journal.getCommittedOffset());
+        assertEquals(1, segmentCount());
+        List<OutboxJournal.Entry> entries = journal.read(0, 10);
+        assertEquals(1, entries.size());
+        assertEquals("entry-00000000000000", text(entries.get(0)));
+
+        long next = journal.append(data(6)).join();
+        assertEquals(ENTRY_SIZE, next);
+        assertEquals("entry-00000000000006", text(journal.read(next, 10).get(0)));
+        journal.close();
+    }
+
+    public void testTornEntryInLastSegmentIsDiscarded() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        List<Long> offsets = appendAll(journal, 5);
+        journal.close();
+        corrupt(offsets.get(4));
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(offsets.get(4).longValue(), journal.getCommittedOffset());
+        assertEquals(4, journal.read(0, 10).size());
+        journal.close();
+    }
+
+    public void testCorruptEntryIsReadAsCorrupt() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        List<Long> offsets = appendAll(journal, 3);
+        corrupt(offsets.get(1));
+
+        List<OutboxJournal.Entry> entries = journal.read(0, 10);
+        assertEquals(3, entries.size());
+        assertFalse(entries.get(0).isCorrupt());
+        assertTrue(entries.get(1).isCorrupt());
+        assertNull(entries.get(1).getData());
+        assertEquals(offsets.get(1) + ENTRY_SIZE, entries.get(1).getNextOffset());
+        assertEquals("entry-00000000000002", text(entries.get(2)));
+        journal.close();
+    }
+
+    public void testCorruptLengthSkipsToNextKnownEntry() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        List<Long> offsets = appendAll(journal, 3);
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d", 0) + ".segment"),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), 0);
+        }
+
+        // The first segment's second entry cannot be found any more, but the next segment's first one can
+        List<OutboxJournal.Entry> entries = journal.read(0, 10);
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).isCorrupt());
+        assertEquals(offsets.get(2).longValue(), entries.get(0).getNextOffset());
+        assertEquals("entry-00000000000002", text(entries.get(1)));
+        journal.close();
+    }
+
+    private static List<Long> appendAll(OutboxJournal journal, int count) {
+        List<Long> offsets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            offsets.add(journal.append(data(i)).join());
+        }
+        return offsets;
+    }
+
+    private static byte[] data(int i) {
+        return String.format("entry-%014d", i).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String text(OutboxJournal.Entry entry) {
+        return new String(entry.getData(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Overwrite the last byte of the entry's data, so that its checksum no longer matches
+     */
+    private void corrupt(long offset) throws IOException {
+        long segmentOffset = offset / SEGMENT_SIZE * SEGMENT_SIZE;
+        Path file = directory.resolve(String.format("%020d", segmentOffset) + ".segment");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'#'}), offset - segmentOffset + ENTRY_SIZE - 1);
+        }
+    }
+
+    private int segmentCount() throws IOException {
+        int ret = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.segment")) {
+            for (Path ignored : files) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+}